@@ -87,6 +87,11 @@ android {
         }
     }
     
+    // 单元测试在JVM上运行，android.util.Log等方法返回默认值而不是抛出异常
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
+    
     // 使用旧的native库打包方式，确保库能正确安装到设备
     packaging {
         jniLibs {
@@ -7,7 +7,11 @@ import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 
+import java.io.IOException;
+
+import pub.log.startfrp.adblib.AdbShellResult;
 import pub.log.startfrp.lib.adb.AdbManager;
+import pub.log.startfrp.lib.adb.AdbReconnectScheduler;
 
 /**
  * 开机广播接收器类
@@ -17,6 +21,7 @@ import pub.log.startfrp.lib.adb.AdbManager;
 public class BootReceiver extends BroadcastReceiver {
     private static final String TAG = "BootReceiver";
     private static final String SHIZUKU_PACKAGE_NAME = "moe.shizuku.privileged.api";
+    private static final int BOOT_CONNECT_MAX_FAILURES = 10; // 开机后等待ADB连接，连续失败10次后放弃
     
     /**
      * 清理ADB命令输出，移除命令提示符、命令本身和多余的空白字符
@@ -187,6 +192,82 @@ public class BootReceiver extends BroadcastReceiver {
         LogManager.getInstance(context).d(TAG, "FrpcService启动请求已发送");
     }
 
+    /**
+     * 通过ADB激活Shizuku：用pm path找到Shizuku安装目录，执行其中的libshizuku.so
+     */
+    private void activateShizukuWithAdb(Context context, AdbManager adbManager) throws InterruptedException {
+        // 只使用pm path命令获取Shizuku路径（最可靠的方式）
+        String foundPath = null;
+        
+        // 通过pm path命令获取Shizuku应用路径
+        LogManager.getInstance(context).d(TAG, "通过pm path命令获取Shizuku应用路径");
+        AdbShellResult pmPathResult = adbManager.executeShell("pm path moe.shizuku.privileged.api");
+        if (pmPathResult != null && pmPathResult.isSuccess()) {
+            // 标准输出不含回显和提示符，取第一行即可
+            String cleanPmPath = pmPathResult.getStdout().trim().split("\\n")[0].trim();
+            LogManager.getInstance(context).d(TAG, "pm path结果: " + cleanPmPath);
+            
+            // 处理清理后的结果
+            if (cleanPmPath != null && !cleanPmPath.isEmpty() && cleanPmPath.startsWith("package:")) {
+                String apkPath = cleanPmPath.substring(8);
+                LogManager.getInstance(context).d(TAG, "提取的APK路径: " + apkPath);
+                
+                // 检查APK路径是否有效
+                if (apkPath.endsWith(".apk")) {
+                    // 替换/base.apk为空白，得到应用目录路径
+                    String appDirPath = apkPath.replace("/base.apk", "");
+                    LogManager.getInstance(context).d(TAG, "应用目录路径: " + appDirPath);
+                    
+                    // 构建完整的libshizuku.so路径
+                    String libPath = appDirPath + "/lib/arm64/libshizuku.so";
+                    LogManager.getInstance(context).d(TAG, "计算出的Shizuku路径: " + libPath);
+                    foundPath = libPath;
+                }
+            }
+        }
+        
+        // 如果找到路径，执行激活命令
+        if (foundPath != null && !foundPath.isEmpty()) {
+            LogManager.getInstance(context).d(TAG, "执行激活命令: " + foundPath);
+            String result = adbManager.executeCommand(foundPath);
+            LogManager.getInstance(context).d(TAG, "激活Shizuku结果: " + (result != null ? result : "无结果"));
+        } else {
+            LogManager.getInstance(context).e(TAG, "无法找到Shizuku路径，跳过激活");
+        }
+        
+        // 延迟2秒确保Shizuku完全激活
+        Thread.sleep(2000);
+    }
+
+    /**
+     * 订阅ADB连接状态，连接成功后激活Shizuku；连续失败次数过多时放弃
+     */
+    private void activateShizukuWhenConnected(final Context context, final AdbManager adbManager) {
+        adbManager.addConnectionListener(new AdbReconnectScheduler.Listener() {
+            @Override
+            public void onConnected() {
+                adbManager.removeConnectionListener(this);
+                // 回调在重连线程上，激活命令放到新线程执行
+                new Thread(() -> {
+                    try {
+                        LogManager.getInstance(context).d(TAG, "ADB已连接，开始激活Shizuku");
+                        activateShizukuWithAdb(context, adbManager);
+                    } catch (Exception e) {
+                        LogManager.getInstance(context).e(TAG, "激活Shizuku失败: " + e.getMessage(), e);
+                    }
+                }).start();
+            }
+
+            @Override
+            public void onConnectFailed(IOException error, int consecutiveFailures, long retryDelayMillis) {
+                if (consecutiveFailures >= BOOT_CONNECT_MAX_FAILURES) {
+                    adbManager.removeConnectionListener(this);
+                    LogManager.getInstance(context).e(TAG, "ADB连接失败" + consecutiveFailures + "次，放弃激活Shizuku: " + error.getMessage());
+                }
+            }
+        });
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         if (intent != null) {
@@ -238,67 +319,14 @@ public class BootReceiver extends BroadcastReceiver {
                                 // 移除冗余初始化，避免与FrpcService冲突
                                 AdbManager adbManager = AdbManager.getInstance();
                                 
-                                // 检查ADB连接状态
+                                // 检查ADB连接状态，开机时adbd可能尚未就绪，连接失败时订阅连接成功事件
                                 if (!adbManager.connect()) {
-                                    LogManager.getInstance(context).e(TAG, "ADB连接失败，无法激活Shizuku");
+                                    LogManager.getInstance(context).d(TAG, "ADB暂不可用，等待连接成功后激活Shizuku");
+                                    activateShizukuWhenConnected(context, adbManager);
                                     return;
                                 }
                                 
-                                // 只使用pm path命令获取Shizuku路径（最可靠的方式）
-                                String foundPath = null;
-                                
-                                // 通过pm path命令获取Shizuku应用路径
-                                LogManager.getInstance(context).d(TAG, "通过pm path命令获取Shizuku应用路径");
-                                String pmPathResult = adbManager.executeCommand("pm path moe.shizuku.privileged.api");
-                                if (pmPathResult != null && !pmPathResult.isEmpty()) {
-                                    LogManager.getInstance(context).d(TAG, "pm path原始结果: " + pmPathResult);
-                                    
-                                    // 清理ADB命令输出
-                                    String[] lines = pmPathResult.split("\\n");
-                                    StringBuilder cleaned = new StringBuilder();
-                                    for (String line : lines) {
-                                        // 移除命令提示符
-                                        line = line.replaceAll(".*[\\$#]\\s*", "");
-                                        // 移除空白字符
-                                        line = line.trim();
-                                        // 只添加非空行，且不包含命令本身
-                                        if (!line.isEmpty() && !line.startsWith("pm path")) {
-                                            cleaned.append(line).append("\n");
-                                        }
-                                    }
-                                    String cleanPmPath = cleaned.toString().trim();
-                                    LogManager.getInstance(context).d(TAG, "pm path清理结果: " + cleanPmPath);
-                                    
-                                    // 处理清理后的结果
-                                    if (cleanPmPath != null && !cleanPmPath.isEmpty() && cleanPmPath.startsWith("package:")) {
-                                        String apkPath = cleanPmPath.substring(8);
-                                        LogManager.getInstance(context).d(TAG, "提取的APK路径: " + apkPath);
-                                        
-                                        // 检查APK路径是否有效
-                                        if (apkPath.endsWith(".apk")) {
-                                            // 替换/base.apk为空白，得到应用目录路径
-                                            String appDirPath = apkPath.replace("/base.apk", "");
-                                            LogManager.getInstance(context).d(TAG, "应用目录路径: " + appDirPath);
-                                            
-                                            // 构建完整的libshizuku.so路径
-                                            String libPath = appDirPath + "/lib/arm64/libshizuku.so";
-                                            LogManager.getInstance(context).d(TAG, "计算出的Shizuku路径: " + libPath);
-                                            foundPath = libPath;
-                                        }
-                                    }
-                                }
-                                
-                                // 如果找到路径，执行激活命令
-                                if (foundPath != null && !foundPath.isEmpty()) {
-                                    LogManager.getInstance(context).d(TAG, "执行激活命令: " + foundPath);
-                                    String result = adbManager.executeCommand(foundPath);
-                                    LogManager.getInstance(context).d(TAG, "激活Shizuku结果: " + (result != null ? result : "无结果"));
-                                } else {
-                                    LogManager.getInstance(context).e(TAG, "无法找到Shizuku路径，跳过激活");
-                                }
-                                
-                                // 延迟2秒确保Shizuku完全激活
-                                Thread.sleep(2000);
+                                activateShizukuWithAdb(context, adbManager);
                             } catch (Exception e) {
                                 LogManager.getInstance(context).e(TAG, "激活Shizuku失败: " + e.getMessage(), e);
                                 // 即使激活失败也继续执行，不影响FRP服务
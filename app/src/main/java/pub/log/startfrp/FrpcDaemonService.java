@@ -5,6 +5,7 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.IBinder;
@@ -28,6 +29,7 @@ import rikka.shizuku.ShizukuRemoteProcess;
 /**
  * FRP守护进程服务
  * 用于监控和管理libfrpc进程的运行状态，确保其持续在线
+ * 由本服务启动的libfrpc通过FrpcWatcher等待其退出，退出后立即重启；其他情况下每10秒检查一次
  * @author BY YYX
  */
 public class FrpcDaemonService extends Service {
@@ -46,6 +48,15 @@ public class FrpcDaemonService extends Service {
     private Runnable checkRunnable;
     private static final long CHECK_INTERVAL = 10000; // 10秒检查一次
     
+    // 退出监视相关：frpc由监视器启动时不再定时检查，退出后立即重启
+    private FrpcWatcher frpcWatcher;
+    private boolean adbCheckInProgress; // ADB模式下检查和启动在后台线程进行，期间不重复检查
+    private volatile long frpcStartTime;
+    private long restartDelay;
+    private static final long MIN_UPTIME = 10000; // 运行不足10秒就退出视为启动失败
+    private static final long MIN_RESTART_DELAY = 1000;
+    private static final long MAX_RESTART_DELAY = 30000;
+    
     // 权限控制相关
     private static final String VALID_PACKAGE = "pub.log.startfrp";
     
@@ -165,26 +176,35 @@ public class FrpcDaemonService extends Service {
     
     /**
      * 检查libfrpc进程是否运行，如果没有运行则直接使用Shizuku和nohup启动它
+     * Shizuku不可用且选择了ADB模式时，检查和启动都在后台线程进行
      */
     private void checkAndManageFRPProcess() {
-        if (!Shizuku.pingBinder()) {
+        boolean shizukuAvailable = Shizuku.pingBinder();
+        boolean useAdb = getSharedPreferences("frp_config", Context.MODE_PRIVATE).getBoolean("use_adb", false);
+        if (!shizukuAvailable && !useAdb) {
             logManager.e("FrpcDaemonService", "Shizuku服务不可用，无法检查和管理进程");
             return;
         }
         
+        if (adbCheckInProgress || (frpcWatcher != null && frpcWatcher.isActive())) {
+            logManager.d("FrpcDaemonService", "libfrpc进程由监视器监视中或正在检查，跳过检查");
+            return;
+        }
+        
+        if (!shizukuAvailable) {
+            checkAndManageWithAdb();
+            return;
+        }
+        
         try {
-            // 使用Shizuku检查libfrpc进程是否存在
-            String[] checkCommand = {"sh", "-c", "ps -A | grep libfrpc | grep -v grep"};
-            ShizukuRemoteProcess checkProcess = ShizukuHelper.newProcess(checkCommand, null, null);
-            
-            BufferedReader reader = new BufferedReader(new InputStreamReader(checkProcess.getInputStream()));
-            String result = reader.readLine();
-            reader.close();
-            checkProcess.waitFor();
-            
-            boolean processRunning = result != null && !result.trim().isEmpty();
+            // 从状态引擎获取，缓存有效时不再执行检测命令
+            FrpcStatusEngine.Status status = FrpcStatusEngine.getInstance(this).get(FrpcStatusEngine.DEFAULT_TTL);
+            if (status.isFailed()) {
+                logManager.e("FrpcDaemonService", "无法检测libfrpc进程状态，本次不启动");
+                return;
+            }
             
-            if (!processRunning) {
+            if (!status.running) {
                 logManager.d("FrpcDaemonService", "未检测到libfrpc进程，尝试直接启动libfrpc.so");
                 
                 // 确保目标目录存在
@@ -207,91 +227,19 @@ public class FrpcDaemonService extends Service {
                 
                 logManager.d("FrpcDaemonService", "目标目录文件列表: \n" + filesBuilder.toString());
                 
-                // 检查libfrpc.so和frpc.toml文件是否存在
-                boolean libfrpcExists = new File(FRPC_PATH).exists();
-                boolean configExists = new File(CONFIG_PATH).exists();
-                
-                logManager.d("FrpcDaemonService", "libfrpc.so存在: " + libfrpcExists + ", frpc.toml存在: " + configExists);
-                
-                if (libfrpcExists && configExists) {
-                    // 使用shell执行命令并添加nohup，确保进程在后台运行
-                    String shellCommand = "nohup " + FRPC_PATH + " -c " + CONFIG_PATH + " >>/dev/null 2>&1 &";
-                    String[] command = {
-                        "sh",
-                        "-c",
-                        shellCommand
-                    };
-                    
-                    // 设置环境变量，包含目标目录
-                    String[] env = {
-                        "LD_LIBRARY_PATH=" + TARGET_DIR
-                    };
-                    
-                    logManager.d("FrpcDaemonService", "使用nohup启动libfrpc.so: " + shellCommand);
-                    
-                    // 使用Shizuku执行命令
-                    ShizukuRemoteProcess shizukuProcess = ShizukuHelper.newProcess(command, env, TARGET_DIR);
-                    
-                    // 关闭输入输出流
-                    shizukuProcess.getInputStream().close();
-                    shizukuProcess.getErrorStream().close();
-                    shizukuProcess.getOutputStream().close();
-                    
-                    // 等待命令执行完成
-                    int exitCode = shizukuProcess.waitFor();
+                if (frpcFilesExist()) {
+                    // 由监视器以nohup启动frpc并等待其退出，退出时立即收到通知
+                    String script = FrpcWatcher.buildScript(TARGET_DIR, FRPC_PATH, CONFIG_PATH);
+                    FrpcStatusEngine.getInstance(this).invalidate();
+                    frpcStartTime = System.currentTimeMillis();
+                    logManager.d("FrpcDaemonService", "通过Shizuku启动libfrpc.so并监视: " + script);
+                    frpcWatcher = FrpcWatcher.startWithShizuku(this, script, watcherCallback);
                     
                     String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
                     logManager.d("FrpcDaemonService", timestamp + " libfrpc.so已通过nohup启动");
-                    logManager.d("FrpcDaemonService", "启动命令退出码: " + exitCode);
-                    
-                    // 检查进程是否真的启动成功
-                    new Thread(() -> {
-                        try {
-                            // 等待2秒，让frpc进程有时间启动
-                            Thread.sleep(2000);
-                            String[] checkNewProcessCommand = {"sh", "-c", "ps -A | grep libfrpc | grep -v grep"};
-                            ShizukuRemoteProcess newCheckProcess = ShizukuHelper.newProcess(checkNewProcessCommand, null, null);
-                            
-                            BufferedReader newReader = new BufferedReader(new InputStreamReader(newCheckProcess.getInputStream()));
-                            String newResult = newReader.readLine();
-                            newReader.close();
-                            newCheckProcess.waitFor();
-                            
-                            boolean newProcessRunning = newResult != null && !newResult.trim().isEmpty();
-                            logManager.d("FrpcDaemonService", "nohup启动后检查libfrpc进程状态: " + newProcessRunning);
-                            if (newProcessRunning) {
-                                // 获取PID（简单分割，取第二个字段）
-                                String pid = "未知";
-                                if (newResult != null) {
-                                    String[] parts = newResult.split(" ");
-                                    for (String part : parts) {
-                                        if (!part.isEmpty()) {
-                                            pid = part;
-                                            break;
-                                        }
-                                    }
-                                }
-                                logManager.d("FrpcDaemonService", "libfrpc进程启动成功，PID: " + pid);
-                            } else {
-                                logManager.e("FrpcDaemonService", "使用nohup启动libfrpc.so失败，系统中没有检测到进程");
-                            }
-                        } catch (Exception e) {
-                            logManager.e("FrpcDaemonService", "检查nohup启动状态时发生错误: " + e.getMessage(), e);
-                        }
-                    }).start();
-                } else {
-                    logManager.e("FrpcDaemonService", "libfrpc.so或frpc.toml文件不存在，无法启动进程");
                 }
             } else {
-                // 获取PID（简单分割，取第一个非空字段）
-                String pid = "未知";
-                String[] parts = result.split(" ");
-                for (String part : parts) {
-                    if (!part.isEmpty()) {
-                        pid = part;
-                        break;
-                    }
-                }
+                String pid = status.pid > 0 ? String.valueOf(status.pid) : "未知";
                 logManager.d("FrpcDaemonService", "libfrpc进程正在运行，PID: " + pid);
             }
             
@@ -300,6 +248,141 @@ public class FrpcDaemonService extends Service {
         }
     }
     
+    /**
+     * ADB模式下检查并启动libfrpc
+     * 检测和启动都要经过ADB连接，可能阻塞数十秒且不能在主线程访问网络，
+     * 因此在后台线程执行，启动的监视器再交回主线程
+     */
+    private void checkAndManageWithAdb() {
+        adbCheckInProgress = true;
+        new Thread(() -> {
+            FrpcWatcher watcher = null;
+            try {
+                FrpcStatusEngine.Status status = FrpcStatusEngine.getInstance(FrpcDaemonService.this).get(FrpcStatusEngine.DEFAULT_TTL);
+                if (status.isFailed()) {
+                    logManager.e("FrpcDaemonService", "无法通过ADB检测libfrpc进程状态，本次不启动");
+                } else if (status.running) {
+                    String pid = status.pid > 0 ? String.valueOf(status.pid) : "未知";
+                    logManager.d("FrpcDaemonService", "libfrpc进程正在运行，PID: " + pid);
+                } else if (frpcFilesExist()) {
+                    String script = FrpcWatcher.buildScript(TARGET_DIR, FRPC_PATH, CONFIG_PATH);
+                    FrpcStatusEngine.getInstance(FrpcDaemonService.this).invalidate();
+                    frpcStartTime = System.currentTimeMillis();
+                    logManager.d("FrpcDaemonService", "通过ADB启动libfrpc.so并监视: " + script);
+                    watcher = FrpcWatcher.startWithAdb(FrpcDaemonService.this, script, watcherCallback);
+                    
+                    String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
+                    logManager.d("FrpcDaemonService", timestamp + " libfrpc.so已通过nohup启动");
+                }
+            } catch (Exception e) {
+                logManager.e("FrpcDaemonService", "通过ADB检查或启动libfrpc.so失败: " + e.getMessage(), e);
+            }
+            
+            final FrpcWatcher startedWatcher = watcher;
+            checkHandler.post(() -> {
+                adbCheckInProgress = false;
+                if (startedWatcher == null) {
+                    return;
+                }
+                if (isRunning) {
+                    frpcWatcher = startedWatcher;
+                } else {
+                    startedWatcher.stop();
+                }
+            });
+        }, "FrpcDaemonAdbCheck").start();
+    }
+    
+    /**
+     * 检查libfrpc.so和frpc.toml文件是否存在
+     * @return 都存在时返回true
+     */
+    private boolean frpcFilesExist() {
+        boolean libfrpcExists = new File(FRPC_PATH).exists();
+        boolean configExists = new File(CONFIG_PATH).exists();
+        
+        logManager.d("FrpcDaemonService", "libfrpc.so存在: " + libfrpcExists + ", frpc.toml存在: " + configExists);
+        if (!libfrpcExists || !configExists) {
+            logManager.e("FrpcDaemonService", "libfrpc.so或frpc.toml文件不存在，无法启动进程");
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * frpc监视器回调，在监视线程中调用，统一转到主线程处理
+     */
+    private final FrpcWatcher.Callback watcherCallback = new FrpcWatcher.Callback() {
+        @Override
+        public void onStarted(int pid) {
+            checkHandler.post(() -> {
+                logManager.d("FrpcDaemonService", "libfrpc进程启动成功，PID: " + pid + "，停止定时检查，等待其退出");
+                FrpcStatusEngine engine = FrpcStatusEngine.getInstance(FrpcDaemonService.this);
+                engine.setWatched(true);
+                engine.report(true);
+                // 退出时会立即收到通知，不再需要定时检查
+                checkHandler.removeCallbacks(checkRunnable);
+            });
+        }
+        
+        @Override
+        public void onExited(int exitCode) {
+            checkHandler.post(() -> handleFrpcExit(exitCode));
+        }
+        
+        @Override
+        public void onLost(Exception error) {
+            checkHandler.post(() -> {
+                logManager.e("FrpcDaemonService", "libfrpc监视器意外结束，恢复定时检查");
+                frpcWatcher = null;
+                FrpcStatusEngine engine = FrpcStatusEngine.getInstance(FrpcDaemonService.this);
+                engine.setWatched(false);
+                engine.invalidate();
+                if (isRunning) {
+                    checkHandler.removeCallbacks(checkRunnable);
+                    checkHandler.post(checkRunnable);
+                }
+            });
+        }
+    };
+    
+    /**
+     * 处理frpc退出：立即重启，短时间内反复退出时逐步延长重启间隔
+     * @param exitCode 退出码
+     */
+    private void handleFrpcExit(int exitCode) {
+        frpcWatcher = null;
+        FrpcStatusEngine engine = FrpcStatusEngine.getInstance(this);
+        engine.setWatched(false);
+        engine.report(false);
+        
+        long uptime = System.currentTimeMillis() - frpcStartTime;
+        logManager.e("FrpcDaemonService", "libfrpc进程已退出，退出码: " + exitCode + "，运行了" + uptime + "毫秒");
+        if (!isRunning) {
+            return;
+        }
+        
+        if (uptime < MIN_UPTIME) {
+            restartDelay = restartDelay == 0 ? MIN_RESTART_DELAY : Math.min(restartDelay * 2, MAX_RESTART_DELAY);
+        } else {
+            restartDelay = 0;
+        }
+        logManager.d("FrpcDaemonService", restartDelay == 0 ? "立即重启libfrpc进程" : restartDelay + "毫秒后重启libfrpc进程");
+        checkHandler.removeCallbacks(checkRunnable);
+        checkHandler.postDelayed(checkRunnable, restartDelay);
+    }
+    
+    /**
+     * 停止frpc监视器，frpc进程继续运行
+     */
+    private void stopFrpcWatcher() {
+        if (frpcWatcher != null) {
+            frpcWatcher.stop();
+            frpcWatcher = null;
+        }
+        FrpcStatusEngine.getInstance(this).setWatched(false);
+    }
+    
     /**
      * 停止守护进程服务
      */
@@ -309,6 +392,7 @@ public class FrpcDaemonService extends Service {
         // 移除定时检查
         checkHandler.removeCallbacks(checkRunnable);
         isRunning = false;
+        stopFrpcWatcher();
         
         // 停止前台服务
         stopForeground(true);
@@ -340,6 +424,7 @@ public class FrpcDaemonService extends Service {
         logManager.d("FrpcDaemonService", "守护进程服务已销毁");
         isRunning = false;
         checkHandler.removeCallbacks(checkRunnable);
+        stopFrpcWatcher();
     }
     
     @Nullable
@@ -348,4 +433,4 @@ public class FrpcDaemonService extends Service {
         // 不支持绑定
         return null;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
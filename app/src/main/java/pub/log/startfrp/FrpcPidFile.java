@@ -0,0 +1,322 @@
+package pub.log.startfrp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import pub.log.startfrp.adblib.AdbShellResult;
+import pub.log.startfrp.lib.adb.AdbManager;
+import rikka.shizuku.Shizuku;
+import rikka.shizuku.ShizukuRemoteProcess;
+
+/**
+ * frpc进程记录文件
+ * 启动frpc时记录其PID和/proc/<pid>/stat中的启动时间（第22个字段），
+ * 检测进程状态时只需读取一次/proc/<pid>/stat，启动时间不一致说明PID已被其他进程复用
+ * 记录保存在应用私有目录，各服务进程共用；没有记录时由调用方回退到扫描进程列表
+ * @author BY YYX
+ */
+public class FrpcPidFile {
+    private static final String TAG = "FrpcPidFile";
+    private static final String FILE_NAME = "frpc.pid";
+
+    /** 应用内直接启动，进程属于应用自身 */
+    public static final String MODE_DIRECT = "direct";
+    /** 通过Shizuku启动 */
+    public static final String MODE_SHIZUKU = "shizuku";
+    /** 通过ADB启动 */
+    public static final String MODE_ADB = "adb";
+
+    /** /proc/<pid>/stat中comm字段之后，starttime所在的下标（第22个字段） */
+    private static final int STAT_START_TIME_INDEX = 22 - 3;
+
+    /**
+     * 一条进程记录
+     */
+    public static class Record {
+        public final int pid;
+        public final long startTime;
+        public final String mode;
+
+        public Record(int pid, long startTime, String mode) {
+            this.pid = pid;
+            this.startTime = startTime;
+            this.mode = mode;
+        }
+
+        @Override
+        public String toString() {
+            return "PID=" + pid + ", 启动时间=" + startTime + ", 模式=" + mode;
+        }
+    }
+
+    /**
+     * 在后台启动命令之后追加输出PID和stat的命令
+     * nohup直接exec目标程序，$!即为frpc的PID，启动时间在fork时确定，exec前读取也不受影响
+     * @param backgroundCommand 以&结尾的后台启动命令
+     * @return 启动后依次输出PID和/proc/<pid>/stat的命令
+     */
+    public static String withPidReport(String backgroundCommand) {
+        return backgroundCommand + " echo $!; cat /proc/$!/stat";
+    }
+
+    /**
+     * 解析{@link #withPidReport(String)}命令的输出并保存记录
+     * @param context 上下文
+     * @param output 命令的标准输出
+     * @param mode 启动模式
+     * @return 保存的记录，输出无法解析时返回null
+     */
+    public static Record saveLaunchOutput(Context context, String output, String mode) {
+        Record record = null;
+        if (output != null) {
+            String[] lines = output.trim().split("\\r?\\n", 2);
+            if (lines.length == 2) {
+                try {
+                    int pid = Integer.parseInt(lines[0].trim());
+                    long startTime = parseStartTime(lines[1]);
+                    if (pid > 0 && startTime >= 0) {
+                        record = new Record(pid, startTime, mode);
+                    }
+                } catch (NumberFormatException e) {
+                    // 输出格式不对，按没有记录处理
+                }
+            }
+        }
+
+        if (record == null) {
+            clear(context);
+            Log.e(TAG, "无法从启动输出中解析frpc进程记录: " + output);
+            LogManager.getInstance(context).e(TAG, "无法从启动输出中解析frpc进程记录: " + output);
+            return null;
+        }
+        save(context, record);
+        return record;
+    }
+
+    /**
+     * 从进程标准输出读取sh输出的PID行，用于应用内直接启动
+     * 逐字节读取，不缓冲后续输出，读取后的流可以继续交给日志线程
+     * @param inputStream 进程标准输出
+     * @return PID，读取失败时返回-1
+     * @throws IOException 读取失败
+     */
+    public static int readPidLine(InputStream inputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = inputStream.read()) != -1 && c != '\n') {
+            line.append((char) c);
+        }
+        try {
+            return Integer.parseInt(line.toString().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 记录应用内直接启动的进程，启动时间直接从/proc读取
+     * @param context 上下文
+     * @param pid 进程PID
+     * @return 保存的记录，读取失败时返回null
+     */
+    public static Record saveDirect(Context context, int pid) {
+        if (pid > 0) {
+            try {
+                String stat = readLocalStat(pid);
+                long startTime = stat != null ? parseStartTime(stat) : -1;
+                if (startTime >= 0) {
+                    Record record = new Record(pid, startTime, MODE_DIRECT);
+                    save(context, record);
+                    return record;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "读取进程启动时间失败: " + e.getMessage(), e);
+            }
+        }
+        clear(context);
+        LogManager.getInstance(context).e(TAG, "无法记录frpc进程，PID: " + pid);
+        return null;
+    }
+
+    /**
+     * 检查记录的frpc进程是否仍在运行
+     * 进程不存在或启动时间不一致时删除记录
+     * @param context 上下文
+     * @return 运行中返回TRUE，已退出返回FALSE，没有记录或无法检查时返回null
+     */
+    public static Boolean checkAlive(Context context) {
+        Record record = load(context);
+        if (record == null) {
+            return null;
+        }
+
+        String stat;
+        try {
+            stat = readStat(record);
+        } catch (Exception e) {
+            Log.e(TAG, "读取frpc进程状态失败: " + e.getMessage());
+            return null;
+        }
+
+        if (stat == null) {
+            Log.d(TAG, "记录的frpc进程已退出: " + record);
+            LogManager.getInstance(context).d(TAG, "记录的frpc进程已退出: " + record);
+            clear(context);
+            return Boolean.FALSE;
+        }
+        long startTime = parseStartTime(stat);
+        if (startTime != record.startTime) {
+            Log.d(TAG, "PID已被其他进程复用，实际启动时间: " + startTime + ", 记录: " + record);
+            LogManager.getInstance(context).d(TAG, "PID已被其他进程复用，实际启动时间: " + startTime + ", 记录: " + record);
+            clear(context);
+            return Boolean.FALSE;
+        }
+
+        Log.d(TAG, "记录的frpc进程正在运行: " + record);
+        return Boolean.TRUE;
+    }
+
+    /**
+     * 读取记录
+     * @param context 上下文
+     * @return 记录，不存在或格式错误时返回null
+     */
+    public static Record load(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(readFully(new FileInputStream(file))).trim().split("\\s+");
+            if (parts.length == 3) {
+                return new Record(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), parts[2]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "读取frpc进程记录失败: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * 保存记录，先写临时文件再重命名，避免其他进程读到写了一半的内容
+     * @param context 上下文
+     * @param record 记录
+     */
+    public static void save(Context context, Record record) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File temp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write((record.pid + " " + record.startTime + " " + record.mode + "\n").getBytes());
+        } catch (IOException e) {
+            Log.e(TAG, "保存frpc进程记录失败: " + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "保存frpc进程记录失败: " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "保存frpc进程记录失败: 重命名失败");
+            return;
+        }
+        Log.d(TAG, "已记录frpc进程: " + record);
+        LogManager.getInstance(context).d(TAG, "已记录frpc进程: " + record);
+    }
+
+    /**
+     * 删除记录
+     * @param context 上下文
+     */
+    public static void clear(Context context) {
+        new File(context.getFilesDir(), FILE_NAME).delete();
+    }
+
+    /**
+     * 从/proc/<pid>/stat中解析启动时间
+     * comm字段可能包含空格和括号，从最后一个')'之后开始分割
+     * @param stat stat文件内容
+     * @return 启动时间（时钟周期），解析失败时返回-1
+     */
+    public static long parseStartTime(String stat) {
+        int end = stat.lastIndexOf(')');
+        if (end < 0) {
+            return -1;
+        }
+        String[] fields = stat.substring(end + 1).trim().split("\\s+");
+        if (fields.length <= STAT_START_TIME_INDEX) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fields[STAT_START_TIME_INDEX]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 按记录的启动模式读取/proc/<pid>/stat
+     * Shizuku和ADB模式下进程不属于应用，需要以对应身份读取，都只执行一个cat，不经过sh
+     * @return stat内容，进程不存在时返回null
+     * @throws IOException 无法检查
+     * @throws InterruptedException 等待命令结束时被中断
+     */
+    private static String readStat(Record record) throws IOException, InterruptedException {
+        String path = "/proc/" + record.pid + "/stat";
+        if (MODE_SHIZUKU.equals(record.mode)) {
+            if (!Shizuku.pingBinder()) {
+                throw new IOException("Shizuku不可用");
+            }
+            ShizukuRemoteProcess process = ShizukuHelper.newProcess(new String[]{"cat", path}, null, null);
+            process.getOutputStream().close();
+            process.getErrorStream().close();
+            String stat = new String(readFully(process.getInputStream()));
+            return process.waitFor() == 0 ? stat : null;
+        } else if (MODE_ADB.equals(record.mode)) {
+            return statFromAdbResult(AdbManager.getInstance().executeShell("cat " + path));
+        } else {
+            return readLocalStat(record.pid);
+        }
+    }
+
+    /**
+     * 解析ADB执行cat的结果
+     * 超时或连接断开时命令没有返回退出码，此时无法判断进程是否存在，不能当作已退出
+     * @param result ADB命令结果
+     * @return stat内容，cat正常结束但失败（进程不存在）时返回null
+     * @throws IOException 命令没有执行完成，无法检查
+     */
+    static String statFromAdbResult(AdbShellResult result) throws IOException {
+        if (result == null) {
+            throw new IOException("ADB命令执行失败");
+        }
+        if (!result.isExited()) {
+            throw new IOException("ADB命令没有返回退出码: " + result);
+        }
+        return result.isSuccess() ? result.getStdout() : null;
+    }
+
+    private static String readLocalStat(int pid) throws IOException {
+        try {
+            return new String(readFully(new FileInputStream("/proc/" + pid + "/stat")));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        try (InputStream in = inputStream) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[512];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        }
+    }
+}
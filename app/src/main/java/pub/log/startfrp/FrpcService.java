@@ -34,6 +34,7 @@ import java.io.FileNotFoundException;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
@@ -49,6 +50,8 @@ import androidx.core.app.NotificationCompat;
 import rikka.shizuku.Shizuku;
 import rikka.shizuku.ShizukuRemoteProcess;
 
+import pub.log.startfrp.adblib.AdbShellResult;
+import pub.log.startfrp.adblib.AdbSyncClient;
 import pub.log.startfrp.lib.adb.AdbManager;
 
 /**
@@ -326,166 +329,27 @@ private boolean useShizuku = false;
     
     /**
      * 检查系统中是否有libfrpc.so进程在运行
-     * 使用ShizukuHelper执行命令来避免SELinux限制
+     * 从状态引擎获取，缓存有效时直接使用，过期时由状态引擎检测一次
      */
     private boolean isFRPRunningInSystem() {
-        boolean found = false;
-        
         // 注意：不先检查内部状态，而是直接检测系统中是否真的有进程在运行
         // 这样可以确保即使内部状态与实际状态不一致，也能正确检测
-        
-        // 尝试使用Shizuku执行命令检测进程
-        if (useShizuku && Shizuku.pingBinder()) {
-            try {
-                String checkCommand = "ps -A | grep libfrpc | grep -v grep";
-                String[] command = {"sh", "-c", checkCommand};
-                
-                Log.d("StartFRP", "使用ShizukuHelper执行进程检测命令: " + checkCommand);
-                
-                // 使用ShizukuHelper调用Shizuku的newProcess方法
-                ShizukuRemoteProcess process = ShizukuHelper.newProcess(command, null, null);
-                InputStream inputStream = process.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String trimmedLine = line.trim();
-                    // 过滤空行和命令行
-                    if (trimmedLine.isEmpty() || trimmedLine.contains("ps -A") || trimmedLine.contains("grep libfrpc")) {
-                        continue;
-                    }
-                    // 检查是否包含进程信息
-                    if (trimmedLine.contains("libfrpc") && trimmedLine.matches(".*\\s+\\d+\\s+.*")) {
-                        Log.d("StartFRP", "Shizuku检测到frpc进程: " + trimmedLine);
-                        found = true;
-                        break;
-                    }
-                }
-                
-                reader.close();
-                inputStream.close();
-                
-                int exitCode = process.waitFor();
-                Log.d("StartFRP", "Shizuku命令执行完成，退出码: " + exitCode);
-                
-            } catch (Exception e) {
-                Log.e("StartFRP", "Shizuku检测进程失败: " + e.getMessage(), e);
-            }
-        } 
-        // 当使用ADB时，通过ADB执行命令检测进程
-        else if (useAdb) {
-            try {
-                AdbManager adbManager = AdbManager.getInstance();
-                String checkCommand = "ps -A | grep libfrpc | grep -v grep";
-                Log.d("StartFRP", "使用ADB执行进程检测命令: " + checkCommand);
-                
-                String result = adbManager.executeCommand(checkCommand);
-                Log.d("StartFRP", "ADB检测进程结果: " + (result != null ? result : "无结果"));
-                
-                // 检查结果中是否包含libfrpc
-                if (result != null && parseAdbProcessOutput(result)) {
-                    Log.d("StartFRP", "ADB方式检测到frpc进程");
-                    found = true;
-                } else {
-                    Log.d("StartFRP", "ADB方式未检测到frpc进程");
-                }
-            } catch (Exception e) {
-                Log.e("StartFRP", "ADB检测进程失败: " + e.getMessage(), e);
-            }
-        }
-        // 默认方式：使用Runtime.exec()执行命令检测进程
-        else {
-            try {
-                String checkCommand = "ps -A | grep libfrpc | grep -v grep";
-                Log.d("StartFRP", "使用默认方式执行进程检测命令: " + checkCommand);
-                
-                // 使用Runtime.exec执行命令
-                Process process = Runtime.getRuntime().exec("sh -c " + checkCommand);
-                InputStream inputStream = process.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String trimmedLine = line.trim();
-                    // 过滤空行和命令行
-                    if (trimmedLine.isEmpty() || trimmedLine.contains("ps -A") || trimmedLine.contains("grep libfrpc")) {
-                        continue;
-                    }
-                    // 检查是否包含进程信息
-                    if (trimmedLine.contains("libfrpc") && trimmedLine.matches(".*\\s+\\d+\\s+.*")) {
-                        Log.d("StartFRP", "默认方式检测到frpc进程: " + trimmedLine);
-                        found = true;
-                        break;
-                    }
-                }
-                
-                reader.close();
-                inputStream.close();
-                
-                int exitCode = process.waitFor();
-                Log.d("StartFRP", "默认方式命令执行完成，退出码: " + exitCode);
-                
-            } catch (Exception e) {
-                Log.e("StartFRP", "默认方式检测进程失败: " + e.getMessage(), e);
-            }
-        }
+        FrpcStatusEngine.Status status = FrpcStatusEngine.getInstance(this).get(FrpcStatusEngine.DEFAULT_TTL);
+        boolean found = status.running;
         
         // 如果检测到进程在运行，更新内部状态
         if (found) {
             isRunning = true;
             // 发送状态更新广播
             sendStatusUpdateBroadcast(true);
-            Log.d("StartFRP", "成功检测到frpc进程正在运行");
+            Log.d("StartFRP", "成功检测到frpc进程正在运行: " + status);
         } else {
-            Log.d("StartFRP", "未发现运行中的frpc进程");
+            Log.d("StartFRP", "未发现运行中的frpc进程: " + status);
         }
         
         return found;
     }
     
-    /**
-     * 解析ADB进程输出，过滤误判
-     * @param output ADB命令输出
-     * @return 是否检测到真实进程
-     */
-    private boolean parseAdbProcessOutput(String output) {
-        if (output == null || output.trim().isEmpty()) {
-            return false;
-        }
-        
-        // 分割输出为行
-        String[] lines = output.split("\\r?\\n");
-        
-        for (String line : lines) {
-            String trimmedLine = line.trim();
-            
-            // 过滤空行
-            if (trimmedLine.isEmpty()) {
-                continue;
-            }
-            
-            // 过滤命令行
-            if (trimmedLine.contains("ps -A") || trimmedLine.contains("grep libfrpc")) {
-                continue;
-            }
-            
-            // 过滤提示符
-            if (trimmedLine.contains("$") && trimmedLine.trim().endsWith("$")) {
-                continue;
-            }
-            if (trimmedLine.contains("#") && trimmedLine.trim().endsWith("#")) {
-                continue;
-            }
-            
-            // 检查是否包含进程信息
-            if (trimmedLine.contains("libfrpc") && trimmedLine.matches(".*\\s+\\d+\\s+.*")) {
-                return true;
-            }
-        }
-        
-        return false;
-    }
-    
     /**
      * 发送状态更新广播
      */
@@ -798,9 +662,9 @@ private boolean useShizuku = false;
                 // 使用ADB执行FRP
                 startFRPWithAdb(frpcPath, configFile.getAbsolutePath(), frpDir, nativeLibDir);
             } else {
-                // 直接使用ProcessBuilder启动frpc进程，不通过shell
+                // 通过sh先输出自身PID再exec frpc，PID保持不变，参数原样传递不经过shell解析
                 ProcessBuilder processBuilder = new ProcessBuilder();
-                processBuilder.command(frpcPath, "-c", configFile.getAbsolutePath());
+                processBuilder.command("sh", "-c", "echo $$; exec \"$0\" \"$@\"", frpcPath, "-c", configFile.getAbsolutePath());
                 processBuilder.directory(new File(frpDir));
                 // 设置环境变量，确保FRP能正常运行
                 processBuilder.environment().put("LD_LIBRARY_PATH", nativeLibDir);
@@ -809,6 +673,8 @@ private boolean useShizuku = false;
                 sendLogUpdate(envMsg);
                 
                 frpcProcess = processBuilder.start();
+                FrpcPidFile.saveDirect(this, FrpcPidFile.readPidLine(frpcProcess.getInputStream()));
+                FrpcStatusEngine.getInstance(this).invalidate();
                 isRunning = true;
                 String frpcStartMsg = timestamp + " frpc进程启动成功";
                 Log.d("StartFRP", frpcStartMsg);
@@ -844,6 +710,8 @@ private boolean useShizuku = false;
                         String endMsg = endTimestamp + " FRP进程已结束，退出码: " + exitCode;
                         Log.d("StartFRP", endMsg);
                         sendLogUpdate(endMsg);
+                        FrpcPidFile.clear(FrpcService.this);
+                        FrpcStatusEngine.getInstance(FrpcService.this).report(false);
                         isRunning = false;
                         frpcProcess = null;
                         
@@ -1079,6 +947,10 @@ private boolean useShizuku = false;
             Log.e("StartFRP", "使用AdbManager停止进程时发生错误: " + e.getMessage(), e);
         }
         
+        // 进程已停止，删除进程记录并通知状态引擎
+        FrpcPidFile.clear(this);
+        FrpcStatusEngine.getInstance(this).report(false);
+        
         // 更新状态
         Log.d("StartFRP", "更新服务状态为停止");
         isRunning = false;
@@ -1282,7 +1154,8 @@ private boolean useShizuku = false;
             
             
             // 使用shell执行命令并添加nohup，确保进程在后台运行
-            String shellCommand = "nohup " + targetFrpcPath + " -c " + targetConfigPath + " >>/dev/null 2>&1 &";
+            // 启动后输出frpc的PID和stat，用于记录进程
+            String shellCommand = FrpcPidFile.withPidReport("nohup " + targetFrpcPath + " -c " + targetConfigPath + " >>/dev/null 2>&1 &");
             String[] command = {
                 "sh",
                 "-c",
@@ -1332,11 +1205,18 @@ private boolean useShizuku = false;
             sendBroadcast(broadcastIntent);
             Log.d("StartFRP", "已发送服务启动广播");
 
-            // 使用nohup启动后，shell会立即返回，所以不需要读取输出或等待进程结束
-            // 关闭输入流，因为我们不需要读取输出
-            shizukuProcess.getInputStream().close();
-            shizukuProcess.getErrorStream().close();
+            // 使用nohup启动后，shell输出PID和stat后会立即返回，读取输出记录frpc进程
             shizukuProcess.getOutputStream().close();
+            shizukuProcess.getErrorStream().close();
+            BufferedReader launchReader = new BufferedReader(new InputStreamReader(shizukuProcess.getInputStream()));
+            StringBuilder launchOutput = new StringBuilder();
+            String launchLine;
+            while ((launchLine = launchReader.readLine()) != null) {
+                launchOutput.append(launchLine).append("\n");
+            }
+            launchReader.close();
+            FrpcPidFile.saveLaunchOutput(this, launchOutput.toString(), FrpcPidFile.MODE_SHIZUKU);
+            FrpcStatusEngine.getInstance(this).invalidate();
             
             // 重置frpcProcess引用，因为shell进程已经结束，我们将依靠定期检查来监控frpc进程
             frpcProcess = null;
@@ -1375,6 +1255,72 @@ private boolean useShizuku = false;
         }
     }
     
+    /**
+     * 通过ADB sync服务把frpc及其配置部署到目标目录
+     * 设备上已有大小和修改时间相同的文件时跳过，libfrpc.so以0755权限写入
+     * @param adbManager ADB管理器，需已连接
+     * @param frpcPath 应用内的libfrpc.so路径
+     * @param configPath 应用内的frpc.toml路径
+     * @param workingDir 应用内的FRP目录，其中的证书和密钥一并部署
+     * @param targetDir 设备上的目标目录
+     * @throws IOException libfrpc.so或frpc.toml部署失败
+     */
+    private void deployFilesWithAdb(AdbManager adbManager, String frpcPath, String configPath,
+                                    String workingDir, String targetDir) throws IOException {
+        String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
+
+        List<File> files = new ArrayList<>();
+        files.add(new File(frpcPath));
+        files.add(new File(configPath));
+        File[] certFiles = new File(workingDir).listFiles((dir, name) -> name.endsWith(".crt") || name.endsWith(".key"));
+        if (certFiles != null) {
+            files.addAll(Arrays.asList(certFiles));
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            File source = files.get(i);
+            // 前两个是必要文件，部署失败时无法启动
+            boolean required = i < 2;
+            String targetName = i == 0 ? "libfrpc.so" : source.getName();
+            String targetPath = targetDir + targetName;
+            int mode = i == 0 ? 0755 : 0644;
+
+            if (!source.exists()) {
+                String errorMsg = timestamp + " 错误: 源文件不存在: " + source.getAbsolutePath();
+                Log.e("StartFRP", errorMsg);
+                sendLogUpdate(errorMsg);
+                if (required) {
+                    throw new FileNotFoundException("源文件不存在: " + source.getAbsolutePath());
+                }
+                continue;
+            }
+
+            AdbSyncClient.FileStat stat = adbManager.statFile(targetPath);
+            if (stat != null && stat.isRegularFile() && stat.size == source.length()
+                    && stat.mtime == source.lastModified() / 1000 && stat.getPermissions() == mode) {
+                String skipMsg = timestamp + " " + targetName + " 未变化，跳过部署";
+                Log.d("StartFRP", skipMsg);
+                sendLogUpdate(skipMsg);
+                continue;
+            }
+
+            String pushMsg = timestamp + " 通过ADB部署 " + targetName + "（" + source.length() + " 字节）";
+            Log.d("StartFRP", pushMsg);
+            sendLogUpdate(pushMsg);
+            if (adbManager.pushFile(source, targetPath, mode)) {
+                String okMsg = timestamp + " 部署 " + targetName + " 成功";
+                Log.d("StartFRP", okMsg);
+                sendLogUpdate(okMsg);
+            } else {
+                String errorMsg = timestamp + " 部署 " + targetName + " 失败";
+                Log.e("StartFRP", errorMsg);
+                sendLogUpdate(errorMsg);
+                if (required) {
+                    throw new IOException("通过ADB部署" + targetName + "失败");
+                }
+            }
+        }
+    }
     /**
      * 使用ADB执行FRP
      */
@@ -1397,21 +1343,6 @@ private boolean useShizuku = false;
             String targetFrpcPath = targetDir + "libfrpc.so";
             String targetConfigPath = targetDir + "frpc.toml";
             
-            // 检查源文件是否存在
-            File sourceFrpcFile = new File(targetFrpcPath);
-            File sourceConfigFile = new File(targetConfigPath);
-            
-            String checkSourceMsg = timestamp + " 检查源文件: libfrpc.so=" + sourceFrpcFile.exists() + ", frpc.toml=" + sourceConfigFile.exists();
-            Log.d("StartFRP", checkSourceMsg);
-            sendLogUpdate(checkSourceMsg);
-            
-            if (!sourceFrpcFile.exists() || !sourceConfigFile.exists()) {
-                String errorMsg = timestamp + " 错误: 必要文件不存在，请手动点击'安装Shizuku'按钮进行安装";
-                Log.e("StartFRP", errorMsg);
-                sendLogUpdate(errorMsg);
-                throw new FileNotFoundException("必要文件不存在，请手动点击'安装Shizuku'按钮进行安装");
-            }
-            
             // 确保目标目录存在
             AdbManager adbManager = AdbManager.getInstance();
             
@@ -1419,64 +1350,26 @@ private boolean useShizuku = false;
             sendLogUpdate(timestamp + " 检查ADB连接状态...");
             sendLogUpdate(timestamp + " 开始连接ADB服务器...");
             
-            // 直接实现连接尝试和日志显示，确保详细日志能够正确显示
-            boolean connected = false;
-            String ADB_HOST = "localhost";
-            int ADB_PORT = 5555;
-            
-            // 尝试连接3次
-            for (int i = 0; i < 3; i++) {
-                String attemptTimestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                String logMsg = attemptTimestamp + " 尝试连接ADB服务器，第" + (i + 1) + "次: " + ADB_HOST + ":" + ADB_PORT;
-                Log.d("StartFRP", logMsg);
-                sendLogUpdate(logMsg);
-                
-                try {
-                    // 直接尝试连接
-                    Log.d("StartFRP", "调用adbManager.connect()");
-                    connected = adbManager.connect();
-                    Log.d("StartFRP", "adbManager.connect()返回: " + connected);
-                    
-                    if (connected) {
-                        String successTimestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                        String successMsg = successTimestamp + " ADB连接成功";
-                        Log.d("StartFRP", successMsg);
-                        sendLogUpdate(successMsg);
-                        break;
-                    } else {
-                        String errorTimestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                        String errorMsg = errorTimestamp + " ADB连接失败，第" + (i + 1) + "次：Connection refused";
-                        Log.d("StartFRP", errorMsg);
-                        sendLogUpdate(errorMsg);
-                        // 等待1秒后重试
-                        Log.d("StartFRP", "等待1秒后重试");
-                        Thread.sleep(1000);
-                    }
-                } catch (Exception e) {
-                    String errorTimestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    String errorMsg = errorTimestamp + " ADB连接失败，第" + (i + 1) + "次：" + e.getMessage();
-                    Log.e("StartFRP", errorMsg, e);
-                    sendLogUpdate(errorMsg);
-                    try {
-                        Log.d("StartFRP", "等待1秒后重试");
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
+            // 重试和退避由AdbManager的重连调度器统一处理，adbd拒绝连接时立即返回
+            boolean connected = adbManager.connect();
+            if (connected) {
+                String successTimestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
+                String successMsg = successTimestamp + " ADB连接成功";
+                Log.d("StartFRP", successMsg);
+                sendLogUpdate(successMsg);
             }
             
             // 显示最终连接结果
             if (!connected) {
                 String finalTimestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                String failMsg1 = finalTimestamp + " ADB连接失败，已尝试3次";
-                String failMsg2 = finalTimestamp + " ADB连接失败，请确保无线ADB已开启";
-                Log.d("StartFRP", failMsg1);
-                Log.d("StartFRP", failMsg2);
-                sendLogUpdate(failMsg1);
-                sendLogUpdate(failMsg2);
+                String failMsg = finalTimestamp + " ADB连接失败，请确保无线ADB已开启";
+                Log.d("StartFRP", failMsg);
+                sendLogUpdate(failMsg);
                 throw new IOException("ADB连接失败，请确保无线ADB已开启");
             }
+
+            // 通过ADB sync服务部署libfrpc.so和配置文件，只需要ADB权限
+            deployFilesWithAdb(adbManager, frpcPath, configPath, workingDir, targetDir);
             
       
             
@@ -1495,17 +1388,21 @@ private boolean useShizuku = false;
             
             // 使用shell执行命令并添加nohup，确保进程在后台运行
             // 与Shizuku模式保持一致的命令格式，但指定工作目录
-            String shellCommand = "cd " + targetDir + "; " + envCommand + " nohup " + targetFrpcPath + " -c " + targetConfigPath + " >>/dev/null 2>&1 &";
+            // 启动后输出frpc的PID和stat，用于记录进程
+            String shellCommand = FrpcPidFile.withPidReport("cd " + targetDir + "; " + envCommand + " nohup " + targetFrpcPath + " -c " + targetConfigPath + " >>/dev/null 2>&1 &");
             
             Log.d("StartFRP", "ADB执行命令: " + shellCommand);
             sendLogUpdate(timestamp + " ADB执行命令: " + shellCommand);
             Log.d("StartFRP", "工作目录: " + targetDir);
             sendLogUpdate(timestamp + " 工作目录: " + targetDir);
             
-            // 使用AdbManager执行命令
-            String result = adbManager.executeCommand(shellCommand);
+            // 使用AdbManager执行命令，标准输出中是frpc的PID和stat
+            AdbShellResult launchResult = adbManager.executeShell(shellCommand);
+            String result = launchResult != null ? launchResult.getStdout() : null;
             Log.d("StartFRP", "ADB命令执行结果: " + (result != null ? result : "无结果"));
             sendLogUpdate(timestamp + " ADB命令执行结果: " + (result != null ? result : "无结果"));
+            FrpcPidFile.saveLaunchOutput(this, result, FrpcPidFile.MODE_ADB);
+            FrpcStatusEngine.getInstance(this).invalidate();
             
             // 立即设置isRunning为true，与Shizuku模式保持一致
             // 这样当方法返回后，startFRP方法执行到前台服务通知代码时，isRunning就是true
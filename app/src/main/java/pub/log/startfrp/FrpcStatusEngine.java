@@ -0,0 +1,391 @@
+package pub.log.startfrp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import pub.log.startfrp.adblib.AdbShellResult;
+import pub.log.startfrp.lib.adb.AdbManager;
+import rikka.shizuku.Shizuku;
+import rikka.shizuku.ShizukuRemoteProcess;
+
+/**
+ * frpc运行状态引擎
+ * 应用进程内唯一的frpc状态来源，各服务和界面都从这里获取状态：
+ * 有订阅者时按固定间隔检测，缓存最近一次结果及检测时间，
+ * 缓存过期时的并发检测请求合并为一次，状态变化时在主线程通知订阅者
+ * 检测时优先使用启动时的进程记录，没有记录时按用户选择的模式扫描进程列表
+ * frpc由{@link FrpcWatcher}监视时状态由监视器报告，定时检测暂停
+ * @author BY YYX
+ */
+public class FrpcStatusEngine {
+    private static final String TAG = "FrpcStatusEngine";
+
+    /** 有订阅者时的检测间隔，与守护进程的检查间隔一致 */
+    public static final long PROBE_INTERVAL = 10000;
+    /** 缓存结果的默认有效期，比检测间隔略长，定时检测正常时读取方不会自己触发检测 */
+    public static final long DEFAULT_TTL = 15000;
+
+    /** 状态来源：启动时的进程记录 */
+    public static final String SOURCE_RECORD = "record";
+    /** 状态来源：扫描进程列表 */
+    public static final String SOURCE_SCAN = "scan";
+    /** 状态来源：启动或停止时由调用方报告 */
+    public static final String SOURCE_REPORT = "report";
+    /** 状态来源：检测失败（如ADB超时），running为false但不代表进程不存在 */
+    public static final String SOURCE_ERROR = "error";
+
+    /**
+     * 一次检测的结果
+     */
+    public static class Status {
+        public final boolean running;
+        /** frpc的PID，未知时为-1 */
+        public final int pid;
+        /** 检测时间 */
+        public final long timestamp;
+        public final String source;
+
+        public Status(boolean running, int pid, long timestamp, String source) {
+            this.running = running;
+            this.pid = pid;
+            this.timestamp = timestamp;
+            this.source = source;
+        }
+
+        /**
+         * 检测是否失败；决定是否启动frpc时，失败的结果不能当作未运行
+         * @return 检测失败时返回true
+         */
+        public boolean isFailed() {
+            return SOURCE_ERROR.equals(source);
+        }
+
+        /**
+         * @return 距离检测时的毫秒数
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return (running ? "运行中" : "未运行") + ", PID=" + pid + ", 来源=" + source + ", " + getAge() + "毫秒前";
+        }
+    }
+
+    /**
+     * 状态变化监听器，在主线程回调
+     */
+    public interface Listener {
+        void onStatusChanged(Status status);
+    }
+
+    private static FrpcStatusEngine instance;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ScheduledExecutorService executor;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private final ProcScanner scanner;
+
+    private volatile Status current;
+    private volatile boolean invalidated;
+    private volatile boolean watched;
+    private FutureTask<Status> inFlight;
+    private ScheduledFuture<?> schedule;
+    private long probeCount;
+
+    private FrpcStatusEngine(Context context) {
+        this.context = context.getApplicationContext();
+        this.scanner = new ProcScanner(this.context.getApplicationInfo().nativeLibraryDir + "/libfrpc.so");
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "FrpcStatusEngine");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized FrpcStatusEngine getInstance(Context context) {
+        if (instance == null) {
+            instance = new FrpcStatusEngine(context);
+        }
+        return instance;
+    }
+
+    /**
+     * 获取缓存的状态，不触发检测
+     * @return 最近一次的状态，还没有检测过时返回null
+     */
+    public Status getCached() {
+        return current;
+    }
+
+    /**
+     * 获取状态，缓存在有效期内时直接返回，否则检测一次
+     * 会阻塞调用线程，ADB模式下不要在主线程调用
+     * @param maxAge 可接受的缓存最大毫秒数
+     * @return 状态
+     */
+    public Status get(long maxAge) {
+        Status status = current;
+        if (status != null && !invalidated && (watched || status.getAge() <= maxAge)) {
+            return status;
+        }
+        return probe();
+    }
+
+    /**
+     * 立即检测一次；已有检测在进行时等待并共用其结果
+     * @return 状态
+     */
+    public Status probe() {
+        FutureTask<Status> task;
+        boolean owner = false;
+        synchronized (lock) {
+            if (inFlight == null) {
+                inFlight = new FutureTask<>(this::doProbe);
+                owner = true;
+            }
+            task = inFlight;
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (lock) {
+                    inFlight = null;
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "检测frpc状态失败: " + e.getMessage(), e);
+        }
+        Status status = current;
+        return status != null ? status : new Status(false, -1, 0, SOURCE_ERROR);
+    }
+
+    /**
+     * 在后台线程检测一次，结果通过订阅者通知
+     */
+    public void refreshAsync() {
+        executor.execute(this::probe);
+    }
+
+    /**
+     * 使缓存失效，下一次读取时重新检测，用于启动frpc之后
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    /**
+     * 报告已知的状态，如停止frpc之后，直接更新缓存并通知订阅者
+     * @param running 是否运行
+     */
+    public void report(boolean running) {
+        FrpcPidFile.Record record = running ? FrpcPidFile.load(context) : null;
+        update(new Status(running, record != null ? record.pid : -1, System.currentTimeMillis(), SOURCE_REPORT));
+    }
+
+    /**
+     * 设置frpc是否由监视器监视
+     * 监视期间退出事件会立即报告，缓存不会过期，定时检测直接跳过
+     * @param watched 是否监视中
+     */
+    public void setWatched(boolean watched) {
+        this.watched = watched;
+        Log.d(TAG, watched ? "frpc由监视器监视，暂停定时检测" : "frpc监视结束，恢复定时检测");
+    }
+
+    /**
+     * @return frpc是否由监视器监视
+     */
+    public boolean isWatched() {
+        return watched;
+    }
+
+    /**
+     * 添加订阅者，第一个订阅者加入时开始定时检测
+     * 已有缓存状态时立即回调一次
+     * @param listener 监听器
+     */
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+        synchronized (lock) {
+            if (schedule == null) {
+                schedule = executor.scheduleWithFixedDelay(this::scheduledProbe, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+                Log.d(TAG, "开始定时检测frpc状态，间隔" + PROBE_INTERVAL + "毫秒");
+            }
+        }
+        final Status status = current;
+        if (status != null) {
+            mainHandler.post(() -> {
+                if (listeners.contains(listener)) {
+                    listener.onStatusChanged(status);
+                }
+            });
+        }
+    }
+
+    /**
+     * 移除订阅者，最后一个订阅者移除时停止定时检测
+     * @param listener 监听器
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+        synchronized (lock) {
+            if (listeners.isEmpty() && schedule != null) {
+                schedule.cancel(false);
+                schedule = null;
+                Log.d(TAG, "没有订阅者，停止定时检测frpc状态");
+            }
+        }
+    }
+
+    /**
+     * @return 累计执行的检测次数
+     */
+    public long getProbeCount() {
+        synchronized (lock) {
+            return probeCount;
+        }
+    }
+
+    private void scheduledProbe() {
+        if (watched && current != null && !invalidated) {
+            return;
+        }
+        probe();
+    }
+
+    private Status doProbe() {
+        invalidated = false;
+        synchronized (lock) {
+            probeCount++;
+        }
+
+        Status status;
+        Boolean recorded = FrpcPidFile.checkAlive(context);
+        if (recorded != null) {
+            FrpcPidFile.Record record = recorded ? FrpcPidFile.load(context) : null;
+            status = new Status(recorded, record != null ? record.pid : -1, System.currentTimeMillis(), SOURCE_RECORD);
+        } else {
+            try {
+                int pid = scan();
+                status = new Status(pid != -1, pid > 0 ? pid : -1, System.currentTimeMillis(), SOURCE_SCAN);
+            } catch (Exception e) {
+                // 与原来各处的检测一致，界面上按未运行显示；来源标记为失败，启动前需要区分
+                Log.e(TAG, "扫描frpc进程失败: " + e.getMessage(), e);
+                status = new Status(false, -1, System.currentTimeMillis(), SOURCE_ERROR);
+            }
+        }
+
+        update(status);
+        return status;
+    }
+
+    /**
+     * 按用户选择的模式扫描进程列表
+     * @return 找到时返回PID，PID未知时返回0，没有找到返回-1
+     */
+    private int scan() throws Exception {
+        SharedPreferences prefs = context.getSharedPreferences("frp_config", Context.MODE_PRIVATE);
+        boolean useShizuku = prefs.getBoolean("use_shizuku", false);
+        boolean useAdb = prefs.getBoolean("use_adb", false);
+
+        if (useShizuku && Shizuku.pingBinder()) {
+            // 直接执行ps并在应用内过滤，不再经过sh和grep
+            ShizukuRemoteProcess process = ShizukuHelper.newProcess(new String[]{"ps", "-A"}, null, null);
+            process.getOutputStream().close();
+            process.getErrorStream().close();
+            int pid = -1;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (pid == -1) {
+                        pid = parsePsLine(line);
+                    }
+                }
+            }
+            process.waitFor();
+            return pid;
+        } else if (useAdb) {
+            AdbShellResult result = AdbManager.getInstance().executeShell("ps -A | grep libfrpc | grep -v grep");
+            if (result == null || !result.isExited()) {
+                throw new IOException("ADB命令没有执行完成: " + result);
+            }
+            if (!result.isSuccess()) {
+                // grep没有匹配时退出码为1
+                return -1;
+            }
+            for (String line : result.getStdout().split("\\r?\\n")) {
+                int pid = parsePsLine(line);
+                if (pid != -1) {
+                    return pid;
+                }
+            }
+            return -1;
+        } else {
+            ProcScanner.ProcessInfo info = scanner.findFirst();
+            return info != null ? info.pid : -1;
+        }
+    }
+
+    /**
+     * 解析ps -A输出中的一行，第二列为PID
+     * @return 是frpc进程时返回PID，PID无法解析时返回0，不是时返回-1
+     */
+    static int parsePsLine(String line) {
+        String trimmedLine = line.trim();
+        if (!trimmedLine.contains("libfrpc") || trimmedLine.contains("grep")) {
+            return -1;
+        }
+        String[] parts = trimmedLine.split("\\s+");
+        if (parts.length < 2) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void update(final Status status) {
+        Status previous = current;
+        current = status;
+        if (previous != null && previous.running == status.running) {
+            return;
+        }
+
+        Log.d(TAG, "frpc状态变化: " + status);
+        LogManager.getInstance(context).d(TAG, "frpc状态变化: " + status);
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onStatusChanged(status);
+            }
+        });
+    }
+}
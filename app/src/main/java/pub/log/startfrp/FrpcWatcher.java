@@ -0,0 +1,251 @@
+package pub.log.startfrp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pub.log.startfrp.adblib.AdbStream;
+import pub.log.startfrp.adblib.ByteQueueInputStream;
+import pub.log.startfrp.lib.adb.AdbConnectionPool;
+import pub.log.startfrp.lib.adb.AdbManager;
+import rikka.shizuku.ShizukuRemoteProcess;
+
+/**
+ * frpc退出监视器
+ * 以启动frpc的同一身份（Shizuku远程进程或ADB shell）运行一个常驻的sh：
+ * 由它用nohup启动frpc，输出PID和stat后阻塞在wait上，frpc退出时立即输出退出码
+ * 应用侧只阻塞读取这个输出流，没有任何定时检测
+ * 监视的sh被杀死时frpc已由nohup忽略SIGHUP，会继续运行，此时回调onLost，由调用方回退到定时检测
+ * @author BY YYX
+ */
+public class FrpcWatcher {
+    private static final String TAG = "FrpcWatcher";
+    private static final String EXIT_PREFIX = "frpc_exit ";
+
+    /**
+     * 监视事件回调，在监视线程中调用
+     */
+    public interface Callback {
+        /**
+         * frpc已启动，进程记录已保存
+         * @param pid frpc的PID
+         */
+        void onStarted(int pid);
+
+        /**
+         * frpc已退出
+         * @param exitCode 退出码，被信号杀死时为128+信号值
+         */
+        void onExited(int exitCode);
+
+        /**
+         * 监视进程意外结束，frpc可能仍在运行
+         * @param error 原因，可能为null
+         */
+        void onLost(Exception error);
+    }
+
+    /**
+     * 输出流的来源，Shizuku进程的输出会阻塞读取，ADB流需要以等待模式读取
+     */
+    private interface Source {
+        int read(byte[] buffer) throws IOException;
+
+        void close();
+    }
+
+    private final Context context;
+    private final String mode;
+    private final Source source;
+    private final Callback callback;
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    private FrpcWatcher(Context context, String mode, Source source, Callback callback) {
+        this.context = context.getApplicationContext();
+        this.mode = mode;
+        this.source = source;
+        this.callback = callback;
+        this.thread = new Thread(this::run, "FrpcWatcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 生成监视脚本：后台启动frpc，输出PID和stat，等待其退出后输出退出码
+     * @param workingDir 工作目录，同时作为LD_LIBRARY_PATH
+     * @param frpcPath frpc路径
+     * @param configPath 配置文件路径
+     * @return 脚本
+     */
+    public static String buildScript(String workingDir, String frpcPath, String configPath) {
+        return "cd " + workingDir + "; export LD_LIBRARY_PATH=" + workingDir + "; "
+                + "nohup " + frpcPath + " -c " + configPath + " >>/dev/null 2>&1 & "
+                + "pid=$!; echo $pid; cat /proc/$pid/stat; wait $pid; echo \"" + EXIT_PREFIX + "$?\"";
+    }
+
+    /**
+     * 通过Shizuku启动frpc并监视
+     * @param context 上下文
+     * @param script {@link #buildScript(String, String, String)}生成的脚本
+     * @param callback 回调
+     * @return 监视器
+     */
+    public static FrpcWatcher startWithShizuku(Context context, String script, Callback callback) {
+        final ShizukuRemoteProcess process = ShizukuHelper.newProcess(new String[]{"sh", "-c", script}, null, null);
+        try {
+            process.getOutputStream().close();
+            process.getErrorStream().close();
+        } catch (IOException e) {
+            Log.e(TAG, "关闭监视进程输入流失败: " + e.getMessage());
+        }
+
+        final InputStream inputStream = process.getInputStream();
+        FrpcWatcher watcher = new FrpcWatcher(context, FrpcPidFile.MODE_SHIZUKU, new Source() {
+            @Override
+            public int read(byte[] buffer) throws IOException {
+                return inputStream.read(buffer);
+            }
+
+            @Override
+            public void close() {
+                // 只结束监视的sh，frpc由nohup启动，不受影响
+                process.destroy();
+            }
+        }, callback);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    /**
+     * 通过ADB启动frpc并监视
+     * 监视期间一直持有连接池的租约，独占一个连接：借出中的连接不会被空闲探测关闭，
+     * evictAll()也只在归还时才关闭它，因此只有连接真正断开时才会回调onLost
+     * 代价是连接池中可供其他命令使用的连接少一个，监视结束时租约归还
+     * @param context 上下文
+     * @param script {@link #buildScript(String, String, String)}生成的脚本
+     * @param callback 回调
+     * @return 监视器
+     * @throws IOException 无法连接ADB或打开流
+     * @throws InterruptedException
+     */
+    public static FrpcWatcher startWithAdb(Context context, String script, Callback callback)
+            throws IOException, InterruptedException {
+        final AdbConnectionPool.Lease lease = AdbManager.getInstance().lease();
+        final AdbStream stream;
+        try {
+            stream = lease.getConnection().open("shell:" + script);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+
+        final ByteQueueInputStream inputStream = stream.getInputStream();
+        final AtomicBoolean released = new AtomicBoolean(false);
+        FrpcWatcher watcher = new FrpcWatcher(context, FrpcPidFile.MODE_ADB, new Source() {
+            @Override
+            public int read(byte[] buffer) throws IOException {
+                // 超时为0时一直等待到有数据或流结束
+                return inputStream.read(buffer, 0, buffer.length, 0);
+            }
+
+            @Override
+            public void close() {
+                // stop()和监视线程都可能调用，只归还一次租约
+                if (!released.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "关闭监视流失败: " + e.getMessage());
+                }
+                lease.close();
+            }
+        }, callback);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    /**
+     * 停止监视，不影响frpc进程，之后不再回调
+     */
+    public void stop() {
+        stopped = true;
+        source.close();
+    }
+
+    /**
+     * @return 监视是否仍在进行
+     */
+    public boolean isActive() {
+        return !stopped && thread.isAlive();
+    }
+
+    private void run() {
+        String pidLine = null;
+        byte[] buffer = new byte[512];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        Exception error = null;
+        try {
+            int length;
+            while ((length = source.read(buffer)) != -1) {
+                for (int i = 0; i < length; i++) {
+                    if (buffer[i] != '\n') {
+                        line.write(buffer[i]);
+                        continue;
+                    }
+                    String text = line.toString().trim();
+                    line.reset();
+                    if (text.startsWith(EXIT_PREFIX)) {
+                        onExitLine(text);
+                        return;
+                    } else if (pidLine == null) {
+                        pidLine = text;
+                    } else {
+                        onStatLine(pidLine, text);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+        source.close();
+
+        if (!stopped) {
+            stopped = true;
+            Log.e(TAG, "监视进程意外结束" + (error != null ? ": " + error.getMessage() : ""));
+            LogManager.getInstance(context).e(TAG, "监视进程意外结束" + (error != null ? ": " + error.getMessage() : ""));
+            callback.onLost(error);
+        }
+    }
+
+    private void onStatLine(String pidLine, String statLine) {
+        FrpcPidFile.Record record = FrpcPidFile.saveLaunchOutput(context, pidLine + "\n" + statLine, mode);
+        if (record != null && !stopped) {
+            Log.d(TAG, "frpc已启动，开始等待其退出: " + record);
+            LogManager.getInstance(context).d(TAG, "frpc已启动，开始等待其退出: " + record);
+            callback.onStarted(record.pid);
+        }
+    }
+
+    private void onExitLine(String text) {
+        int exitCode = -1;
+        try {
+            exitCode = Integer.parseInt(text.substring(EXIT_PREFIX.length()).trim());
+        } catch (NumberFormatException e) {
+            // 退出码无法解析时按-1处理
+        }
+        FrpcPidFile.clear(context);
+        source.close();
+        if (!stopped) {
+            stopped = true;
+            Log.d(TAG, "frpc已退出，退出码: " + exitCode);
+            LogManager.getInstance(context).d(TAG, "frpc已退出，退出码: " + exitCode);
+            callback.onExited(exitCode);
+        }
+    }
+}
@@ -44,12 +44,10 @@ import rikka.shizuku.ShizukuRemoteProcess;
 
 import pub.log.startfrp.lib.adb.AdbManager;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -98,6 +96,13 @@ public class MainActivity extends AppCompatActivity {
     
     // 日志管理器
     private LogManager logManager;
+    // 界面可见时订阅frpc状态变化
+    private final FrpcStatusEngine.Listener frpcStatusListener = new FrpcStatusEngine.Listener() {
+        @Override
+        public void onStatusChanged(FrpcStatusEngine.Status status) {
+            applyFrpStatus(status);
+        }
+    };
     
     // FRP相关常量
     private static final String FRP_SUBDIR = "frp";
@@ -194,6 +199,15 @@ public class MainActivity extends AppCompatActivity {
         
         // 检查前台服务状态
         checkForegroundServiceStatus();
+        
+        // 订阅frpc状态变化，由状态引擎统一检测
+        FrpcStatusEngine.getInstance(this).addListener(frpcStatusListener);
+    }
+    
+    @Override
+    protected void onPause() {
+        super.onPause();
+        FrpcStatusEngine.getInstance(this).removeListener(frpcStatusListener);
     }
     
     @Override
@@ -1092,32 +1106,21 @@ public class MainActivity extends AppCompatActivity {
         new Thread(new Runnable() {
             @Override
             public void run() {
-                try {
-                    // 尝试通过命令行检查frpc进程是否存在
-                    Process process = Runtime.getRuntime().exec("/system/bin/ps -ef | grep libfrpc.so");
-                    InputStream inputStream = process.getInputStream();
-                    byte[] buffer = new byte[1024];
-                    int length = inputStream.read(buffer);
-                    String output = new String(buffer, 0, length);
-                    
-                    final boolean hasFrpcProcess = output.contains("libfrpc.so") && !output.contains("grep");
-                    
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (!hasFrpcProcess && isRunning) {
-                                logManager.d("MainActivity", "进程检查：frpc进程不存在，但UI显示运行中，强制更新UI");
-                                isRunning = false;
-                                updateUI();
-                                String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                                updateLogView(timestamp + " FRP服务已停止");
-                            }
+                // 停止后需要最新的结果，不使用缓存
+                final boolean hasFrpcProcess = FrpcStatusEngine.getInstance(MainActivity.this).probe().running;
+                
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!hasFrpcProcess && isRunning) {
+                            logManager.d("MainActivity", "进程检查：frpc进程不存在，但UI显示运行中，强制更新UI");
+                            isRunning = false;
+                            updateUI();
+                            String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
+                            updateLogView(timestamp + " FRP服务已停止");
                         }
-                    });
-                } catch (Exception e) {
-                    logManager.e("MainActivity", "检查进程状态时发生错误：" + e.getMessage());
-                    e.printStackTrace();
-                }
+                    }
+                });
             }
         }).start();
     }
@@ -1220,231 +1223,45 @@ public class MainActivity extends AppCompatActivity {
     
     /**
      * 检测系统中是否有FRP进程在运行
-     * 根据用户选择的模式使用对应的方式执行命令来检测进程
+     * 从状态引擎获取，缓存有效时不再执行检测命令；ADB模式需要网络操作，在后台线程执行
      */
     private void checkFRPProcessInSystem() {
-        try {
-            // 获取用户选择的模式
-            boolean useShizuku = sharedPreferences.getBoolean("use_shizuku", false);
-            boolean useAdb = sharedPreferences.getBoolean("use_adb", false);
-            
-            logManager.d("MainActivity", "用户选择的模式 - Shizuku: " + useShizuku + ", ADB: " + useAdb);
-            
-            // 1. 如果用户选择了Shizuku模式，使用Shizuku检测进程
-            if (useShizuku && Shizuku.pingBinder()) {
-                String checkCommand = "ps -A | grep libfrpc";
-                String[] command = {"sh", "-c", checkCommand};
-                
-                logManager.d("MainActivity", "使用ShizukuHelper执行进程检测命令: " + checkCommand);
-                
-                // 使用ShizukuHelper调用Shizuku的newProcess方法
-                ShizukuRemoteProcess process = ShizukuHelper.newProcess(command, null, null);
-                InputStream inputStream = process.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                
-                String line;
-                boolean foundProcess = false;
-                while ((line = reader.readLine()) != null) {
-                    if (line.contains("libfrpc")) {
-                        logManager.d("MainActivity", "Shizuku检测到frpc进程: " + line.trim());
-                        foundProcess = true;
-                        break;
-                    }
-                }
-                
-                reader.close();
-                inputStream.close();
-                
-                int exitCode = process.waitFor();
-                logManager.d("MainActivity", "Shizuku命令执行完成，退出码: " + exitCode);
-                
-                if (foundProcess && !isRunning) {
-                    // 更新状态为运行中
-                    isRunning = true;
-                    FrpcService.isRunning = true;
-                    logManager.d("MainActivity", "检测到FRP进程实际在运行，更新状态为运行中");
-                } else if (!foundProcess && isRunning) {
-                    // 更新状态为停止
-                    isRunning = false;
-                    FrpcService.isRunning = false;
-                    logManager.d("MainActivity", "未检测到FRP进程，更新状态为停止");
-                }
-                
-            } 
-            // 2. 如果用户选择了ADB模式，使用ADB检测进程
-            else if (useAdb) {
-                // 在后台线程上执行ADB操作，避免在主线程上执行网络操作
-                new Thread(new Runnable() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final FrpcStatusEngine.Status status = FrpcStatusEngine.getInstance(MainActivity.this).get(FrpcStatusEngine.DEFAULT_TTL);
+                logManager.d("MainActivity", "frpc进程状态: " + status);
+                runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        try {
-                            AdbManager adbManager = AdbManager.getInstance();
-                            
-                            // 尝试连接ADB服务器，最多尝试3次
-                            logManager.d("MainActivity", "尝试连接ADB服务器...");
-                            boolean isConnected = false;
-                            int maxAttempts = 3;
-                            for (int i = 0; i < maxAttempts; i++) {
-                                isConnected = adbManager.connect();
-                                logManager.d("MainActivity", "ADB连接尝试 " + (i + 1) + "/" + maxAttempts + ": " + isConnected);
-                                if (isConnected) {
-                                    break;
-                                }
-                                // 等待1秒后重试
-                                try {
-                                    Thread.sleep(1000);
-                                } catch (InterruptedException e) {
-                                    Thread.currentThread().interrupt();
-                                }
-                            }
-                            
-                            logManager.d("MainActivity", "ADB连接最终状态: " + isConnected);
-                            
-                            if (!isConnected) {
-                                logManager.d("MainActivity", "ADB连接失败，无法检测进程");
-                                runOnUiThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        showToast("ADB连接失败，无法检测进程");
-                                    }
-                                });
-                                return;
-                            }
-                            
-                            // 执行进程检测命令
-                            String checkCommand = "ps -A | grep libfrpc";
-                            logManager.d("MainActivity", "使用ADB执行进程检测命令: " + checkCommand);
-                            
-                            String result = adbManager.executeCommand(checkCommand);
-                            logManager.d("MainActivity", "ADB检测进程结果: " + (result != null ? result : "无结果"));
-                            
-                            // 检查结果中是否包含libfrpc，过滤掉命令本身
-                            boolean foundProcess = false;
-                            if (result != null) {
-                                // 分割输出为行
-                                String[] lines = result.split("\\r?\\n");
-                                for (String line : lines) {
-                                    String trimmedLine = line.trim();
-                                    // 过滤空行和命令行
-                                    if (trimmedLine.isEmpty() || trimmedLine.contains("ps -A") || trimmedLine.contains("grep libfrpc")) {
-                                        continue;
-                                    }
-                                    // 检查是否包含进程信息
-                                    if (trimmedLine.contains("libfrpc") && trimmedLine.matches(".*\\s+\\d+\\s+.*")) {
-                                        foundProcess = true;
-                                        break;
-                                    }
-                                }
-                            }
-                            final boolean finalFoundProcess = foundProcess;
-                            
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    if (finalFoundProcess) {
-                                        logManager.d("MainActivity", "ADB方式检测到frpc进程");
-                                        if (!isRunning) {
-                                            // 更新状态为运行中
-                                            isRunning = true;
-                                            FrpcService.isRunning = true;
-                                            logManager.d("MainActivity", "检测到FRP进程实际在运行，更新状态为运行中");
-                                            updateUI();
-                                        }
-                                        // 无论isRunning状态如何，只要检测到FRP进程在运行，就启动StatusService显示通知
-                                        logManager.d("MainActivity", "检测到FRP进程在运行，启动StatusService显示通知");
-                                        StatusService.startService(MainActivity.this);
-                                        logManager.d("MainActivity", "StatusService启动完成");
-                                    } else {
-                                        logManager.d("MainActivity", "ADB方式未检测到frpc进程");
-                                        if (isRunning) {
-                                            // 更新状态为停止
-                                            isRunning = false;
-                                            FrpcService.isRunning = false;
-                                            logManager.d("MainActivity", "未检测到FRP进程，更新状态为停止");
-                                            updateUI();
-                                        }
-                                    }
-                                }
-                            });
-                        } catch (Exception e) {
-                            logManager.e("MainActivity", "ADB检测进程失败: " + e.getMessage(), e);
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    showToast("ADB检测进程失败: " + e.getMessage());
-                                }
-                            });
-                        }
+                        applyFrpStatus(status);
                     }
-                }).start();
+                });
             }
-            // 3. 如果用户没有选择任何模式，使用默认方式检测进程
-            else {
-                checkFRPProcessWithDefaultMethod();
-            }
-        } catch (Exception e) {
-            logManager.e("MainActivity", "检测进程失败: " + e.getMessage(), e);
-        }
+        }).start();
     }
     
     /**
-     * 使用默认方式检测FRP进程
+     * 按状态引擎的结果同步界面状态
+     * @param status frpc进程状态
      */
-    private void checkFRPProcessWithDefaultMethod() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    String checkCommand = "ps -A | grep libfrpc";
-                    logManager.d("MainActivity", "使用默认方式执行进程检测命令: " + checkCommand);
-                    
-                    // 使用Runtime.exec执行命令
-                    Process process = Runtime.getRuntime().exec("sh -c " + checkCommand);
-                    InputStream inputStream = process.getInputStream();
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                    
-                    String line;
-                    boolean foundProcess = false;
-                    while ((line = reader.readLine()) != null) {
-                        if (line.contains("libfrpc")) {
-                            logManager.d("MainActivity", "默认方式检测到frpc进程: " + line.trim());
-                            foundProcess = true;
-                            break;
-                        }
-                    }
-                    
-                    reader.close();
-                    inputStream.close();
-                    
-                    int exitCode = process.waitFor();
-                    logManager.d("MainActivity", "默认方式命令执行完成，退出码: " + exitCode);
-                    
-                    final boolean finalFoundProcess = foundProcess;
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (finalFoundProcess && !isRunning) {
-                                // 更新状态为运行中
-                                isRunning = true;
-                                FrpcService.isRunning = true;
-                                logManager.d("MainActivity", "检测到FRP进程实际在运行，更新状态为运行中");
-                                updateUI();
-                            } else if (!finalFoundProcess && isRunning) {
-                                // 更新状态为停止
-                                isRunning = false;
-                                FrpcService.isRunning = false;
-                                logManager.d("MainActivity", "未检测到FRP进程，更新状态为停止");
-                                updateUI();
-                            }
-                        }
-                    });
-                } catch (Exception e) {
-                    logManager.e("MainActivity", "默认方式检测进程失败: " + e.getMessage(), e);
-                }
-            }
-        }).start();
+    private void applyFrpStatus(FrpcStatusEngine.Status status) {
+        if (status.running && !isRunning) {
+            // 更新状态为运行中
+            isRunning = true;
+            FrpcService.isRunning = true;
+            logManager.d("MainActivity", "检测到FRP进程实际在运行，更新状态为运行中");
+            updateUI();
+            startLogUpdate();
+        } else if (!status.running && isRunning) {
+            // 更新状态为停止
+            isRunning = false;
+            FrpcService.isRunning = false;
+            logManager.d("MainActivity", "未检测到FRP进程，更新状态为停止");
+            updateUI();
+        }
     }
-
+    
     private void showDetailedStatus() {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setTitle("FRP详细状态")
@@ -4,6 +4,7 @@ import android.app.Application;
 import android.content.Context;
 import android.util.Log;
 
+import pub.log.startfrp.lib.adb.AdbCredentials;
 import rikka.shizuku.Shizuku;
 import rikka.shizuku.ShizukuProvider;
 
@@ -23,6 +24,9 @@ public class MyApplication extends Application {
         // 启用Shizuku多进程支持
         ShizukuProvider.enableMultiProcessSupport(true);
         
+        // 在后台加载或生成ADB认证密钥，首次安装时生成2048位密钥较慢，不能留到开机后第一次连接
+        AdbCredentials.getInstance(this).prepareAsync();
+        
         // 检查Shizuku是否可用
         if (Shizuku.pingBinder()) {
             Log.d("StartFRP", "Shizuku在Application初始化时已可用");
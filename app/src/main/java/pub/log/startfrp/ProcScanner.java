@@ -0,0 +1,200 @@
+package pub.log.startfrp;
+
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 进程表扫描类
+ * 在应用进程内直接遍历/proc/<pid>/cmdline和stat查找指定程序，不创建任何子进程
+ * 只能看到应用有权限查看的进程，适用于frpc由应用自身启动的默认模式
+ * 读取用的缓冲区在多次扫描之间复用
+ * @author BY YYX
+ */
+public class ProcScanner {
+    /** 内存页大小，用于把stat中以页为单位的RSS换算成字节 */
+    private static final long PAGE_SIZE = getPageSize();
+
+    /**
+     * 扫描到的进程信息
+     */
+    public static class ProcessInfo {
+        public final int pid;
+        /** 进程状态，如R、S、D、Z */
+        public final char state;
+        /** 常驻内存大小（字节） */
+        public final long rssBytes;
+        /** 启动时间（系统启动后的时钟周期数），与FrpcPidFile中的记录一致 */
+        public final long startTime;
+
+        public ProcessInfo(int pid, char state, long rssBytes, long startTime) {
+            this.pid = pid;
+            this.state = state;
+            this.rssBytes = rssBytes;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public String toString() {
+            return "PID=" + pid + ", 状态=" + state + ", RSS=" + (rssBytes / 1024) + "KB, 启动时间=" + startTime;
+        }
+    }
+
+    private final byte[] executable;
+    private final byte[] buffer = new byte[4096];
+    private final StringBuilder pathBuilder = new StringBuilder(32);
+
+    /**
+     * @param executablePath 要查找的程序完整路径，与cmdline中的第一个参数完全匹配
+     */
+    public ProcScanner(String executablePath) {
+        this.executable = executablePath.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 扫描进程表，返回所有匹配的进程
+     * @return 匹配的进程列表，没有时返回空列表
+     */
+    public synchronized List<ProcessInfo> scan() {
+        List<ProcessInfo> result = new ArrayList<>();
+        String[] entries = new File("/proc").list();
+        if (entries == null) {
+            return result;
+        }
+        for (String entry : entries) {
+            int pid = parsePid(entry);
+            if (pid <= 0 || !matchesCmdline(pid)) {
+                continue;
+            }
+            ProcessInfo info = readStat(pid);
+            if (info != null) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 查找第一个匹配的进程
+     * @return 进程信息，没有时返回null
+     */
+    public ProcessInfo findFirst() {
+        List<ProcessInfo> processes = scan();
+        return processes.isEmpty() ? null : processes.get(0);
+    }
+
+    /**
+     * cmdline以\0分隔参数，只比较第一个参数
+     * 已退出等待回收的进程cmdline为空，不会匹配
+     */
+    private boolean matchesCmdline(int pid) {
+        int length = read(pid, "/cmdline");
+        if (length < executable.length) {
+            return false;
+        }
+        for (int i = 0; i < executable.length; i++) {
+            if (buffer[i] != executable[i]) {
+                return false;
+            }
+        }
+        return length == executable.length || buffer[executable.length] == 0;
+    }
+
+    /**
+     * 解析stat中的状态（第3个字段）、启动时间（第22个字段）和RSS（第24个字段）
+     * comm字段可能包含空格和括号，从最后一个')'之后开始计数
+     */
+    private ProcessInfo readStat(int pid) {
+        int length = read(pid, "/stat");
+        int pos = length - 1;
+        while (pos >= 0 && buffer[pos] != ')') {
+            pos--;
+        }
+        if (pos < 0) {
+            return null;
+        }
+
+        char state = 0;
+        long startTime = -1;
+        long rssPages = -1;
+        int field = 2;
+        pos++;
+        while (pos < length && field < 24) {
+            while (pos < length && buffer[pos] == ' ') {
+                pos++;
+            }
+            if (pos >= length) {
+                break;
+            }
+            field++;
+            if (field == 3) {
+                state = (char) buffer[pos];
+            }
+            long value = 0;
+            while (pos < length && buffer[pos] != ' ' && buffer[pos] != '\n') {
+                byte b = buffer[pos++];
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            if (field == 22) {
+                startTime = value;
+            } else if (field == 24) {
+                rssPages = value;
+            }
+        }
+        if (state == 0 || startTime < 0 || rssPages < 0) {
+            return null;
+        }
+        return new ProcessInfo(pid, state, rssPages * PAGE_SIZE, startTime);
+    }
+
+    /**
+     * 把/proc/<pid>/<name>读入共享缓冲区
+     * @return 读取的字节数，进程已退出或无权限时返回0
+     */
+    private int read(int pid, String name) {
+        pathBuilder.setLength(0);
+        pathBuilder.append("/proc/").append(pid).append(name);
+        try (FileInputStream in = new FileInputStream(pathBuilder.toString())) {
+            int total = 0;
+            int count;
+            while (total < buffer.length && (count = in.read(buffer, total, buffer.length - total)) > 0) {
+                total += count;
+            }
+            return total;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static int parsePid(String name) {
+        int pid = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+
+    private static long getPageSize() {
+        try {
+            long size = Os.sysconf(OsConstants._SC_PAGESIZE);
+            if (size > 0) {
+                return size;
+            }
+        } catch (Throwable e) {
+            // 单元测试等非Android环境下Os不可用
+        }
+        return 4096;
+    }
+}
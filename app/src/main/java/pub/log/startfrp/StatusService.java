@@ -13,18 +13,10 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
-import pub.log.startfrp.lib.adb.AdbManager;
-import rikka.shizuku.Shizuku;
-import rikka.shizuku.ShizukuRemoteProcess;
-import pub.log.startfrp.ShizukuHelper;
-
 /**
  * 状态服务
  * 用于监控FRP进程的运行状态并显示前台通知，支持Shizuku和ADB模式
@@ -34,7 +26,6 @@ public class StatusService extends Service {
     private static final String TAG = "StatusService";
     private static final int NOTIFICATION_ID = 1001;
     private static final String CHANNEL_ID = "frpc_service_channel";
-    private static final long STATUS_CHECK_INTERVAL = 30000; // 30秒检查一次
     private static final long DETAILS_UPDATE_INTERVAL = 300000; // 5分钟更新一次详细信息
     private static final long STATUS_DEBOUNCE_INTERVAL = 1000; // 1秒状态防抖
 
@@ -49,6 +40,13 @@ public class StatusService extends Service {
     private long lastDetailsUpdateTime = 0;
     private Notification.Builder notificationBuilder;
     private Notification currentNotification;
+    // 订阅状态引擎的frpc状态变化，检测由状态引擎统一调度
+    private final FrpcStatusEngine.Listener frpcStatusListener = new FrpcStatusEngine.Listener() {
+        @Override
+        public void onStatusChanged(FrpcStatusEngine.Status status) {
+            applyFrpStatus(status.running);
+        }
+    };
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -195,14 +193,11 @@ public class StatusService extends Service {
     private void initStatusCheck() {
         handler = new Handler(Looper.getMainLooper());
         
-        // 状态检查 Runnable
+        // 订阅状态引擎，状态变化时更新通知
         statusCheckRunnable = new Runnable() {
             @Override
             public void run() {
-                // 检查FRP进程状态
-                checkFrpProcessStatus();
-                // 继续调度下一次检查
-                handler.postDelayed(this, STATUS_CHECK_INTERVAL);
+                FrpcStatusEngine.getInstance(StatusService.this).addListener(frpcStatusListener);
             }
         };
         
@@ -224,167 +219,50 @@ public class StatusService extends Service {
         // 启动详细信息更新
         handler.postDelayed(detailsUpdateRunnable, DETAILS_UPDATE_INTERVAL);
         
-        LogManager.getInstance(this).d(TAG, "初始化定期检查逻辑完成，延迟3秒后开始第一次检查");
-    }
-
-    /**
-     * 检查FRP进程状态
-     */
-    private void checkFrpProcessStatus() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                boolean frpRunning = false;
-                try {
-                    // 获取用户选择的模式
-                    boolean useShizuku = sharedPreferences.getBoolean("use_shizuku", false);
-                    boolean useAdb = sharedPreferences.getBoolean("use_adb", false);
-                    
-                    LogManager.getInstance(StatusService.this).d(TAG, "开始检测实际进程状态 - Shizuku: " + useShizuku + ", ADB: " + useAdb);
-                    
-                    // 1. 如果用户选择了Shizuku模式，使用Shizuku检测进程
-                    if (useShizuku && Shizuku.pingBinder()) {
-                        String checkCommand = "ps -A | grep libfrpc | grep -v grep";
-                        String[] command = {"sh", "-c", checkCommand};
-                        
-                        LogManager.getInstance(StatusService.this).d(TAG, "使用Shizuku执行进程检测命令: " + checkCommand);
-                        
-                        ShizukuRemoteProcess process = ShizukuHelper.newProcess(command, null, null);
-                        InputStream inputStream = process.getInputStream();
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                        
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            String trimmedLine = line.trim();
-                            // 过滤空行和命令行
-                            if (trimmedLine.isEmpty() || trimmedLine.contains("ps -A") || trimmedLine.contains("grep libfrpc")) {
-                                continue;
-                            }
-                            // 检查是否包含进程信息
-                            if (trimmedLine.contains("libfrpc") && trimmedLine.matches(".*\\s+\\d+\\s+.*")) {
-                                LogManager.getInstance(StatusService.this).d(TAG, "Shizuku检测到frpc进程: " + trimmedLine);
-                                frpRunning = true;
-                                break;
-                            }
-                        }
-                        
-                        reader.close();
-                        inputStream.close();
-                        process.waitFor();
-                    }
-                    // 2. 如果用户选择了ADB模式，使用ADB检测进程
-                    else if (useAdb) {
-                        LogManager.getInstance(StatusService.this).d(TAG, "使用ADB执行进程检测");
-                        AdbManager adbManager = AdbManager.getInstance();
-                        boolean connected = adbManager.connect();
-                        if (connected) {
-                            String result = adbManager.executeCommand("ps -A | grep libfrpc | grep -v grep");
-                            if (result != null && parseAdbProcessOutput(result)) {
-                                LogManager.getInstance(StatusService.this).d(TAG, "ADB检测到frpc进程");
-                                frpRunning = true;
-                            }
-                        }
-                    }
-                    // 3. 默认使用普通方式检测进程
-                    else {
-                        LogManager.getInstance(StatusService.this).d(TAG, "使用普通方式执行进程检测");
-                        String checkCommand = "ps -A | grep libfrpc | grep -v grep";
-                        Process process = Runtime.getRuntime().exec("sh -c " + checkCommand);
-                        InputStream inputStream = process.getInputStream();
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                        
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            String trimmedLine = line.trim();
-                            // 过滤空行和命令行
-                            if (trimmedLine.isEmpty() || trimmedLine.contains("ps -A") || trimmedLine.contains("grep libfrpc")) {
-                                continue;
-                            }
-                            // 检查是否包含进程信息
-                            if (trimmedLine.contains("libfrpc") && trimmedLine.matches(".*\\s+\\d+\\s+.*")) {
-                                LogManager.getInstance(StatusService.this).d(TAG, "普通方式检测到frpc进程: " + trimmedLine);
-                                frpRunning = true;
-                                break;
-                            }
-                        }
-                        
-                        reader.close();
-                        inputStream.close();
-                        process.waitFor();
-                    }
-                    
-                    // 检查FrpcService的运行状态，与实际检测结果同步
-                    LogManager.getInstance(StatusService.this).d(TAG, "检查FrpcService.isRunning状态: " + FrpcService.isRunning + ", 实际检测结果: " + frpRunning);
-                    
-                    // 如果实际检测到进程运行，但FrpcService显示未运行，同步状态
-                    if (frpRunning && !FrpcService.isRunning) {
-                        FrpcService.isRunning = true;
-                        LogManager.getInstance(StatusService.this).d(TAG, "同步FrpcService.isRunning为true");
-                    }
-                    // 如果实际检测到进程未运行，但FrpcService显示运行中，同步状态
-                    else if (!frpRunning && FrpcService.isRunning) {
-                        FrpcService.isRunning = false;
-                        LogManager.getInstance(StatusService.this).d(TAG, "同步FrpcService.isRunning为false");
-                    }
-                } catch (Exception e) {
-                    LogManager.getInstance(StatusService.this).e(TAG, "检查进程状态时发生错误：" + e.getMessage(), e);
-                }
-                
-                // 检查状态是否发生变化，以及是否超过防抖间隔
-                if (frpRunning != lastFrpRunningState) {
-                    long currentTime = System.currentTimeMillis();
-                    if (currentTime - lastStatusChangeTime >= STATUS_DEBOUNCE_INTERVAL) {
-                        // 状态变化且超过防抖间隔，更新通知
-                        lastFrpRunningState = frpRunning;
-                        lastStatusChangeTime = currentTime;
-                        updateNotification(frpRunning);
-                    }
-                }
-            }
-        }).start();
+        LogManager.getInstance(this).d(TAG, "初始化定期检查逻辑完成，延迟3秒后订阅frpc状态");
     }
 
     /**
-     * 解析ADB进程输出，过滤误判
-     * @param output ADB命令输出
-     * @return 是否检测到真实进程
+     * 按状态引擎的结果同步FrpcService的状态并更新通知，在主线程调用
+     * @param frpRunning FRP进程是否运行
      */
-    private boolean parseAdbProcessOutput(String output) {
-        if (output == null || output.trim().isEmpty()) {
-            return false;
-        }
+    private void applyFrpStatus(boolean frpRunning) {
+        // 检查FrpcService的运行状态，与实际检测结果同步
+        LogManager.getInstance(this).d(TAG, "检查FrpcService.isRunning状态: " + FrpcService.isRunning + ", 实际检测结果: " + frpRunning);
         
-        // 分割输出为行
-        String[] lines = output.split("\\r?\\n");
+        // 如果实际检测到进程运行，但FrpcService显示未运行，同步状态
+        if (frpRunning && !FrpcService.isRunning) {
+            FrpcService.isRunning = true;
+            LogManager.getInstance(this).d(TAG, "同步FrpcService.isRunning为true");
+        }
+        // 如果实际检测到进程未运行，但FrpcService显示运行中，同步状态
+        else if (!frpRunning && FrpcService.isRunning) {
+            FrpcService.isRunning = false;
+            LogManager.getInstance(this).d(TAG, "同步FrpcService.isRunning为false");
+        }
         
-        for (String line : lines) {
-            String trimmedLine = line.trim();
-            
-            // 过滤空行
-            if (trimmedLine.isEmpty()) {
-                continue;
-            }
-            
-            // 过滤命令行
-            if (trimmedLine.contains("ps -A") || trimmedLine.contains("grep libfrpc")) {
-                continue;
-            }
-            
-            // 过滤提示符
-            if (trimmedLine.contains("$") && trimmedLine.trim().endsWith("$")) {
-                continue;
-            }
-            if (trimmedLine.contains("#") && trimmedLine.trim().endsWith("#")) {
-                continue;
-            }
-            
-            // 检查是否包含进程信息
-            if (trimmedLine.contains("libfrpc") && trimmedLine.matches(".*\\s+\\d+\\s+.*")) {
-                return true;
+        // 检查状态是否发生变化，以及是否超过防抖间隔
+        if (frpRunning != lastFrpRunningState) {
+            long currentTime = System.currentTimeMillis();
+            long elapsed = currentTime - lastStatusChangeTime;
+            if (elapsed >= STATUS_DEBOUNCE_INTERVAL) {
+                // 状态变化且超过防抖间隔，更新通知
+                lastFrpRunningState = frpRunning;
+                lastStatusChangeTime = currentTime;
+                updateNotification(frpRunning);
+            } else {
+                // 只在状态变化时回调，防抖间隔结束后按最新状态再处理一次
+                handler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        FrpcStatusEngine.Status latest = FrpcStatusEngine.getInstance(StatusService.this).getCached();
+                        if (latest != null) {
+                            applyFrpStatus(latest.running);
+                        }
+                    }
+                }, STATUS_DEBOUNCE_INTERVAL - elapsed);
             }
         }
-        
-        return false;
     }
 
     /**
@@ -490,6 +368,7 @@ public class StatusService extends Service {
             if (statusCheckRunnable != null) {
                 handler.removeCallbacks(statusCheckRunnable);
             }
+            FrpcStatusEngine.getInstance(this).removeListener(frpcStatusListener);
             if (detailsUpdateRunnable != null) {
                 handler.removeCallbacks(detailsUpdateRunnable);
             }
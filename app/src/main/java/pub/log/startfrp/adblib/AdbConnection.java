@@ -5,8 +5,22 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class represents an ADB connection.
@@ -14,16 +28,32 @@ import java.net.Socket;
  */
 public class AdbConnection implements Closeable {
 
+    /**
+     * Notified once the connection thread stops, because the socket failed,
+     * the peer hung up or the connection was closed locally.
+     */
+    public interface ConnectionListener {
+        /**
+         * Called on the connection thread after all streams were closed.
+         * Implementations must not call {@link #close()} here since it waits
+         * for this very thread.
+         * @param connection The connection that went down
+         * @param cause The error that stopped the connection thread, or null
+         */
+        void onConnectionClosed(AdbConnection connection, Exception cause);
+    }
+
+    /** How long open() waits for the peer to accept a stream */
+    public static final long DEFAULT_OPEN_TIMEOUT = 5000;
+
+    /** Fires the deadlines of pending opens; one daemon thread shared by all connections */
+    private static final ScheduledThreadPoolExecutor OPEN_TIMEOUTS = createTimeoutScheduler();
+
     /** The underlying socket that this class uses to
      * communicate with the target device.
      */
     protected Socket socket;
 
-    /** The last allocated local stream ID. The ID
-     * chosen for the next stream will be this value + 1.
-     */
-    protected int lastLocalId;
-
     /**
      * The input stream that this class uses to read from
      * the socket.
@@ -36,6 +66,17 @@ public class AdbConnection implements Closeable {
      */
     protected OutputStream outputStream;
 
+    /**
+     * The decoder that the connection thread uses to read
+     * messages off the input stream.
+     */
+    protected AdbMessageReader messageReader;
+
+    /**
+     * The encoder that all outbound messages go through.
+     */
+    protected AdbMessageWriter messageWriter;
+
     /**
      * The backend thread that handles responding to ADB packets.
      */
@@ -49,13 +90,41 @@ public class AdbConnection implements Closeable {
     /**
      * Specifies whether a CNXN packet has been received from the peer.
      */
-    protected boolean connected;
+    protected volatile boolean connected;
+
+    /**
+     * Completes when the peer's CNXN arrives, or fails when the connection
+     * goes down first. Opens issued before that are sent once it completes.
+     */
+    protected final CompletableFuture<Void> connectFuture = new CompletableFuture<>();
 
     /**
      * Specifies the maximum amount data that can be sent to the remote peer.
      * This is only valid after connect() returns successfully.
      */
-    protected int maxData;
+    protected volatile int maxData = AdbProtocol.MAX_PAYLOAD_V1;
+
+    /**
+     * The protocol version in use, the lower of ours and the peer's.
+     * Until the peer's CNXN arrives this is the version we advertised.
+     */
+    protected volatile int version = AdbProtocol.CONNECT_VERSION;
+
+    /**
+     * Specifies whether delayed_ack flow control should be offered to the peer.
+     */
+    protected boolean delayedAckRequested;
+
+    /**
+     * Specifies whether delayed_ack was negotiated with the peer, in which case
+     * streams track a send window instead of waiting for an OKAY per write.
+     */
+    protected volatile boolean delayedAck;
+
+    /**
+     * The features advertised in the peer's CNXN banner.
+     */
+    protected volatile Set<String> peerFeatures = Collections.emptySet();
 
     /**
      * An initialized ADB crypto object that contains a key pair.
@@ -73,12 +142,39 @@ public class AdbConnection implements Closeable {
 
     protected volatile boolean stopFlag = false;
 
+    /**
+     * When the connection thread last read a message, in milliseconds since the epoch.
+     */
+    private volatile long lastMessageTime = System.currentTimeMillis();
+
+    /**
+     * Set once the connection thread has stopped; the connection can't be used anymore.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The error that stopped the connection thread, if any.
+     */
+    private volatile Exception closeCause;
+
+    /**
+     * Set by close(), so the error it provokes in the connection thread is not
+     * reported as a transport failure.
+     */
+    private volatile boolean closeRequested;
+
+    private final List<ConnectionListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * How inbound messages are dispatched, see {@link AdbDispatchMode}.
+     */
+    protected AdbDispatchMode dispatchMode = AdbDispatchMode.INLINE;
+
     /**
      * Internal constructor to initialize some internal state
      */
     private AdbConnection() {
         msgManager = new AdbMessageManager(this);
-        lastLocalId = 0;
         connectionThread = createConnectionThread();
     }
 
@@ -97,15 +193,31 @@ public class AdbConnection implements Closeable {
 
         newConn.socket = socket;
 
-        // 试试bufferedStream
         newConn.inputStream = socket.getInputStream();
         newConn.outputStream = socket.getOutputStream();
 
+        // 预读解码，负载缓冲按协商的maxData复用
+        newConn.messageReader = new AdbMessageReader(newConn.inputStream,
+                new AdbMessagePool(AdbProtocol.CONNECT_MAXDATA));
+
+        // 由SocketChannel创建的socket使用聚集写，头部和负载一次系统调用写出
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            newConn.messageWriter = new AdbMessageWriter(channel);
+        } else {
+            newConn.messageWriter = new AdbMessageWriter(newConn.outputStream);
+        }
+        // 所有出站消息由单独的写线程串行发送
+        newConn.messageWriter.start();
+
         /* Disable Nagle because we're sending tiny packets */
         socket.setTcpNoDelay(true);
 
-        // 写入缓冲区16K
-        socket.setSendBufferSize(16 * 1024);
+        /* Let the kernel detect a dead peer on a long idle connection */
+        socket.setKeepAlive(true);
+
+        // 写入缓冲区64K，16K时推送文件等大块写入会在每个小窗口上阻塞
+        socket.setSendBufferSize(64 * 1024);
 
         // 读取缓冲区64K
         socket.setReceiveBufferSize(64 * 1024);
@@ -124,10 +236,22 @@ public class AdbConnection implements Closeable {
         return new Thread(new Runnable() {
             @Override
             public void run() {
+                Exception cause = null;
+
                 while (!stopFlag && !connectionThread.isInterrupted()) {
                     try {
                         /* Read and parse a message off the socket's input stream */
-                        AdbProtocol.AdbMessage msg = AdbProtocol.AdbMessage.parseAdbMessage(inputStream);
+                        AdbProtocol.AdbMessage msg;
+                        try {
+                            msg = messageReader.readMessage();
+                        } catch (SocketTimeoutException e) {
+                            /* An idle socket with SO_TIMEOUT set is not a failure;
+                             * the reader resumes the frame it was in */
+                            continue;
+                        }
+
+                        /* Any frame shows the peer is alive */
+                        lastMessageTime = System.currentTimeMillis();
 
                         /* Verify magic and checksum */
                         msgManager.pushMessage(msg);
@@ -136,6 +260,7 @@ public class AdbConnection implements Closeable {
                     } catch (Exception e) {
                         /* The cleanup is taken care of by a combination of this thread
                          * and close() */
+                        cause = e;
                         break;
                     }
                 }
@@ -144,14 +269,79 @@ public class AdbConnection implements Closeable {
 
                 /* This thread takes care of cleaning up pending streams */
                 synchronized (conn) {
+                    connectFuture.completeExceptionally(new IOException("Connection closed"));
                     cleanupStreams();
+                    msgManager.shutdown();
+                    messageWriter.close();
                     conn.notifyAll();
                     conn.connectAttempted = false;
                 }
+
+                /* Tell listeners, each exactly once; a local close is not a failure */
+                closeCause = closeRequested ? null : cause;
+                closed = true;
+                for (ConnectionListener listener : listeners) {
+                    if (listeners.remove(listener)) {
+                        notifyClosed(listener);
+                    }
+                }
             }
         });
     }
 
+    private void notifyClosed(ConnectionListener listener) {
+        try {
+            listener.onConnectionClosed(this, closeCause);
+        } catch (RuntimeException e) {
+        }
+    }
+
+    /**
+     * Registers a listener for the end of this connection. If the connection
+     * is already down, the listener is called right away on this thread.
+     * @param listener The listener to add
+     */
+    public void addConnectionListener(ConnectionListener listener) {
+        listeners.add(listener);
+        if (closed && listeners.remove(listener)) {
+            notifyClosed(listener);
+        }
+    }
+
+    /**
+     * Unregisters a listener added with {@link #addConnectionListener(ConnectionListener)}.
+     * @param listener The listener to remove
+     */
+    public void removeConnectionListener(ConnectionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets when the connection thread last read a message off the socket.
+     * Together with {@link #isClosed()} this tells whether the connection is
+     * alive without sending anything.
+     * @return The time of the last inbound message, in milliseconds since the epoch
+     */
+    public long getLastMessageTime() {
+        return lastMessageTime;
+    }
+
+    /**
+     * Checks whether the connection thread has stopped.
+     * @return True once the socket failed or the connection was closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gets the error that stopped the connection thread.
+     * @return The error, or null if the connection is open or was closed locally
+     */
+    public Exception getCloseCause() {
+        return closeCause;
+    }
+
     /**
      * Gets the max data size that the remote client supports.
      * A connection must have been attempted before calling this routine.
@@ -177,6 +367,92 @@ public class AdbConnection implements Closeable {
         return maxData;
     }
 
+    /**
+     * Offers adbd's delayed_ack flow control when connecting. If the peer
+     * supports it too, each stream may have several WRTE messages in flight
+     * up to the window granted by the peer, instead of one per round trip.
+     * Must be called before connect().
+     * @param enabled Specifies whether delayed_ack is offered
+     */
+    public void setDelayedAckEnabled(boolean enabled) {
+        if (connectAttempted)
+            throw new IllegalStateException("Must be called before connect()");
+
+        this.delayedAckRequested = enabled;
+    }
+
+    /**
+     * Selects how inbound messages are dispatched. Must be called before connect().
+     * @param mode The dispatch strategy, {@link AdbDispatchMode#INLINE} by default
+     */
+    public void setDispatchMode(AdbDispatchMode mode) {
+        if (connectAttempted)
+            throw new IllegalStateException("Must be called before connect()");
+
+        this.dispatchMode = mode;
+    }
+
+    /**
+     * Specifies whether delayed_ack flow control was negotiated with the peer.
+     * Only valid after connect() returns successfully.
+     * @return True if streams use windowed writes
+     */
+    public boolean isDelayedAckEnabled() {
+        return delayedAck;
+    }
+
+    /**
+     * Gets the features advertised by the remote peer.
+     * Only valid after connect() returns successfully.
+     * @return The peer's features, empty if it advertised none
+     */
+    public Set<String> getPeerFeatures() {
+        return peerFeatures;
+    }
+
+    /**
+     * Checks whether the remote peer speaks the shell protocol of shell,v2: services.
+     * Only valid after connect() returns successfully.
+     * @return True if {@link #openShell(String)} can be used
+     */
+    public boolean isShellV2Supported() {
+        return peerFeatures.contains(AdbProtocol.FEATURE_SHELL_V2);
+    }
+
+    /**
+     * Gets the features this side advertises in its CNXN banner.
+     */
+    private List<String> getLocalFeatures() {
+        List<String> features = new ArrayList<>();
+        features.add(AdbProtocol.FEATURE_SHELL_V2);
+        features.add(AdbProtocol.FEATURE_STAT_V2);
+        features.add(AdbProtocol.FEATURE_LS_V2);
+        features.add(AdbProtocol.FEATURE_SENDRECV_V2);
+        if (delayedAckRequested) {
+            features.add(AdbProtocol.FEATURE_DELAYED_ACK);
+        }
+        return features;
+    }
+
+    /**
+     * Gets the protocol version negotiated with the remote peer.
+     * Only valid after connect() returns successfully.
+     * @return The lower of our and the peer's protocol version
+     */
+    public int getProtocolVersion() {
+        return version;
+    }
+
+    /**
+     * Specifies whether the negotiated protocol version still checksums payloads.
+     * Inbound checksums that are non-zero are verified either way, so the
+     * peer's AUTH and CNXN are checked before the version is known.
+     * @return True if payload checksums must be computed and verified
+     */
+    boolean isChecksumRequired() {
+        return version < AdbProtocol.A_VERSION_SKIP_CHECKSUM;
+    }
+
     /**
      * 无限等待
      * @throws IOException
@@ -197,10 +473,11 @@ public class AdbConnection implements Closeable {
             throw new IllegalStateException("Already connected");
 
         /* Write the CONNECT packet */
-        outputStream.write(AdbProtocol.generateConnect());
-        outputStream.flush();
+        messageWriter.writeMessage(AdbProtocol.CMD_CNXN, AdbProtocol.CONNECT_VERSION,
+                AdbProtocol.CONNECT_MAXDATA, AdbProtocol.generateConnectPayload(getLocalFeatures()));
 
         /* Start the connection thread to respond to the peer */
+        msgManager.start(dispatchMode);
         connectAttempted = true;
         connectionThread.start();
 
@@ -217,51 +494,185 @@ public class AdbConnection implements Closeable {
 
     /**
      * Opens an AdbStream object corresponding to the specified destination.
-     * This routine will block until the connection completes.
+     * This routine will block until the connection completes and the peer
+     * has accepted the stream, for at most {@link #DEFAULT_OPEN_TIMEOUT}.
      * @param destination The destination to open on the target
      * @return AdbStream object corresponding to the specified destination
      * @throws UnsupportedEncodingException If the destination cannot be encoded to UTF-8
+     * @throws java.net.ConnectException If the peer rejected the stream
+     * @throws SocketTimeoutException If the peer did not answer in time
      * @throws IOException If the stream fails while sending the packet
      * @throws InterruptedException If we are unable to wait for the connection to finish
      */
     public AdbStream open(String destination) throws UnsupportedEncodingException, IOException, InterruptedException {
-        int localId = ++lastLocalId;
+        CompletableFuture<AdbStream> future = openAsync(destination, DEFAULT_OPEN_TIMEOUT);
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to open " + destination, cause);
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Open of " + destination + " was cancelled");
+        }
+    }
 
+    /**
+     * Opens a stream without blocking, with the default deadline.
+     * @param destination The destination to open on the target
+     * @return A future completing with the stream once the peer accepts it
+     * @see #openAsync(String, long)
+     */
+    public CompletableFuture<AdbStream> openAsync(String destination) {
+        return openAsync(destination, DEFAULT_OPEN_TIMEOUT);
+    }
+
+    /**
+     * Opens a stream without blocking. Several opens may be pending on one
+     * connection at the same time; each sends its OPEN right away, or as soon
+     * as the connection is established.
+     * <p>
+     * The future completes with the stream on the peer's OKAY. It fails with a
+     * {@link java.net.ConnectException} if the peer answers with CLSE, with a
+     * {@link SocketTimeoutException} once the deadline passes, and with an
+     * IOException if the connection goes down. Cancelling it, or any failure,
+     * closes the half-open stream.
+     * @param destination The destination to open on the target
+     * @param timeoutMillis Deadline for the peer's answer, or 0 to wait indefinitely
+     * @return A future completing with the stream once the peer accepts it
+     */
+    public CompletableFuture<AdbStream> openAsync(final String destination, long timeoutMillis) {
         if (!connectAttempted)
             throw new IllegalStateException("connect() must be called first");
 
-        /* Wait for the connect response */
-        if (!connected) {
-            synchronized (this) {
-                if (!connected)
-                    wait();
+        final CompletableFuture<AdbStream> result = new CompletableFuture<>();
+
+        if (connected) {
+            sendOpen(destination, result);
+        } else {
+            /* Send the open once the connect response is in */
+            connectFuture.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    sendOpen(destination, result);
+                }
+            });
+        }
+
+        if (timeoutMillis > 0 && !result.isDone()) {
+            final ScheduledFuture<?> deadline = OPEN_TIMEOUTS.schedule(() -> {
+                result.completeExceptionally(new SocketTimeoutException(
+                        "Timed out opening " + destination));
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            result.whenComplete((stream, error) -> deadline.cancel(false));
+        }
+
+        return result;
+    }
+
+    /**
+     * Registers a half-open stream and sends its OPEN message, linking the
+     * outcome to the given future.
+     */
+    private void sendOpen(String destination, CompletableFuture<AdbStream> result) {
+        /* Timed out or cancelled while waiting for the connection */
+        if (result.isDone())
+            return;
 
-                if (!connected) {
-                    throw new IOException("Connection failed");
+        try {
+            byte[] encoded = AdbProtocol.encodeDestination(destination);
+
+            /* Add this stream to this list of half-open streams */
+            int localId = msgManager.allocateLocalId();
+            final AdbStream stream = new AdbStream(this, localId);
+            msgManager.addAdbStream(localId, stream);
+
+            stream.getOpenFuture().whenComplete((opened, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(opened);
                 }
-            }
+            });
+
+            /* A stream that is not handed to the caller is closed again */
+            result.whenComplete((opened, error) -> {
+                if (error != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                    }
+                }
+            });
+
+            /* Send the open, advertising our receive window if delayed_ack is in use */
+            messageWriter.postMessage(AdbProtocol.CMD_OPEN, localId,
+                    delayedAck ? AdbProtocol.DELAYED_ACK_WINDOW : 0, encoded);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
         }
+    }
 
-        /* Add this stream to this list of half-open streams */
-        AdbStream stream = new AdbStream(this, localId);
-        msgManager.addAdbStream(localId, stream);
+    /**
+     * Runs a command with the shell protocol, without a PTY. Output arrives
+     * on separate stdout and stderr channels and ends with the exit code.
+     * @param command The command to run; an empty command is not allowed
+     * @return A shell stream for the running command
+     * @throws IOException If the peer does not support shell_v2 or the open fails
+     * @throws InterruptedException If we are unable to wait for the peer's answer
+     */
+    public AdbShellStream openShell(String command) throws IOException, InterruptedException {
+        if (!isShellV2Supported())
+            throw new IOException("Remote peer does not support " + AdbProtocol.FEATURE_SHELL_V2);
 
-        /* Send the open */
-        outputStream.write(AdbProtocol.generateOpen(localId, destination));
-        outputStream.flush();
+        return new AdbShellStream(open(AdbShellStream.SERVICE_PREFIX + command));
+    }
 
-        /* Wait for the connection thread to receive the OKAY */
-        synchronized (stream) {
-            // 五秒超时
-            stream.wait(5000);
+    /**
+     * Runs a command with the shell protocol and collects its output.
+     * @param command The command to run
+     * @param timeoutMillis Deadline for the command to exit
+     * @return The command's exit code and output
+     * @throws IOException If the peer does not support shell_v2 or the stream fails
+     * @throws InterruptedException If we are unable to wait for the command
+     * @see #openShell(String)
+     */
+    public AdbShellResult shell(String command, long timeoutMillis) throws IOException, InterruptedException {
+        AdbShellStream shell = openShell(command);
+        try {
+            return shell.readResult(timeoutMillis);
+        } finally {
+            shell.close();
         }
+    }
 
-        /* Check if the open was rejected */
-//		if (stream.isClosed())
-//			throw new ConnectException("Stream open actively rejected by remote peer");
+    /**
+     * Opens the sync: service for pushing, pulling and listing files. The
+     * v2 requests are used where the peer advertises them.
+     * @return A sync client on a new stream; close it when done
+     * @throws IOException If the open fails
+     * @throws InterruptedException If we are unable to wait for the peer's answer
+     */
+    public AdbSyncClient openSync() throws IOException, InterruptedException {
+        AdbStream stream = open(AdbSyncClient.SERVICE);
+        return new AdbSyncClient(stream, getMaxData(), peerFeatures);
+    }
 
-        /* We're fully setup now */
-        return stream;
+    private static ScheduledThreadPoolExecutor createTimeoutScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "AdbOpenTimeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
     }
 
     /**
@@ -276,6 +687,15 @@ public class AdbConnection implements Closeable {
      */
     @Override
     public void close() throws IOException {
+        closeRequested = true;
+
+        /* Stop the writer; anything still queued fails */
+        if (messageWriter != null)
+            messageWriter.close();
+
+        /* Release the dispatch threads */
+        msgManager.shutdown();
+
         /* If the connection thread hasn't spawned yet, there's nothing to do */
         if (connectionThread == null)
             return;
@@ -292,7 +712,7 @@ public class AdbConnection implements Closeable {
     }
 
     public boolean isFine() {
-        return isFine && connectAttempted && connected;
+        return isFine && connectAttempted && connected && !closed;
     }
 
     public synchronized void setFine(boolean isFine) {
@@ -33,6 +33,12 @@ public class AdbCrypto {
     /** The base 64 conversion interface to use */
     private AdbBase64 base64;
 
+    /** The public key in ADB format, converted once on first use */
+    private volatile byte[] publicKeyPayload;
+
+    /** Per-thread signing ciphers initialized with the private key */
+    private final ThreadLocal<Cipher> signingCipher = new ThreadLocal<Cipher>();
+
     /** The ADB RSA key length in bits */
     public static final int KEY_LENGTH_BITS = 2048;
 
@@ -146,8 +152,6 @@ public class AdbCrypto {
      * @throws InvalidKeySpecException If a PKCS8 or X509 key spec cannot be found
      */
     public static AdbCrypto loadAdbKeyPair(AdbBase64 base64, File privateKey, File publicKey) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
-        AdbCrypto crypto = new AdbCrypto();
-
         int privKeyLength = (int) privateKey.length();
         int pubKeyLength = (int) publicKey.length();
         byte[] privKeyBytes = new byte[privKeyLength];
@@ -162,9 +166,24 @@ public class AdbCrypto {
         privIn.close();
         pubIn.close();
 
+        return loadAdbKeyPair(base64, privKeyBytes, pubKeyBytes);
+    }
+
+    /**
+     * Creates a new AdbCrypto object from an encoded key pair held in memory.
+     * @param base64 Implementation of base 64 conversion interface required by ADB
+     * @param privateKey PKCS8 encoded RSA private key
+     * @param publicKey X509 encoded RSA public key
+     * @return New AdbCrypto object
+     * @throws NoSuchAlgorithmException If an RSA key factory cannot be found
+     * @throws InvalidKeySpecException If a PKCS8 or X509 key spec cannot be found
+     */
+    public static AdbCrypto loadAdbKeyPair(AdbBase64 base64, byte[] privateKey, byte[] publicKey) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        AdbCrypto crypto = new AdbCrypto();
+
         KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(privKeyBytes);
-        EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(pubKeyBytes);
+        EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(privateKey);
+        EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKey);
 
         crypto.keyPair = new KeyPair(keyFactory.generatePublic(publicKeySpec),
                 keyFactory.generatePrivate(privateKeySpec));
@@ -198,13 +217,29 @@ public class AdbCrypto {
      * @throws GeneralSecurityException If signing fails
      */
     public byte[] signAdbTokenPayload(byte[] payload) throws GeneralSecurityException {
-        Cipher c = Cipher.getInstance("RSA/ECB/NoPadding");
+        return signAdbTokenPayload(payload, 0, payload.length);
+    }
 
-        c.init(Cipher.ENCRYPT_MODE, keyPair.getPrivate());
+    /**
+     * Signs the ADB SHA1 payload held in part of a buffer with the private key of this object.
+     * @param payload Buffer containing the SHA1 payload to sign
+     * @param offset Offset of the payload in the buffer
+     * @param length Length of the payload
+     * @return Signed SHA1 payload
+     * @throws GeneralSecurityException If signing fails
+     */
+    public byte[] signAdbTokenPayload(byte[] payload, int offset, int length) throws GeneralSecurityException {
+        /* doFinal resets the cipher to its initialized state, so each thread keeps one */
+        Cipher c = signingCipher.get();
+        if (c == null) {
+            c = Cipher.getInstance("RSA/ECB/NoPadding");
+            c.init(Cipher.ENCRYPT_MODE, keyPair.getPrivate());
+            signingCipher.set(c);
+        }
 
         c.update(SIGNATURE_PADDING);
 
-        return c.doFinal(payload);
+        return c.doFinal(payload, offset, length);
     }
 
     /**
@@ -213,6 +248,19 @@ public class AdbCrypto {
      * @throws IOException If the key cannot be retrived
      */
     public byte[] getAdbPublicKeyPayload() throws IOException {
+        byte[] payload = publicKeyPayload;
+        if (payload == null) {
+            /* A racing thread may convert the key too; both produce the same bytes */
+            payload = buildAdbPublicKeyPayload();
+            publicKeyPayload = payload;
+        }
+        return payload.clone();
+    }
+
+    /**
+     * Converts the public key to the base64 ADB format sent in AUTH messages.
+     */
+    private byte[] buildAdbPublicKeyPayload() throws IOException {
         byte[] convertedKey = convertRsaPublicKeyToAdbFormat((RSAPublicKey) keyPair.getPublic());
         StringBuilder keyString = new StringBuilder(720);
 
@@ -224,6 +272,22 @@ public class AdbCrypto {
         return keyString.toString().getBytes("UTF-8");
     }
 
+    /**
+     * Gets the PKCS8 encoded private key of this object.
+     * @return Encoded private key
+     */
+    public byte[] getEncodedPrivateKey() {
+        return keyPair.getPrivate().getEncoded();
+    }
+
+    /**
+     * Gets the X509 encoded public key of this object.
+     * @return Encoded public key
+     */
+    public byte[] getEncodedPublicKey() {
+        return keyPair.getPublic().getEncoded();
+    }
+
     /**
      * Saves the AdbCrypto's key pair to the specified files.
      * @param privateKey The file to store the encoded private key
@@ -0,0 +1,27 @@
+package pub.log.startfrp.adblib;
+
+/**
+ * Selects how messages read off the socket are handed to the stream logic.
+ */
+public enum AdbDispatchMode {
+
+    /**
+     * Messages are processed on the connection thread that read them.
+     * Order is preserved and there is no queue handoff; processing never
+     * blocks for long since replies are queued to the writer thread.
+     */
+    INLINE,
+
+    /**
+     * Messages are routed to a fixed set of threads by their stream's local ID.
+     * Each stream keeps its order while different streams are processed in
+     * parallel. Connection-level messages go to the first thread.
+     */
+    SHARDED,
+
+    /**
+     * Three threads poll one shared queue. Messages of the same stream may be
+     * processed out of order; only kept for comparison.
+     */
+    SHARED_QUEUE
+}
@@ -0,0 +1,178 @@
+package pub.log.startfrp.adblib;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands messages from the connection thread to a {@link Handler}, using one
+ * of the strategies of {@link AdbDispatchMode}. A dispatcher lives exactly as
+ * long as its connection: {@link #shutdown()} stops its threads and recycles
+ * any message still waiting.
+ */
+abstract class AdbMessageDispatcher {
+
+    /** Number of threads polling the queue in {@link AdbDispatchMode#SHARED_QUEUE} mode */
+    static final int SHARED_QUEUE_THREADS = 3;
+
+    /** Upper bound on the number of lanes in {@link AdbDispatchMode#SHARDED} mode */
+    static final int MAX_SHARDS = 4;
+
+    /**
+     * Processes one message. The handler owns the message from then on.
+     */
+    interface Handler {
+        void handle(AdbProtocol.AdbMessage msg);
+    }
+
+    final Handler handler;
+
+    AdbMessageDispatcher(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Creates a dispatcher for the given mode.
+     * @param mode The dispatch strategy
+     * @param handler Processes the dispatched messages
+     * @return A new, running dispatcher
+     */
+    static AdbMessageDispatcher create(AdbDispatchMode mode, Handler handler) {
+        switch (mode) {
+            case SHARDED:
+                return new Lanes(handler,
+                        Math.max(1, Math.min(MAX_SHARDS, Runtime.getRuntime().availableProcessors())), true);
+            case SHARED_QUEUE:
+                return new Lanes(handler, SHARED_QUEUE_THREADS, false);
+            case INLINE:
+            default:
+                return new Inline(handler);
+        }
+    }
+
+    /**
+     * Called by the connection thread for each message read off the socket.
+     * @param msg The message, owned by the dispatcher from then on
+     */
+    abstract void dispatch(AdbProtocol.AdbMessage msg);
+
+    /**
+     * Stops the dispatcher's threads, if any. Messages not processed yet are recycled.
+     */
+    abstract void shutdown();
+
+    /**
+     * Processes every message right on the connection thread.
+     */
+    private static final class Inline extends AdbMessageDispatcher {
+
+        Inline(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        void dispatch(AdbProtocol.AdbMessage msg) {
+            handler.handle(msg);
+        }
+
+        @Override
+        void shutdown() {
+        }
+    }
+
+    /**
+     * Feeds messages to worker threads through queues. With sharding every
+     * thread has its own queue and a stream always maps to the same one;
+     * otherwise all threads share a single queue.
+     */
+    private static final class Lanes extends AdbMessageDispatcher {
+
+        private final LinkedBlockingQueue<AdbProtocol.AdbMessage>[] queues;
+
+        private final ExecutorService executor;
+
+        private volatile boolean shutdown;
+
+        Lanes(Handler handler, int threads, boolean sharded) {
+            super(handler);
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            LinkedBlockingQueue<AdbProtocol.AdbMessage>[] queues = new LinkedBlockingQueue[sharded ? threads : 1];
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new LinkedBlockingQueue<>();
+            }
+            this.queues = queues;
+
+            this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AdbDispatch-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            for (int i = 0; i < threads; i++) {
+                executor.execute(worker(queues[i % queues.length]));
+            }
+        }
+
+        private Runnable worker(final LinkedBlockingQueue<AdbProtocol.AdbMessage> queue) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    while (!shutdown) {
+                        try {
+                            handler.handle(queue.take());
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        void dispatch(AdbProtocol.AdbMessage msg) {
+            if (shutdown) {
+                msg.recycle();
+                return;
+            }
+
+            /* Stream messages carry our local ID in arg1; connection-level ones go to lane 0 */
+            int lane = 0;
+            if (queues.length > 1 && isStreamCommand(msg.command)) {
+                lane = (msg.arg1 & 0x7fffffff) % queues.length;
+            }
+            queues[lane].add(msg);
+        }
+
+        @Override
+        void shutdown() {
+            shutdown = true;
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (LinkedBlockingQueue<AdbProtocol.AdbMessage> queue : queues) {
+                AdbProtocol.AdbMessage msg;
+                while ((msg = queue.poll()) != null) {
+                    msg.recycle();
+                }
+            }
+        }
+
+        private static boolean isStreamCommand(int command) {
+            return command == AdbProtocol.CMD_OKAY
+                    || command == AdbProtocol.CMD_WRTE
+                    || command == AdbProtocol.CMD_CLSE;
+        }
+    }
+}
@@ -16,68 +16,56 @@
 package pub.log.startfrp.adblib;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.net.ConnectException;
 
 class AdbMessageManager {
 
     /**
-     * A hash map of our open streams indexed by local ID.
+     * Our open streams indexed by local ID; also allocates the IDs.
      **/
-    private HashMap<Integer, AdbStream> openStreams;
+    private final AdbStreamRegistry openStreams;
 
     /**
-     * 调度任务
+     * 消息分发策略，随连接启动和关闭
      */
-    private ExecutorService executorService;
+    private volatile AdbMessageDispatcher dispatcher;
 
     private AdbConnection conn;
 
-    private LinkedBlockingQueue<AdbProtocol.AdbMessage> msgQueue;
-
     protected AdbMessageManager(AdbConnection conn) {
-        this.openStreams = new HashMap<>();
+        this.openStreams = new AdbStreamRegistry();
         this.conn = conn;
-        this.msgQueue = new LinkedBlockingQueue<>();
-
-        // 三个线程处理消息
-        executorService = new ThreadPoolExecutor(5, Integer.MAX_VALUE,
-                0, TimeUnit.MILLISECONDS,
-                new SynchronousQueue<Runnable>());
-        executorService.execute(getMessageHandler());
-        executorService.execute(getMessageHandler());
-        executorService.execute(getMessageHandler());
     }
 
     /**
-     * 添加消息
-     * @param msg
+     * 按指定策略启动消息分发，连接开始读取前调用
+     * @param mode
      */
-    protected void pushMessage(AdbProtocol.AdbMessage msg) {
-        msgQueue.add(msg);
+    protected void start(AdbDispatchMode mode) {
+        dispatcher = AdbMessageDispatcher.create(mode, new AdbMessageDispatcher.Handler() {
+            @Override
+            public void handle(AdbProtocol.AdbMessage msg) {
+                processAdbMessage(msg);
+            }
+        });
     }
 
-    private Runnable getMessageHandler() {
-        return new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    try {
-                        AdbProtocol.AdbMessage msg = msgQueue.poll(5000, TimeUnit.MILLISECONDS);
+    /**
+     * 停止消息分发，释放分发线程，连接结束时调用
+     */
+    protected void shutdown() {
+        AdbMessageDispatcher current = dispatcher;
+        if (current != null) {
+            current.shutdown();
+        }
+    }
 
-                        if (msg != null) {
-                            processAdbMessage(msg);
-                        }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        };
+    /**
+     * 添加消息
+     * @param msg
+     */
+    protected void pushMessage(AdbProtocol.AdbMessage msg) {
+        dispatcher.dispatch(msg);
     }
 
     /**
@@ -89,9 +77,25 @@ class AdbMessageManager {
         openStreams.put(localId, stream);
     }
 
+    /**
+     * 分配新stream的本地ID，可并发调用
+     * @return
+     */
+    protected int allocateLocalId() {
+        return openStreams.allocateId();
+    }
+
+    /**
+     * 移除已关闭的adb stream，其ID稍后复用
+     * @param localId
+     */
+    protected void removeAdbStream(int localId) {
+        openStreams.remove(localId);
+    }
+
     protected void cleanupStreams() {
-        /* Close all streams on this connection */
-        for (AdbStream s : openStreams.values()) {
+        /* No open streams anymore; close all streams on this connection */
+        for (AdbStream s : openStreams.clear()) {
             /* We handle exceptions for each close() call to avoid
              * terminating cleanup for one failed close(). */
             try {
@@ -99,22 +103,20 @@ class AdbMessageManager {
             } catch (IOException e) {
             }
         }
-
-        /* No open streams anymore */
-        openStreams.clear();
     }
 
     /**
-     * 处理ADB消息
+     * 处理ADB消息，处理完后将消息归还缓冲池（WRTE负载交由stream在读完后归还）
      * @param msg
      */
     private void processAdbMessage(AdbProtocol.AdbMessage msg) {
         String cmd = null;
-
-        if (!AdbProtocol.validateMessage(msg))
-            return;
+        boolean handedOff = false;
 
         try {
+            if (!AdbProtocol.validateMessage(msg, conn.isChecksumRequired()))
+                return;
+
             switch (msg.command) {
                 /* Stream-oriented commands */
                 case AdbProtocol.CMD_OKAY:
@@ -126,30 +128,48 @@ class AdbMessageManager {
 
                     /* Get the stream object corresponding to the packet */
                     AdbStream waitingStream = openStreams.get(msg.arg1);
-                    if (waitingStream == null)
+                    if (waitingStream == null) {
+                        /* The stream is gone, e.g. its open timed out; make the peer close its end */
+                        if (msg.command != AdbProtocol.CMD_CLSE)
+                            conn.messageWriter.postMessage(AdbProtocol.CMD_CLSE, 0, msg.arg0);
                         return;
+                    }
 
                     synchronized (waitingStream) {
                         if (msg.command == AdbProtocol.CMD_OKAY) {
                             /* We're ready for writes */
                             waitingStream.updateRemoteId(msg.arg0);
-                            waitingStream.readyForWrite();
-
-                            /* Unwait an open/write */
-                            waitingStream.notify();
+                            if (conn.delayedAck) {
+                                /* The payload holds the bytes the peer acknowledges, which
+                                 * for the reply to our OPEN is its initial receive window */
+                                if (msg.payloadLength != 4)
+                                    return;
+                                waitingStream.addSendWindow(AdbMessageReader.readIntLE(msg.payload, 0));
+                            } else {
+                                waitingStream.readyForWrite();
+                            }
+
+                            /* Complete a pending open and unwait any writers */
+                            waitingStream.notifyOpened();
+                            waitingStream.notifyAll();
 
                             cmd = "OKAY";
                         } else if (msg.command == AdbProtocol.CMD_WRTE) {
-                            /* Got some data from our partner */
-                            waitingStream.addPayload(msg.payload);
+                            /* Got some data from our partner; the read queue may
+                             * recycle the message as soon as it is handed over */
+                            int length = msg.payloadLength;
+                            handedOff = waitingStream.addPayload(msg);
 
-                            /* Tell it we're ready for more */
-                            waitingStream.sendReady();
+                            /* Tell it we're ready for more, unless the reader is too far behind */
+                            waitingStream.acknowledge(length);
                             cmd = "WRTE";
                         } else if (msg.command == AdbProtocol.CMD_CLSE) {
                             /* He doesn't like us anymore :-( */
                             openStreams.remove(msg.arg1);
 
+                            /* A CLSE in answer to our OPEN is a rejection */
+                            waitingStream.failOpen(new ConnectException("Stream open actively rejected by remote peer"));
+
                             /* Notify readers and writers */
                             waitingStream.notifyClose();
                             cmd = "CLSE";
@@ -160,7 +180,8 @@ class AdbMessageManager {
 
                 case AdbProtocol.CMD_AUTH:
 
-                    byte[] packet;
+                    int authType;
+                    byte[] authData;
 
                     cmd = "AUTH";
 
@@ -168,30 +189,42 @@ class AdbMessageManager {
                         /* This is an authentication challenge */
                         if (conn.sentSignature) {
                             /* We've already tried our signature, so send our public key */
-                            packet = AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_RSA_PUBLIC,
-                                    conn.crypto.getAdbPublicKeyPayload());
+                            authType = AdbProtocol.AUTH_TYPE_RSA_PUBLIC;
+                            authData = conn.crypto.getAdbPublicKeyPayload();
                         } else {
                             /* We'll sign the token */
-                            packet = AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_SIGNATURE,
-                                    conn.crypto.signAdbTokenPayload(msg.payload));
+                            authType = AdbProtocol.AUTH_TYPE_SIGNATURE;
+                            authData = conn.crypto.signAdbTokenPayload(msg.payload, 0, msg.payloadLength);
                             conn.sentSignature = true;
                         }
 
                         /* Write the AUTH reply */
-                        conn.outputStream.write(packet);
-                        conn.outputStream.flush();
+                        conn.messageWriter.writeMessage(AdbProtocol.CMD_AUTH, authType, 0, authData);
                     }
                     break;
 
                 case AdbProtocol.CMD_CNXN:
                     synchronized (conn) {
                         cmd = "CNXN";
-                        /* We need to store the max data size */
-                        conn.maxData = msg.arg1;
+                        /* Settle on the lower version and max data size of both sides */
+                        conn.version = Math.min(msg.arg0, AdbProtocol.CONNECT_VERSION);
+                        conn.maxData = Math.min(msg.arg1, AdbProtocol.CONNECT_MAXDATA);
+
+                        /* delayed_ack is only used if both sides advertise it */
+                        conn.peerFeatures = AdbProtocol.parseFeatures(msg.payload, msg.payloadLength);
+                        conn.delayedAck = conn.delayedAckRequested
+                                && conn.peerFeatures.contains(AdbProtocol.FEATURE_DELAYED_ACK);
+
+                        /* Checksums are only dropped once both sides are known to allow it */
+                        conn.messageWriter.setChecksumEnabled(conn.isChecksumRequired());
+
+                        /* Size the payload pool to the negotiated maximum */
+                        conn.messageReader.getPool().setMaxPayload(conn.maxData);
 
                         /* Mark us as connected and unwait anyone waiting on the connection */
                         conn.connected = true;
                         conn.notifyAll();
+                        conn.connectFuture.complete(null);
                     }
                     break;
 
@@ -202,6 +235,10 @@ class AdbMessageManager {
             }
         } catch (Exception e) {
             conn.stopFlag = true;
+        } finally {
+            if (!handedOff) {
+                msg.recycle();
+            }
         }
     }
 
@@ -0,0 +1,172 @@
+package pub.log.startfrp.adblib;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Recycles the {@link AdbProtocol.AdbMessage} objects and payload buffers
+ * produced by {@link AdbMessageReader}.
+ * <p>
+ * Payload buffers are kept in power-of-two size classes, starting at
+ * {@link #MIN_CLASS_SIZE} and going up to the negotiated maximum payload,
+ * so a short shell line does not pin a full maxData sized array while it
+ * waits in a stream's read queue. A payload is handed out at its class size,
+ * so callers must always honour {@link AdbProtocol.AdbMessage#payloadLength}
+ * rather than the array length.
+ */
+final class AdbMessagePool {
+
+    /** The smallest payload buffer handed out by the pool */
+    static final int MIN_CLASS_SIZE = 256;
+
+    /** Roughly how many bytes of idle buffers each size class may retain */
+    private static final int BYTES_PER_CLASS = 256 * 1024;
+
+    /** Upper bound on the number of idle buffers in a single size class */
+    private static final int MAX_BUFFERS_PER_CLASS = 64;
+
+    /** Upper bound on the number of idle message objects */
+    private static final int MAX_MESSAGES = 64;
+
+    /** Idle message objects */
+    private final ArrayBlockingQueue<AdbProtocol.AdbMessage> messages;
+
+    /** Idle payload buffers, indexed by size class */
+    private volatile ArrayBlockingQueue<byte[]>[] classes;
+
+    /** The largest payload the pool will recycle */
+    private volatile int maxPayload;
+
+    /**
+     * Creates a pool able to recycle payloads up to the given size.
+     * @param maxPayload The largest payload that will be recycled
+     */
+    AdbMessagePool(int maxPayload) {
+        this.messages = new ArrayBlockingQueue<>(MAX_MESSAGES);
+        setMaxPayload(maxPayload);
+    }
+
+    /**
+     * Resizes the pool after the maximum payload has been negotiated.
+     * Buffers of a size class that no longer exists are simply dropped.
+     * @param maxPayload The largest payload that will be recycled
+     */
+    synchronized void setMaxPayload(int maxPayload) {
+        int count = classIndex(Math.max(maxPayload, MIN_CLASS_SIZE)) + 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayBlockingQueue<byte[]>[] newClasses = new ArrayBlockingQueue[count];
+        ArrayBlockingQueue<byte[]>[] oldClasses = classes;
+
+        for (int i = 0; i < count; i++) {
+            if (oldClasses != null && i < oldClasses.length) {
+                newClasses[i] = oldClasses[i];
+            } else {
+                int capacity = BYTES_PER_CLASS / classSize(i);
+                newClasses[i] = new ArrayBlockingQueue<>(
+                        Math.max(1, Math.min(MAX_BUFFERS_PER_CLASS, capacity)));
+            }
+        }
+
+        this.classes = newClasses;
+        this.maxPayload = maxPayload;
+    }
+
+    /**
+     * Gets the largest payload the pool will recycle.
+     * @return The maximum payload size
+     */
+    int getMaxPayload() {
+        return maxPayload;
+    }
+
+    /**
+     * Takes an idle message object or creates a new one.
+     * All fields of the returned message must be overwritten by the caller.
+     * @return A message object
+     */
+    AdbProtocol.AdbMessage obtainMessage() {
+        AdbProtocol.AdbMessage msg = messages.poll();
+        if (msg == null) {
+            msg = new AdbProtocol.AdbMessage();
+        }
+        msg.pool = this;
+        return msg;
+    }
+
+    /**
+     * Takes a payload buffer of at least the given length.
+     * Payloads bigger than the negotiated maximum get a fresh exact-size array.
+     * @param length Number of payload bytes that will be stored
+     * @return A buffer of at least <code>length</code> bytes
+     */
+    byte[] obtainPayload(int length) {
+        if (length > maxPayload) {
+            return new byte[length];
+        }
+
+        int index = classIndex(length);
+        ArrayBlockingQueue<byte[]>[] current = classes;
+        if (index < current.length) {
+            byte[] buffer = current[index].poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+
+        return new byte[classSize(index)];
+    }
+
+    /**
+     * Returns a message and its payload buffer to the pool. The message must
+     * not be touched by the caller afterwards.
+     * @param msg Message to recycle
+     */
+    void recycle(AdbProtocol.AdbMessage msg) {
+        byte[] payload = msg.payload;
+        msg.payload = null;
+        msg.payloadLength = 0;
+
+        if (payload != null) {
+            releasePayload(payload);
+        }
+
+        messages.offer(msg);
+    }
+
+    /**
+     * Returns a payload buffer to its size class, if it belongs to one.
+     * @param payload Buffer previously handed out by {@link #obtainPayload(int)}
+     */
+    private void releasePayload(byte[] payload) {
+        int length = payload.length;
+
+        /* Only exact class sizes are pooled */
+        if (length < MIN_CLASS_SIZE || (length & (length - 1)) != 0) {
+            return;
+        }
+
+        int index = classIndex(length);
+        ArrayBlockingQueue<byte[]>[] current = classes;
+        if (index < current.length) {
+            current[index].offer(payload);
+        }
+    }
+
+    /**
+     * Maps a length to the index of the smallest size class that can hold it.
+     */
+    private static int classIndex(int length) {
+        if (length <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+
+        int bits = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return bits - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    }
+
+    /**
+     * Gets the buffer size of a size class.
+     */
+    private static int classSize(int index) {
+        return MIN_CLASS_SIZE << index;
+    }
+}
@@ -0,0 +1,208 @@
+package pub.log.startfrp.adblib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * Decodes ADB messages from the socket input stream for the connection thread.
+ * <p>
+ * Reads ahead into a single reusable buffer, so one <code>read()</code> on the
+ * socket usually yields several small frames (an OKAY burst, short shell
+ * lines), and headers are parsed straight out of that buffer. Message objects
+ * and payload arrays come from an {@link AdbMessagePool} and are handed back
+ * once the message has been processed or its payload has been consumed.
+ * <p>
+ * A {@link SocketTimeoutException} from the stream loses nothing: the frame
+ * being read is kept, and the next call to {@link #readMessage()} picks it up
+ * where the timeout hit, so the caller may treat the timeout as idle time.
+ * <p>
+ * This class is not thread-safe; it is only used by the connection thread.
+ */
+final class AdbMessageReader {
+
+    /** Size of the read-ahead buffer, matching the socket receive buffer */
+    static final int READ_AHEAD_SIZE = 64 * 1024;
+
+    /** The stream that messages are read from */
+    private final InputStream in;
+
+    /** The pool supplying message objects and payload buffers */
+    private final AdbMessagePool pool;
+
+    /** The read-ahead buffer */
+    private final byte[] buffer;
+
+    /** Index of the next unread byte in the buffer */
+    private int position;
+
+    /** Index one greater than the last valid byte in the buffer */
+    private int limit;
+
+    /** A message whose payload is still being read after a timeout, or null */
+    private AdbProtocol.AdbMessage pending;
+
+    /** Number of payload bytes of the pending message read so far */
+    private int pendingOffset;
+
+    /**
+     * Creates a reader on top of the given stream.
+     * @param in Stream to read messages from
+     * @param pool Pool supplying message objects and payload buffers
+     */
+    AdbMessageReader(InputStream in, AdbMessagePool pool) {
+        this.in = in;
+        this.pool = pool;
+        this.buffer = new byte[READ_AHEAD_SIZE];
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    /**
+     * Gets the pool that messages returned by this reader belong to.
+     * @return The message pool
+     */
+    AdbMessagePool getPool() {
+        return pool;
+    }
+
+    /**
+     * Reads and parses the next ADB message. Only the magic and the payload
+     * length are checked here; the checksum is left to the caller.
+     * The caller owns the returned message and must recycle it, or hand it
+     * over to something that does, once it is done with it.
+     * @return The next message on the stream
+     * @throws IOException If the stream fails or is closed while reading, or
+     *                     the header has a bad magic or an oversized payload
+     */
+    AdbProtocol.AdbMessage readMessage() throws IOException {
+        if (pending == null) {
+            /* Nothing is consumed until the whole header is buffered */
+            ensureBuffered(AdbProtocol.ADB_HEADER_LENGTH);
+
+            /* Reject a corrupt or hostile header before allocating its payload,
+             * like adbd does; the stream cannot be resynchronised after it */
+            int command = readIntLE(buffer, position);
+            int magic = readIntLE(buffer, position + 20);
+            if (command != (magic ^ 0xFFFFFFFF)) {
+                throw new IOException("Invalid message magic: command " + Integer.toHexString(command)
+                        + ", magic " + Integer.toHexString(magic));
+            }
+
+            int payloadLength = readIntLE(buffer, position + 12);
+            if (payloadLength < 0 || payloadLength > getMaxPayloadLength()) {
+                throw new IOException("Invalid payload length: " + payloadLength);
+            }
+
+            AdbProtocol.AdbMessage msg = pool.obtainMessage();
+            msg.command = command;
+            msg.arg0 = readIntLE(buffer, position + 4);
+            msg.arg1 = readIntLE(buffer, position + 8);
+            msg.payloadLength = payloadLength;
+            msg.checksum = readIntLE(buffer, position + 16);
+            msg.magic = magic;
+            msg.payload = payloadLength != 0 ? pool.obtainPayload(payloadLength) : null;
+            position += AdbProtocol.ADB_HEADER_LENGTH;
+
+            pending = msg;
+            pendingOffset = 0;
+        }
+
+        AdbProtocol.AdbMessage msg = pending;
+        try {
+            readPayload(msg);
+        } catch (SocketTimeoutException e) {
+            /* Keep the partial message for the next call */
+            throw e;
+        } catch (IOException e) {
+            pending = null;
+            pool.recycle(msg);
+            throw e;
+        }
+
+        pending = null;
+        return msg;
+    }
+
+    /**
+     * Gets the largest payload accepted from the peer: the negotiated maximum,
+     * but never less than what we advertise, since the peer's CNXN may carry
+     * a payload of that size before the maximum is negotiated.
+     */
+    private int getMaxPayloadLength() {
+        return Math.max(pool.getMaxPayload(), AdbProtocol.CONNECT_MAXDATA);
+    }
+
+    /**
+     * Copies the rest of a payload out of the read-ahead buffer, reading from
+     * the stream as needed. Progress is kept in {@link #pendingOffset}.
+     */
+    private void readPayload(AdbProtocol.AdbMessage msg) throws IOException {
+        int length = msg.payloadLength;
+
+        while (pendingOffset < length) {
+            int buffered = limit - position;
+            if (buffered > 0) {
+                int toCopy = Math.min(buffered, length - pendingOffset);
+                System.arraycopy(buffer, position, msg.payload, pendingOffset, toCopy);
+                position += toCopy;
+                pendingOffset += toCopy;
+                continue;
+            }
+
+            int remaining = length - pendingOffset;
+            if (remaining < buffer.length) {
+                /* Small enough to go through the buffer, which also picks up the frames behind it */
+                position = 0;
+                limit = 0;
+                int bytesRead = in.read(buffer, 0, buffer.length);
+                if (bytesRead < 0) {
+                    throw new IOException("Stream closed");
+                }
+                limit = bytesRead;
+            } else {
+                /* A payload larger than the buffer is read straight into its destination */
+                int bytesRead = in.read(msg.payload, pendingOffset, remaining);
+                if (bytesRead < 0) {
+                    throw new IOException("Stream closed");
+                }
+                pendingOffset += bytesRead;
+            }
+        }
+    }
+
+    /**
+     * Makes sure at least <code>count</code> unread bytes are in the buffer,
+     * compacting it and reading as much as the stream offers at once.
+     */
+    private void ensureBuffered(int count) throws IOException {
+        if (limit - position >= count) {
+            return;
+        }
+
+        if (buffer.length - position < count) {
+            int remaining = limit - position;
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+            position = 0;
+            limit = remaining;
+        }
+
+        while (limit - position < count) {
+            int bytesRead = in.read(buffer, limit, buffer.length - limit);
+            if (bytesRead < 0) {
+                throw new IOException("Stream closed");
+            }
+            limit += bytesRead;
+        }
+    }
+
+    /**
+     * Reads a little endian int out of a byte array.
+     */
+    static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xff)
+                | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+}
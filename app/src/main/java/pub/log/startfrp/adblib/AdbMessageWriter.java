@@ -0,0 +1,434 @@
+package pub.log.startfrp.adblib;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Serializes all outbound ADB messages onto the connection's socket.
+ * <p>
+ * Producers (stream writers, the message handlers sending OKAY and AUTH,
+ * open and close) put frames into a bounded queue and a single writer thread
+ * owns the socket. The writer drains whatever has queued up and sends the
+ * whole batch at once, so a burst of OKAYs after a burst of WRTEs costs one
+ * syscall rather than one each, and frames can never interleave. A full queue
+ * blocks producers until the writer catches up.
+ * <p>
+ * Headers and small payloads are packed into one reusable buffer and larger
+ * payloads are referenced where they are, never copied. With a
+ * {@link java.nio.channels.SocketChannel} the batch goes out in a single
+ * gathering write; a plain socket gets a buffered stream that is flushed
+ * once per batch instead.
+ */
+final class AdbMessageWriter {
+
+    /** Number of frames that may be queued before producers block */
+    static final int QUEUE_CAPACITY = 256;
+
+    /** Upper bound on the number of frames sent in one batch */
+    private static final int MAX_BATCH = 64;
+
+    /** Payloads up to this size are copied next to their header */
+    private static final int INLINE_LIMIT = 64;
+
+    /** Frames waiting for the writer thread */
+    private final BlockingQueue<Frame> queue;
+
+    /** The batch being written, only touched by the writer thread */
+    private final List<Frame> batch;
+
+    /** Headers and inline payloads of the current batch */
+    private final ByteBuffer headers;
+
+    /** Reusable vector describing the current batch */
+    private final ByteBuffer[] vector;
+
+    /** Scratch space for the payload of byte-counted OKAY messages */
+    private final byte[] ackPayload;
+
+    /** The channel used for gathering writes, or null in stream mode */
+    private final GatheringByteChannel channel;
+
+    /** The buffered stream used when no channel is available */
+    private final OutputStream out;
+
+    /** The writer thread */
+    private Thread writerThread;
+
+    /** Set once the writer has stopped; no frame is accepted afterwards */
+    private volatile boolean closed;
+
+    /** The error that stopped the writer, if any */
+    private volatile IOException failure;
+
+    /** Specifies whether payload checksums are computed for outbound messages */
+    private volatile boolean checksumEnabled = true;
+
+    /**
+     * Creates a writer that uses gathering writes on the given channel.
+     * @param channel The socket channel
+     */
+    AdbMessageWriter(GatheringByteChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * Creates a writer on a plain output stream.
+     * @param out The socket output stream
+     */
+    AdbMessageWriter(OutputStream out) {
+        this(null, new BufferedOutputStream(out, AdbMessageReader.READ_AHEAD_SIZE));
+    }
+
+    private AdbMessageWriter(GatheringByteChannel channel, OutputStream out) {
+        this.channel = channel;
+        this.out = out;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.batch = new ArrayList<>(MAX_BATCH);
+        this.headers = ByteBuffer.allocate(MAX_BATCH * (AdbProtocol.ADB_HEADER_LENGTH + INLINE_LIMIT))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.vector = new ByteBuffer[MAX_BATCH * 2];
+        this.ackPayload = new byte[4];
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    synchronized void start() {
+        if (writerThread != null)
+            return;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "AdbMessageWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer thread. Frames still queued fail with an IOException.
+     */
+    synchronized void close() {
+        closed = true;
+        if (writerThread != null) {
+            writerThread.interrupt();
+        }
+        failPending();
+    }
+
+    /**
+     * Turns payload checksums on or off once the protocol version is negotiated.
+     * Until then checksums are always computed, as an old peer would reject
+     * the messages otherwise.
+     * @param checksumEnabled Specifies whether payload checksums are computed
+     */
+    void setChecksumEnabled(boolean checksumEnabled) {
+        this.checksumEnabled = checksumEnabled;
+    }
+
+    /**
+     * Writes a message without a payload and waits until it has been sent.
+     * @param command Command identifier
+     * @param arg0 First argument
+     * @param arg1 Second argument
+     * @throws IOException If the socket fails while writing
+     */
+    void writeMessage(int command, int arg0, int arg1) throws IOException {
+        writeMessage(command, arg0, arg1, null, 0, 0);
+    }
+
+    /**
+     * Writes a message whose payload is a whole byte array and waits until
+     * it has been sent.
+     * @param command Command identifier
+     * @param arg0 First argument
+     * @param arg1 Second argument
+     * @param payload Data payload, may be null
+     * @throws IOException If the socket fails while writing
+     */
+    void writeMessage(int command, int arg0, int arg1, byte[] payload) throws IOException {
+        writeMessage(command, arg0, arg1, payload, 0, payload != null ? payload.length : 0);
+    }
+
+    /**
+     * Writes a message whose payload is part of a byte array and waits until
+     * it has been sent. The payload is not copied and may be reused once
+     * this returns.
+     * @param command Command identifier
+     * @param arg0 First argument
+     * @param arg1 Second argument
+     * @param payload Buffer containing the payload, may be null if length is 0
+     * @param offset Offset of the payload in the buffer
+     * @param length Length of the payload
+     * @throws IOException If the socket fails while writing
+     */
+    void writeMessage(int command, int arg0, int arg1,
+                      byte[] payload, int offset, int length) throws IOException {
+        Frame frame = new Frame(command, arg0, arg1, payload, offset, length);
+        enqueue(frame);
+        frame.await();
+    }
+
+    /**
+     * Queues a message without a payload and returns without waiting for it.
+     * Any error surfaces when the connection goes down.
+     * @param command Command identifier
+     * @param arg0 First argument
+     * @param arg1 Second argument
+     * @throws IOException If the writer has already stopped
+     */
+    void postMessage(int command, int arg0, int arg1) throws IOException {
+        enqueue(new Frame(command, arg0, arg1, null, 0, 0));
+    }
+
+    /**
+     * Queues a message and returns without waiting for it. The writer takes
+     * over the payload, which must not be modified afterwards.
+     * @param command Command identifier
+     * @param arg0 First argument
+     * @param arg1 Second argument
+     * @param payload Data payload, may be null
+     * @throws IOException If the writer has already stopped
+     */
+    void postMessage(int command, int arg0, int arg1, byte[] payload) throws IOException {
+        enqueue(new Frame(command, arg0, arg1, payload, 0, payload != null ? payload.length : 0));
+    }
+
+    /**
+     * Queues an OKAY message carrying the number of bytes acknowledged,
+     * as required once delayed_ack has been negotiated, and returns without
+     * waiting for it.
+     * @param localId The unique local ID of the stream
+     * @param remoteId The unique remote ID of the stream
+     * @param ackedBytes Number of bytes the peer may send in addition
+     * @throws IOException If the writer has already stopped
+     */
+    void postAck(int localId, int remoteId, int ackedBytes) throws IOException {
+        Frame frame = new Frame(AdbProtocol.CMD_OKAY, localId, remoteId, null, 0, 4);
+        frame.ack = true;
+        frame.ackedBytes = ackedBytes;
+        enqueue(frame);
+    }
+
+    /**
+     * Puts a frame into the queue, blocking while it is full.
+     */
+    private void enqueue(Frame frame) throws IOException {
+        if (closed)
+            throw closedException();
+
+        try {
+            queue.put(frame);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing message");
+        }
+
+        /* The writer may have stopped while we were waiting for room */
+        if (closed) {
+            failPending();
+        }
+    }
+
+    /**
+     * The writer thread's loop: take a frame, drain everything queued behind
+     * it and send the batch.
+     */
+    private void runWriter() {
+        IOException error = null;
+
+        try {
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                writeBatch();
+
+                for (Frame frame : batch) {
+                    frame.complete(null);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            /* close() was called */
+        } catch (IOException e) {
+            error = e;
+        }
+
+        failure = error;
+        closed = true;
+
+        for (Frame frame : batch) {
+            frame.complete(closedException());
+        }
+        batch.clear();
+        failPending();
+
+        /* A broken socket is closed so the connection thread notices as well */
+        if (error != null) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                } else {
+                    out.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Encodes the current batch and sends it in one go.
+     */
+    private void writeBatch() throws IOException {
+        boolean checksum = checksumEnabled;
+        int count = 0;
+        int runStart = 0;
+
+        headers.clear();
+        for (Frame frame : batch) {
+            if (frame.ack) {
+                ackPayload[0] = (byte) frame.ackedBytes;
+                ackPayload[1] = (byte) (frame.ackedBytes >> 8);
+                ackPayload[2] = (byte) (frame.ackedBytes >> 16);
+                ackPayload[3] = (byte) (frame.ackedBytes >> 24);
+                AdbProtocol.putHeader(headers, frame.command, frame.arg0, frame.arg1,
+                        ackPayload, 0, ackPayload.length, checksum);
+                headers.put(ackPayload);
+                continue;
+            }
+
+            AdbProtocol.putHeader(headers, frame.command, frame.arg0, frame.arg1,
+                    frame.payload, frame.offset, frame.length, checksum);
+
+            if (frame.length <= INLINE_LIMIT) {
+                if (frame.length != 0) {
+                    headers.put(frame.payload, frame.offset, frame.length);
+                }
+            } else {
+                /* Close the run of packed headers and reference the payload in place */
+                vector[count++] = run(runStart, headers.position());
+                vector[count++] = ByteBuffer.wrap(frame.payload, frame.offset, frame.length);
+                runStart = headers.position();
+            }
+        }
+        if (headers.position() > runStart) {
+            vector[count++] = run(runStart, headers.position());
+        }
+
+        try {
+            if (channel != null) {
+                int first = 0;
+                while (first < count) {
+                    channel.write(vector, first, count - first);
+                    while (first < count && !vector[first].hasRemaining()) {
+                        first++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer buffer = vector[i];
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                }
+                out.flush();
+            }
+        } finally {
+            Arrays.fill(vector, 0, count, null);
+        }
+    }
+
+    /**
+     * Gets a view of part of the header buffer.
+     */
+    private ByteBuffer run(int start, int end) {
+        ByteBuffer run = headers.duplicate();
+        run.limit(end);
+        run.position(start);
+        return run;
+    }
+
+    /**
+     * Fails every frame still in the queue.
+     */
+    private void failPending() {
+        Frame frame;
+        while ((frame = queue.poll()) != null) {
+            frame.complete(closedException());
+        }
+    }
+
+    private IOException closedException() {
+        IOException cause = failure;
+        return cause != null ? new IOException("Connection closed: " + cause.getMessage(), cause)
+                : new IOException("Connection closed");
+    }
+
+    /**
+     * A queued message. Producers waiting for a frame block on its monitor.
+     */
+    private static final class Frame {
+        final int command;
+        final int arg0;
+        final int arg1;
+        final byte[] payload;
+        final int offset;
+        final int length;
+
+        /** Specifies whether this is an OKAY carrying ackedBytes as its payload */
+        boolean ack;
+        int ackedBytes;
+
+        private boolean done;
+        private IOException error;
+
+        Frame(int command, int arg0, int arg1, byte[] payload, int offset, int length) {
+            this.command = command;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.payload = payload;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        synchronized void complete(IOException error) {
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the writer is done with this frame. The wait is not
+         * interruptible because the caller may only reuse the payload once
+         * the writer no longer references it; an interrupt is preserved.
+         */
+        synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package pub.log.startfrp.adblib;
 
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 
 /**
@@ -23,11 +25,20 @@ class AdbProtocol {
      * are valid before this message is received. */
     public static final int CMD_CNXN = 0x4e584e43;
 
+    /** The original version of the ADB protocol, which checksums every payload */
+    public static final int A_VERSION_MIN = 0x01000000;
+
+    /** The first ADB protocol version that no longer requires payload checksums */
+    public static final int A_VERSION_SKIP_CHECKSUM = 0x01000001;
+
     /** The current version of the ADB protocol */
-    public static final int CONNECT_VERSION = 0x01000000;
+    public static final int CONNECT_VERSION = A_VERSION_SKIP_CHECKSUM;
+
+    /** The maximum data payload of the original protocol, which old peers still answer with */
+    public static final int MAX_PAYLOAD_V1 = 4096;
 
     /** The maximum data payload supported by the ADB implementation */
-    public static final int CONNECT_MAXDATA = 4096;
+    public static final int CONNECT_MAXDATA = 1024 * 1024;
 
     /** The payload sent with the connect message */
     public static byte[] CONNECT_PAYLOAD;
@@ -39,6 +50,25 @@ class AdbProtocol {
         }
     }
 
+    /** The feature that enables byte-counted OKAY messages and per-stream send windows */
+    public static final String FEATURE_DELAYED_ACK = "delayed_ack";
+
+    /** The feature that enables the framed shell protocol of shell,v2: services */
+    public static final String FEATURE_SHELL_V2 = "shell_v2";
+
+    /** The feature that enables STA2/LST2 stat requests in the sync service, with 64-bit sizes and an error code */
+    public static final String FEATURE_STAT_V2 = "stat_v2";
+
+    /** The feature that enables LIS2 directory listings in the sync service */
+    public static final String FEATURE_LS_V2 = "ls_v2";
+
+    /** The feature that enables SND2/RCV2 transfers in the sync service */
+    public static final String FEATURE_SENDRECV_V2 = "sendrecv_v2";
+
+    /** The receive window advertised in OPEN messages when delayed_ack is in use,
+     * sized to the stream's receive buffer so unread data stays bounded */
+    public static final int DELAYED_ACK_WINDOW = ByteQueueInputStream.HIGH_WATER_MARK;
+
     /** AUTH is the authentication message. It is part of the
      * RSA public key authentication added in Android 4.2.2. */
     public static final int CMD_AUTH = 0x48545541;
@@ -70,18 +100,17 @@ class AdbProtocol {
 
     /**
      * This function performs a checksum on the ADB payload data.
-     * @param payload Payload to checksum
+     * @param payload Buffer containing the payload to checksum
+     * @param offset Offset of the payload in the buffer
+     * @param length Number of payload bytes to include
      * @return The checksum of the payload
      */
-    private static int getPayloadChecksum(byte[] payload) {
+    private static int getPayloadChecksum(byte[] payload, int offset, int length) {
         int checksum = 0;
 
-        for (byte b : payload) {
+        for (int i = offset; i < offset + length; i++) {
             /* We have to manually "unsign" these bytes because Java sucks */
-            if (b >= 0)
-                checksum += b;
-            else
-                checksum += b + 256;
+            checksum += payload[i] & 0xff;
         }
 
         return checksum;
@@ -94,12 +123,26 @@ class AdbProtocol {
      * @return True if the message was valid, false otherwise
      */
     public static boolean validateMessage(AdbMessage msg) {
+        return validateMessage(msg, true);
+    }
+
+    /**
+     * This function validate the ADB message by checking its command, magic,
+     * and payload checksum. The checksum is verified whenever the peer filled
+     * it in, and also when it is zero if the negotiated protocol version still
+     * requires it. A peer that skips checksums sends zero, so messages that
+     * arrive before the version is known are still checked if they carry one.
+     * @param msg ADB message to validate
+     * @param checksum Specifies whether the payload checksum must be verified even if zero
+     * @return True if the message was valid, false otherwise
+     */
+    static boolean validateMessage(AdbMessage msg, boolean checksum) {
         /* Magic is cmd ^ 0xFFFFFFFF */
         if (msg.command != (msg.magic ^ 0xFFFFFFFF))
             return false;
 
-        if (msg.payloadLength != 0) {
-            if (getPayloadChecksum(msg.payload) != msg.checksum)
+        if ((checksum || msg.checksum != 0) && msg.payloadLength != 0) {
+            if (getPayloadChecksum(msg.payload, 0, msg.payloadLength) != msg.checksum)
                 return false;
         }
 
@@ -107,14 +150,19 @@ class AdbProtocol {
     }
 
     /**
-     * This function generates an ADB message given the fields.
+     * This function writes an ADB message header into a little endian buffer.
+     * @param header Buffer receiving the 24 header bytes at its current position
      * @param cmd Command identifier
      * @param arg0 First argument
      * @param arg1 Second argument
-     * @param payload Data payload
-     * @return Byte array containing the message
+     * @param payload Buffer containing the payload, may be null if length is 0
+     * @param offset Offset of the payload in the buffer
+     * @param length Length of the payload
+     * @param checksum Specifies whether the payload checksum is computed; it is
+     *                 sent as 0 otherwise, which peers since A_VERSION_SKIP_CHECKSUM accept
      */
-    public static byte[] generateMessage(int cmd, int arg0, int arg1, byte[] payload) {
+    static void putHeader(ByteBuffer header, int cmd, int arg0, int arg1,
+                          byte[] payload, int offset, int length, boolean checksum) {
         /* struct message {
          * 		unsigned command;       // command identifier constant
          * 		unsigned arg0;          // first argument
@@ -124,28 +172,99 @@ class AdbProtocol {
          * 		unsigned magic;         // command ^ 0xffffffff
          * };
          */
+        header.putInt(cmd);
+        header.putInt(arg0);
+        header.putInt(arg1);
+        header.putInt(length);
+        header.putInt(checksum && length != 0 ? getPayloadChecksum(payload, offset, length) : 0);
+        header.putInt(cmd ^ 0xFFFFFFFF);
+    }
 
-        ByteBuffer message;
+    /**
+     * Builds the payload of a connect message advertising the given features.
+     * @param features Features supported by this side, may be empty
+     * @return The null-terminated "host::features=..." banner
+     */
+    static byte[] generateConnectPayload(Collection<String> features) {
+        if (features.isEmpty()) {
+            return CONNECT_PAYLOAD;
+        }
 
-        if (payload != null) {
-            message = ByteBuffer.allocate(ADB_HEADER_LENGTH + payload.length).order(ByteOrder.LITTLE_ENDIAN);
-        } else {
-            message = ByteBuffer.allocate(ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        StringBuilder banner = new StringBuilder("host::features=");
+        boolean first = true;
+        for (String feature : features) {
+            if (!first) {
+                banner.append(',');
+            }
+            banner.append(feature);
+            first = false;
         }
+        banner.append('\0');
 
-        message.putInt(cmd);
-        message.putInt(arg0);
-        message.putInt(arg1);
+        try {
+            return banner.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return CONNECT_PAYLOAD;
+        }
+    }
 
-        if (payload != null) {
-            message.putInt(payload.length);
-            message.putInt(getPayloadChecksum(payload));
-        } else {
-            message.putInt(0);
-            message.putInt(0);
+    /**
+     * Extracts the feature list from the banner of a peer's connect message,
+     * e.g. "device::ro.product.name=x;ro.product.model=y;features=shell_v2,cmd".
+     * @param payload Buffer containing the banner
+     * @param length Length of the banner
+     * @return The features advertised by the peer, empty if there are none
+     */
+    static Set<String> parseFeatures(byte[] payload, int length) {
+        if (payload == null || length == 0) {
+            return Collections.emptySet();
         }
 
-        message.putInt(cmd ^ 0xFFFFFFFF);
+        String banner;
+        try {
+            banner = new String(payload, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return Collections.emptySet();
+        }
+
+        int terminator = banner.indexOf('\0');
+        if (terminator >= 0) {
+            banner = banner.substring(0, terminator);
+        }
+
+        /* Properties follow the "<type>::" prefix, separated by semicolons */
+        int start = banner.indexOf("::");
+        String properties = start >= 0 ? banner.substring(start + 2) : banner;
+
+        Set<String> features = new HashSet<>();
+        for (String property : properties.split(";")) {
+            property = property.trim();
+            if (property.startsWith("features=")) {
+                for (String feature : property.substring("features=".length()).split(",")) {
+                    feature = feature.trim();
+                    if (!feature.isEmpty()) {
+                        features.add(feature);
+                    }
+                }
+            }
+        }
+
+        return Collections.unmodifiableSet(features);
+    }
+
+    /**
+     * This function generates an ADB message given the fields.
+     * @param cmd Command identifier
+     * @param arg0 First argument
+     * @param arg1 Second argument
+     * @param payload Data payload
+     * @return Byte array containing the message
+     */
+    public static byte[] generateMessage(int cmd, int arg0, int arg1, byte[] payload) {
+        int length = payload != null ? payload.length : 0;
+        ByteBuffer message = ByteBuffer.allocate(ADB_HEADER_LENGTH + length).order(ByteOrder.LITTLE_ENDIAN);
+
+        putHeader(message, cmd, arg0, arg1, payload, 0, length, true);
 
         if (payload != null) {
             message.put(payload);
@@ -180,11 +299,22 @@ class AdbProtocol {
      * @throws UnsupportedEncodingException If the destination cannot be encoded to UTF-8
      */
     public static byte[] generateOpen(int localId, String dest) throws UnsupportedEncodingException {
+        return generateMessage(CMD_OPEN, localId, 0, encodeDestination(dest));
+    }
+
+    /**
+     * Encodes a stream destination as the null-terminated UTF-8 string
+     * carried by an open message.
+     * @param dest The destination of the stream on the target
+     * @return Byte array containing the encoded destination
+     * @throws UnsupportedEncodingException If the destination cannot be encoded to UTF-8
+     */
+    static byte[] encodeDestination(String dest) throws UnsupportedEncodingException {
         byte[] bytes = dest.getBytes("UTF-8");
         ByteBuffer bbuf = ByteBuffer.allocate(bytes.length + 1);
         bbuf.put(bytes);
         bbuf.put((byte) 0);
-        return generateMessage(CMD_OPEN, localId, 0, bbuf.array());
+        return bbuf.array();
     }
 
     /**
@@ -235,57 +365,20 @@ class AdbProtocol {
         public int checksum;
         /** The magic field of the message */
         public int magic;
-        /** The payload of the message */
+        /** The payload of the message. The array may be longer than
+         * payloadLength when it comes from a pool. */
         public byte[] payload;
+        /** The pool this message is returned to once it is consumed, if any */
+        AdbMessagePool pool;
 
         /**
-         * Read and parse an ADB message from the supplied input stream.
-         * This message is NOT validated.
-         * @param in InputStream object to read data from
-         * @return An AdbMessage object represented the message read
-         * @throws IOException If the stream fails while reading
+         * Returns this message and its payload to the pool it came from.
+         * The message must not be used afterwards.
          */
-        public static AdbMessage parseAdbMessage(InputStream in) throws IOException {
-            AdbMessage msg = new AdbMessage();
-            ByteBuffer packet = ByteBuffer.allocate(ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
-
-            /* Read the header first */
-            int dataRead = 0;
-            do {
-                int bytesRead = in.read(packet.array(), dataRead, 24 - dataRead);
-
-                if (bytesRead < 0)
-                    throw new IOException("Stream closed");
-                else
-                    dataRead += bytesRead;
+        void recycle() {
+            if (pool != null) {
+                pool.recycle(this);
             }
-            while (dataRead < ADB_HEADER_LENGTH);
-
-            /* Pull out header fields */
-            msg.command = packet.getInt();
-            msg.arg0 = packet.getInt();
-            msg.arg1 = packet.getInt();
-            msg.payloadLength = packet.getInt();
-            msg.checksum = packet.getInt();
-            msg.magic = packet.getInt();
-
-            /* If there's a payload supplied, read that too */
-            if (msg.payloadLength != 0) {
-                msg.payload = new byte[msg.payloadLength];
-
-                dataRead = 0;
-                do {
-                    int bytesRead = in.read(msg.payload, dataRead, msg.payloadLength - dataRead);
-
-                    if (bytesRead < 0)
-                        throw new IOException("Stream closed");
-                    else
-                        dataRead += bytesRead;
-                }
-                while (dataRead < msg.payloadLength);
-            }
-
-            return msg;
         }
     }
 }
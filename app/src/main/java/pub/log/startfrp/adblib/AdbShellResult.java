@@ -0,0 +1,61 @@
+package pub.log.startfrp.adblib;
+
+/**
+ * The outcome of a command run with the shell protocol: its exit code and
+ * what it wrote to stdout and stderr, kept apart.
+ */
+public final class AdbShellResult {
+
+    /** Exit code reported when the command ended without an exit packet, e.g. on timeout */
+    public static final int EXIT_UNKNOWN = -1;
+
+    private final int exitCode;
+    private final String stdout;
+    private final String stderr;
+
+    public AdbShellResult(int exitCode, String stdout, String stderr) {
+        this.exitCode = exitCode;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    /**
+     * Gets the command's exit code.
+     * @return The exit code, or {@link #EXIT_UNKNOWN} if the command did not report one
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * Checks whether the command exited with status 0.
+     * @return True if the command reported success
+     */
+    public boolean isSuccess() {
+        return exitCode == 0;
+    }
+
+    /**
+     * Checks whether the command reported an exit code before the stream ended.
+     * @return False if the command timed out or the stream closed early
+     */
+    public boolean isExited() {
+        return exitCode != EXIT_UNKNOWN;
+    }
+
+    /** Gets what the command wrote to stdout */
+    public String getStdout() {
+        return stdout;
+    }
+
+    /** Gets what the command wrote to stderr */
+    public String getStderr() {
+        return stderr;
+    }
+
+    @Override
+    public String toString() {
+        return "AdbShellResult{exitCode=" + exitCode + ", stdout=" + stdout.length()
+                + " chars, stderr=" + stderr.length() + " chars}";
+    }
+}
@@ -0,0 +1,240 @@
+package pub.log.startfrp.adblib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A stream speaking the shell protocol of shell,v2: services.
+ * <p>
+ * Every write on the underlying stream is a packet made of a one-byte ID, the
+ * little-endian 32-bit data length and the data. The ID tells stdin, stdout
+ * and stderr apart and marks the exit code, which is sent as one byte right
+ * before the peer closes the stream. Without a PTY there is no echo and no
+ * prompt, so the output is exactly what the command printed.
+ */
+public class AdbShellStream implements Closeable {
+
+    /** The service prefix for a command run with the shell protocol and no PTY */
+    public static final String SERVICE_PREFIX = "shell,v2,raw:";
+
+    /** Data for the command's stdin */
+    public static final int ID_STDIN = 0;
+
+    /** Data the command wrote to stdout */
+    public static final int ID_STDOUT = 1;
+
+    /** Data the command wrote to stderr */
+    public static final int ID_STDERR = 2;
+
+    /** The command's exit code, one byte */
+    public static final int ID_EXIT = 3;
+
+    /** Closes the command's stdin */
+    public static final int ID_CLOSE_STDIN = 4;
+
+    /** A new window size, as "rowsxcols,xpixelsxypixels" */
+    public static final int ID_WINDOW_SIZE_CHANGE = 5;
+
+    /** Size of the ID and length fields in front of each packet */
+    static final int HEADER_SIZE = 5;
+
+    /**
+     * A packet read from the peer.
+     */
+    public static final class Packet {
+        /** The packet ID, one of the ID_ constants */
+        public final int id;
+
+        /** The packet data */
+        public final byte[] data;
+
+        Packet(int id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private final AdbStream stream;
+
+    /** The header of the packet being read, kept across timed out reads */
+    private final byte[] header = new byte[HEADER_SIZE];
+    private int headerFilled;
+
+    /** The data of the packet being read, null while the header is incomplete */
+    private byte[] body;
+    private int bodyFilled;
+
+    AdbShellStream(AdbStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Gets the underlying ADB stream.
+     * @return The stream carrying the shell packets
+     */
+    public AdbStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Reads the next packet. A packet cut off by the timeout is completed by
+     * the next call, so no data is lost.
+     * @param timeoutMillis The maximum time to wait, or 0 to wait indefinitely
+     * @return The next packet, or null if the timeout expired first
+     * @throws EOFException If the stream ended; a clean end comes after the exit packet
+     * @throws IOException If the stream fails while reading
+     */
+    public Packet readPacket(long timeoutMillis) throws IOException {
+        ByteQueueInputStream in = stream.getInputStream();
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+
+        while (body == null || bodyFilled < body.length) {
+            long wait = 0;
+            if (deadline != 0) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return null;
+            }
+
+            int read;
+            if (body == null) {
+                read = in.read(header, headerFilled, HEADER_SIZE - headerFilled, wait);
+            } else {
+                read = in.read(body, bodyFilled, body.length - bodyFilled, wait);
+            }
+
+            if (read < 0)
+                throw new EOFException("Shell stream ended");
+
+            if (body == null) {
+                headerFilled += read;
+                if (headerFilled == HEADER_SIZE) {
+                    int length = AdbMessageReader.readIntLE(header, 1);
+                    if (length < 0)
+                        throw new IOException("Invalid shell packet length " + length);
+                    body = new byte[length];
+                    bodyFilled = 0;
+                }
+            } else {
+                bodyFilled += read;
+            }
+        }
+
+        Packet packet = new Packet(header[0] & 0xff, body);
+        headerFilled = 0;
+        body = null;
+        return packet;
+    }
+
+    /**
+     * Reads the command's output until it exits.
+     * @param timeoutMillis The maximum time to wait for the exit, or 0 to wait indefinitely
+     * @return The exit code and output; the exit code is {@link AdbShellResult#EXIT_UNKNOWN}
+     *         if the deadline passed or the stream closed first, with the output read so far
+     * @throws IOException If the stream fails while reading
+     */
+    public AdbShellResult readResult(long timeoutMillis) throws IOException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+        int exitCode = AdbShellResult.EXIT_UNKNOWN;
+
+        try {
+            while (true) {
+                long wait = 0;
+                if (deadline != 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        break;
+                }
+
+                Packet packet = readPacket(wait);
+                if (packet == null)
+                    break;
+
+                if (packet.id == ID_STDOUT) {
+                    stdout.write(packet.data, 0, packet.data.length);
+                } else if (packet.id == ID_STDERR) {
+                    stderr.write(packet.data, 0, packet.data.length);
+                } else if (packet.id == ID_EXIT && packet.data.length > 0) {
+                    exitCode = packet.data[0] & 0xff;
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            /* Closed without an exit packet; keep what was printed */
+        }
+
+        return new AdbShellResult(exitCode,
+                new String(stdout.toByteArray(), StandardCharsets.UTF_8),
+                new String(stderr.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends data to the command's stdin.
+     * @param data The data to send
+     * @throws IOException If the stream fails while sending data
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public void writeStdin(byte[] data) throws IOException, InterruptedException {
+        writePacket(ID_STDIN, data);
+    }
+
+    /**
+     * Closes the command's stdin, so it sees end of input.
+     * @throws IOException If the stream fails while sending the packet
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public void closeStdin() throws IOException, InterruptedException {
+        writePacket(ID_CLOSE_STDIN, new byte[0]);
+    }
+
+    /**
+     * Tells the peer about a new terminal size. Only has an effect on
+     * commands run with a PTY.
+     * @throws IOException If the stream fails while sending the packet
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public void setWindowSize(int rows, int cols, int xPixels, int yPixels) throws IOException, InterruptedException {
+        String size = rows + "x" + cols + "," + xPixels + "x" + yPixels;
+        writePacket(ID_WINDOW_SIZE_CHANGE, size.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Sends one packet; the header and data go out in the same write.
+     * @param id The packet ID
+     * @param data The packet data
+     * @throws IOException If the stream fails while sending data
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public void writePacket(int id, byte[] data) throws IOException, InterruptedException {
+        byte[] packet = new byte[HEADER_SIZE + data.length];
+        packet[0] = (byte) id;
+        packet[1] = (byte) data.length;
+        packet[2] = (byte) (data.length >> 8);
+        packet[3] = (byte) (data.length >> 16);
+        packet[4] = (byte) (data.length >> 24);
+        System.arraycopy(data, 0, packet, HEADER_SIZE, data.length);
+        stream.write(packet);
+    }
+
+    /**
+     * Closes the stream; a command still running is hung up on.
+     * @throws IOException If the stream fails while sending the close message
+     */
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * Retrieves whether the stream is closed or not
+     * @return True if the stream is closed, false if not
+     */
+    public boolean isClosed() {
+        return stream.isClosed();
+    }
+}
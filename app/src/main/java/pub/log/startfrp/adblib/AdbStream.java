@@ -33,7 +33,7 @@ package pub.log.startfrp.adblib;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -54,11 +54,21 @@ public class AdbStream implements Closeable {
     /** Indicates whether a write is currently allowed */
     private AtomicBoolean writeReady;
 
+    /** Bytes the peer still accepts before its next OKAY, when delayed_ack is in use.
+     * Guarded by the stream's monitor. */
+    private long sendWindow;
+
+    /** Keeps the frames of one write together when several threads write at once */
+    private final Object writeLock = new Object();
+
     /** A queue of data from the target's write packets */
     private ByteQueueInputStream readQueue;
 
     /** Indicates whether the connection is closed already */
-    private boolean isClosed;
+    private volatile boolean isClosed;
+
+    /** Completes on the peer's first OKAY, or fails if the stream closes before */
+    private final CompletableFuture<AdbStream> openFuture = new CompletableFuture<>();
 
     /**
      * Creates a new AdbStream object on the specified AdbConnection
@@ -70,36 +80,79 @@ public class AdbStream implements Closeable {
         this.adbConn = adbConn;
         this.localId = localId;
         this.readQueue = new ByteQueueInputStream();
+        this.readQueue.setReadyCallback(new ByteQueueInputStream.ReadyCallback() {
+            @Override
+            public void sendReady(int ackedBytes) throws IOException {
+                AdbStream.this.sendReady(ackedBytes);
+            }
+        });
         this.writeReady = new AtomicBoolean(false);
         this.isClosed = false;
     }
 
     /**
      * Called by the connection thread to indicate newly received data.
-     * @param payload Data inside the write message
+     * The read queue takes ownership of the message and recycles it once
+     * its payload has been read.
+     * @param msg The write message
+     * @return True if the message was handed over to the read queue
      */
-    void addPayload(byte[] payload) {
-        readQueue.addBytes(payload);
+    boolean addPayload(AdbProtocol.AdbMessage msg) {
+        return readQueue.addMessage(msg);
     }
 
     public ByteQueueInputStream getInputStream() {
         return readQueue;
     }
 
-    public Queue<byte[]> getReadQueue() {
-        return readQueue.readQueue;
+    /**
+     * Called by the connection thread once a write packet has been queued.
+     * The OKAY is sent right away unless the reader has fallen too far behind,
+     * in which case it is sent once the reader catches up.
+     * @param length Payload length of the write packet
+     * @throws IOException If the connection fails while sending the packet
+     */
+    void acknowledge(int length) throws IOException {
+        readQueue.onReceived(length);
     }
 
     /**
-     * Called by the connection thread to send an OKAY packet, allowing the
+     * Sends an OKAY packet, allowing the
      * other side to continue transmission.
+     * @param ackedBytes Number of payload bytes received, acknowledged if delayed_ack is in use
      * @throws IOException If the connection fails while sending the packet
      */
-    void sendReady() throws IOException {
-        /* Generate and send a READY packet */
-        byte[] packet = AdbProtocol.generateReady(localId, remoteId);
-        adbConn.outputStream.write(packet);
-        adbConn.outputStream.flush();
+    void sendReady(int ackedBytes) throws IOException {
+        /* Queue a READY packet; bursts of them go out together */
+        if (adbConn.delayedAck) {
+            adbConn.messageWriter.postAck(localId, remoteId, ackedBytes);
+        } else {
+            adbConn.messageWriter.postMessage(AdbProtocol.CMD_OKAY, localId, remoteId);
+        }
+    }
+
+    /**
+     * Gets the future tracking whether the peer accepted this stream.
+     * @return A future completing with this stream on the peer's first OKAY
+     */
+    CompletableFuture<AdbStream> getOpenFuture() {
+        return openFuture;
+    }
+
+    /**
+     * Called by the connection thread when the peer accepted the stream.
+     * Only the first call has an effect.
+     */
+    void notifyOpened() {
+        openFuture.complete(this);
+    }
+
+    /**
+     * Fails a pending open, if the stream has not been accepted yet.
+     * @param error The reason the open failed
+     */
+    void failOpen(IOException error) {
+        openFuture.completeExceptionally(error);
     }
 
     /**
@@ -117,6 +170,16 @@ public class AdbStream implements Closeable {
         writeReady.set(true);
     }
 
+    /**
+     * Called by the connection thread with the stream's monitor held to grant
+     * more send window, when delayed_ack is in use.
+     * @param ackedBytes Number of bytes acknowledged by the peer
+     */
+    void addSendWindow(int ackedBytes) {
+        sendWindow += ackedBytes;
+        writeReady.set(true);
+    }
+
     /**
      * Called by the connection thread to notify that the stream was closed by the peer.
      */
@@ -124,6 +187,12 @@ public class AdbStream implements Closeable {
         /* We don't call close() because it sends another CLOSE */
         isClosed = true;
 
+        /* An open still waiting for the peer can't succeed anymore */
+        failOpen(new IOException("Stream closed"));
+
+        /* Readers drain what is queued, then see the end of the stream */
+        readQueue.markEndOfStream();
+
         /* Unwait readers and writers */
         synchronized (this) {
             notifyAll();
@@ -145,30 +214,13 @@ public class AdbStream implements Closeable {
     }
 
     /**
-     * 针对write payload的特殊处理
+     * 针对write payload的特殊处理，与write(payload)相同：负载不拷贝，一次聚集写发出
      * @param payload
      * @throws IOException
      * @throws InterruptedException
      */
     public void specialWrite(byte[] payload) throws IOException, InterruptedException {
-        synchronized (this) {
-            /* Make sure we're ready for a write */
-            while (!isClosed && !writeReady.compareAndSet(true, false))
-                wait();
-
-            if (isClosed) {
-                throw new IOException("Stream closed");
-            }
-        }
-
-        /* Generate a WRITE packet and send it */
-        byte[] packet = AdbProtocol.generateWrite(localId, remoteId, payload);
-
-        // payload和空内容提交完毕后再flush
-        adbConn.outputStream.write(packet);
-        adbConn.outputStream.write(AdbProtocol.generateWrite(localId, remoteId, new byte[0]));
-
-        adbConn.outputStream.flush();
+        write(payload, 0, payload.length);
     }
 
     /**
@@ -178,33 +230,75 @@ public class AdbStream implements Closeable {
      * @throws InterruptedException If we are unable to wait to send data
      */
     public void write(byte[] payload) throws IOException, InterruptedException {
-        write(payload, true);
+        write(payload, 0, payload.length);
     }
 
     /**
-     * Queues a write packet and optionally sends it immediately.
+     * Sends a write packet with a given byte array payload. Every write is
+     * sent at once, so <code>flush</code> has no effect.
      * @param payload Payload in the form of a byte array
-     * @param flush Specifies whether to send the packet immediately
+     * @param flush Ignored
      * @throws IOException If the stream fails while sending data
      * @throws InterruptedException If we are unable to wait to send data
+     * @deprecated The writer thread flushes every batch it sends; use {@link #write(byte[])}
      */
+    @Deprecated
     public void write(byte[] payload, boolean flush) throws IOException, InterruptedException {
-        synchronized (this) {
-            /* Make sure we're ready for a write */
-            while (!isClosed && !writeReady.compareAndSet(true, false))
-                wait();
+        write(payload, 0, payload.length);
+    }
 
-            if (isClosed) {
-                throw new IOException("Stream closed");
-            }
+    /**
+     * Sends part of a byte array. Every write is sent at once.
+     * Payloads larger than the negotiated max data size are split into
+     * several write packets. Without delayed_ack each packet waits for the
+     * peer's OKAY; with it, packets are sent as long as the peer's window
+     * allows, so several can be in flight at once. The data is not copied
+     * and the buffer may be reused once this returns. Empty writes send
+     * nothing.
+     * @param payload Buffer containing the data
+     * @param offset Offset of the data in the buffer
+     * @param count Number of bytes to send
+     * @throws IOException If the stream fails while sending data
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public void write(byte[] payload, int offset, int count) throws IOException, InterruptedException {
+        if (offset < 0 || count < 0 || count > payload.length - offset)
+            throw new IndexOutOfBoundsException();
+
+        if (count == 0)
+            return;
+
+        synchronized (writeLock) {
+            int end = offset + count;
+
+            do {
+                int length = Math.min(end - offset, adbConn.maxData);
+
+                synchronized (this) {
+                    if (adbConn.delayedAck) {
+                        /* Wait until the peer's window has room */
+                        while (!isClosed && sendWindow <= 0)
+                            wait();
+
+                        length = (int) Math.min(length, sendWindow);
+                        sendWindow -= length;
+                    } else {
+                        /* Make sure we're ready for a write */
+                        while (!isClosed && !writeReady.compareAndSet(true, false))
+                            wait();
+                    }
+
+                    if (isClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                }
+
+                /* Send a WRITE packet; the payload goes out as-is, without a copy */
+                adbConn.messageWriter.writeMessage(AdbProtocol.CMD_WRTE, localId, remoteId,
+                        payload, offset, length);
+                offset += length;
+            } while (offset < end);
         }
-
-        /* Generate a WRITE packet and send it */
-        byte[] packet = AdbProtocol.generateWrite(localId, remoteId, payload);
-        adbConn.outputStream.write(packet);
-
-        if (flush)
-            adbConn.outputStream.flush();
     }
 
     /**
@@ -222,9 +316,10 @@ public class AdbStream implements Closeable {
             notifyClose();
         }
 
-        byte[] packet = AdbProtocol.generateClose(localId, remoteId);
-        adbConn.outputStream.write(packet);
-        adbConn.outputStream.flush();
+        /* Nothing is delivered to this stream anymore */
+        adbConn.msgManager.removeAdbStream(localId);
+
+        adbConn.messageWriter.writeMessage(AdbProtocol.CMD_CLSE, localId, remoteId);
 
         readQueue.close();
     }
@@ -0,0 +1,227 @@
+package pub.log.startfrp.adblib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The open streams of a connection, keyed by local ID.
+ * <p>
+ * The table is an open-addressing array of primitive keys that is replaced as
+ * a whole whenever a stream is added or removed. Lookups, which happen for
+ * every OKAY, WRTE and CLSE, therefore read one volatile snapshot and probe it
+ * without locking, boxing or allocating; only opening and closing streams,
+ * which are rare by comparison, pay for a copy.
+ * <p>
+ * Local IDs are handed out by the registry too. Fresh IDs come from an atomic
+ * counter; the IDs of removed streams are reused in FIFO order, but only once
+ * {@link #REUSE_DELAY} of them have piled up, so a late frame for a closed
+ * stream cannot reach a new stream that happens to get its ID.
+ */
+final class AdbStreamRegistry {
+
+    /** Number of freed IDs held back before the oldest one is reused */
+    static final int REUSE_DELAY = 64;
+
+    /** Smallest table capacity, a power of two */
+    private static final int MIN_CAPACITY = 16;
+
+    /** The current snapshot; never modified once published */
+    private volatile Table table = new Table(MIN_CAPACITY);
+
+    /** The last fresh local ID handed out; IDs start at 1 since 0 is not a valid stream */
+    private final AtomicInteger lastId = new AtomicInteger();
+
+    /** Freed IDs waiting to be reused, as a ring buffer guarded by itself */
+    private int[] freeIds = new int[REUSE_DELAY * 2];
+    private int freeHead;
+    private int freeCount;
+
+    /**
+     * Allocates a local ID for a new stream.
+     * @return An ID that no open stream uses
+     */
+    int allocateId() {
+        synchronized (this) {
+            if (freeCount > REUSE_DELAY) {
+                int id = freeIds[freeHead];
+                freeHead = (freeHead + 1) % freeIds.length;
+                freeCount--;
+                return id;
+            }
+        }
+
+        int id = lastId.incrementAndGet();
+        if (id <= 0) {
+            throw new IllegalStateException("Out of local stream IDs");
+        }
+        return id;
+    }
+
+    /**
+     * Looks up a stream without locking or allocating.
+     * @param localId The stream's local ID
+     * @return The stream, or null if there is none with that ID
+     */
+    AdbStream get(int localId) {
+        Table current = table;
+        int mask = current.keys.length - 1;
+
+        for (int i = mix(localId) & mask; ; i = (i + 1) & mask) {
+            int key = current.keys[i];
+            if (key == localId) {
+                return current.values[i];
+            }
+            if (key == 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Adds a stream, replacing any stream registered under the same ID.
+     * @param localId The stream's local ID, never 0
+     * @param stream The stream
+     */
+    synchronized void put(int localId, AdbStream stream) {
+        Table current = table;
+        int size = current.size + (current.indexOf(localId) < 0 ? 1 : 0);
+
+        Table next = new Table(capacityFor(size));
+        current.copyTo(next, 0);
+        next.insert(localId, stream);
+        table = next;
+    }
+
+    /**
+     * Removes a stream and queues its ID for reuse.
+     * @param localId The stream's local ID
+     * @return The removed stream, or null if there was none with that ID
+     */
+    synchronized AdbStream remove(int localId) {
+        Table current = table;
+        int index = current.indexOf(localId);
+        if (index < 0) {
+            return null;
+        }
+
+        AdbStream stream = current.values[index];
+        Table next = new Table(capacityFor(current.size - 1));
+        current.copyTo(next, localId);
+        table = next;
+
+        releaseId(localId);
+        return stream;
+    }
+
+    /**
+     * Removes all streams at once, without reusing their IDs.
+     * @return The streams that were registered
+     */
+    synchronized AdbStream[] clear() {
+        Table current = table;
+        AdbStream[] streams = new AdbStream[current.size];
+
+        int count = 0;
+        for (int i = 0; i < current.keys.length; i++) {
+            if (current.keys[i] != 0) {
+                streams[count++] = current.values[i];
+            }
+        }
+
+        table = new Table(MIN_CAPACITY);
+        return streams;
+    }
+
+    /**
+     * Gets the number of registered streams.
+     * @return The number of open streams
+     */
+    int size() {
+        return table.size;
+    }
+
+    private void releaseId(int localId) {
+        if (freeCount == freeIds.length) {
+            int[] grown = new int[freeIds.length * 2];
+            for (int i = 0; i < freeCount; i++) {
+                grown[i] = freeIds[(freeHead + i) % freeIds.length];
+            }
+            freeIds = grown;
+            freeHead = 0;
+        }
+
+        freeIds[(freeHead + freeCount) % freeIds.length] = localId;
+        freeCount++;
+    }
+
+    /**
+     * Gets a power-of-two capacity keeping the load factor at or below one half.
+     */
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spreads sequential IDs over the table.
+     */
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * One immutable snapshot of the table. A key of 0 marks an empty slot.
+     */
+    private static final class Table {
+        final int[] keys;
+        final AdbStream[] values;
+        int size;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AdbStream[capacity];
+        }
+
+        int indexOf(int key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                if (keys[i] == 0) {
+                    return -1;
+                }
+            }
+        }
+
+        void insert(int key, AdbStream value) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                if (keys[i] == 0) {
+                    keys[i] = key;
+                    values[i] = value;
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Copies every entry except the one with the given key into another table.
+         */
+        void copyTo(Table other, int skipKey) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0 && keys[i] != skipKey) {
+                    other.insert(keys[i], values[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package pub.log.startfrp.adblib;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A client for the sync: service, which transfers files without a shell.
+ * <p>
+ * Every request is a four-letter ID, a little-endian 32-bit length and the
+ * path. File data travels in DATA chunks of at most {@link #SYNC_DATA_MAX}
+ * bytes; a push ends with DONE carrying the modification time, and adbd
+ * answers OKAY or FAIL with a message. The v2 requests are used when the
+ * peer advertises them: STA2 and LIS2 report 64-bit sizes and an errno,
+ * SND2 and RCV2 carry the mode and flags in a second header.
+ * <p>
+ * Pushes pack as many DATA chunks into one stream write as the connection's
+ * max data size allows, so the transfer is limited by the link rather than
+ * by round trips. A client is not thread-safe; requests run one at a time.
+ */
+public class AdbSyncClient implements Closeable {
+
+    /** The service that speaks the sync protocol */
+    public static final String SERVICE = "sync:";
+
+    /** The largest data chunk adbd accepts in a DATA packet */
+    public static final int SYNC_DATA_MAX = 64 * 1024;
+
+    /** Type bits of a regular file in a mode */
+    public static final int S_IFREG = 0100000;
+
+    /** Type bits of a directory in a mode */
+    public static final int S_IFDIR = 0040000;
+
+    /** Mask selecting the type bits of a mode */
+    public static final int S_IFMT = 0170000;
+
+    /** How long a reply may stall before the request is given up */
+    public static final long DEFAULT_READ_TIMEOUT = 30 * 1000;
+
+    private static final int ID_STAT = id("STAT");
+    private static final int ID_LSTAT_V2 = id("LST2");
+    private static final int ID_LIST = id("LIST");
+    private static final int ID_LIS2 = id("LIS2");
+    private static final int ID_DENT = id("DENT");
+    private static final int ID_DNT2 = id("DNT2");
+    private static final int ID_SEND = id("SEND");
+    private static final int ID_SND2 = id("SND2");
+    private static final int ID_RECV = id("RECV");
+    private static final int ID_RCV2 = id("RCV2");
+    private static final int ID_DATA = id("DATA");
+    private static final int ID_DONE = id("DONE");
+    private static final int ID_OKAY = id("OKAY");
+    private static final int ID_FAIL = id("FAIL");
+    private static final int ID_QUIT = id("QUIT");
+
+    /** Size of an ID and a length field */
+    private static final int HEADER_SIZE = 8;
+
+    /** Size of a STAT reply after its ID: mode, size, mtime */
+    private static final int STAT_V1_SIZE = 12;
+
+    /** Size of a STA2 reply after its ID: error, dev, ino, mode, nlink, uid, gid, size, atime, mtime, ctime */
+    private static final int STAT_V2_SIZE = 68;
+
+    /** Size of a DENT entry after its ID, up to the name */
+    private static final int DENT_V1_SIZE = 16;
+
+    /** Size of a DNT2 entry after its ID, up to the name */
+    private static final int DENT_V2_SIZE = STAT_V2_SIZE + 4;
+
+    /**
+     * File attributes reported by STAT, STA2, LIST or LIS2. The v1 requests
+     * only fill in mode, size and mtime, and report a missing file as all
+     * zeros.
+     */
+    public static final class FileStat {
+        /** The errno of a failed v2 stat, 0 otherwise */
+        public final int error;
+        public final int mode;
+        public final long size;
+        public final int uid;
+        public final int gid;
+        /** Modification time in seconds since the epoch */
+        public final long mtime;
+
+        FileStat(int error, int mode, long size, int uid, int gid, long mtime) {
+            this.error = error;
+            this.mode = mode;
+            this.size = size;
+            this.uid = uid;
+            this.gid = gid;
+            this.mtime = mtime;
+        }
+
+        /** Checks whether the path exists on the device */
+        public boolean exists() {
+            return error == 0 && mode != 0;
+        }
+
+        public boolean isDirectory() {
+            return (mode & S_IFMT) == S_IFDIR;
+        }
+
+        public boolean isRegularFile() {
+            return (mode & S_IFMT) == S_IFREG;
+        }
+
+        /** Gets the permission bits, e.g. 0755 */
+        public int getPermissions() {
+            return mode & 07777;
+        }
+
+        @Override
+        public String toString() {
+            return "FileStat{mode=" + Integer.toOctalString(mode) + ", size=" + size
+                    + ", mtime=" + mtime + (error != 0 ? ", error=" + error : "") + "}";
+        }
+    }
+
+    /**
+     * One entry of a directory listing.
+     */
+    public static final class DirEntry {
+        public final String name;
+        public final FileStat stat;
+
+        DirEntry(String name, FileStat stat) {
+            this.name = name;
+            this.stat = stat;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + stat;
+        }
+    }
+
+    private final AdbStream stream;
+    private final ByteQueueInputStream in;
+    private final boolean statV2;
+    private final boolean lsV2;
+    private final boolean sendRecvV2;
+
+    /** Batches DATA packets for one stream write, sized to the connection's max data */
+    private final byte[] writeBuffer;
+    private int writeFilled;
+
+    /** Receives headers and fixed-size replies */
+    private final byte[] replyBuffer = new byte[DENT_V2_SIZE + 4];
+
+    private long readTimeout = DEFAULT_READ_TIMEOUT;
+
+    AdbSyncClient(AdbStream stream, int maxData, Set<String> peerFeatures) {
+        this.stream = stream;
+        this.in = stream.getInputStream();
+        this.statV2 = peerFeatures.contains(AdbProtocol.FEATURE_STAT_V2);
+        this.lsV2 = peerFeatures.contains(AdbProtocol.FEATURE_LS_V2);
+        this.sendRecvV2 = peerFeatures.contains(AdbProtocol.FEATURE_SENDRECV_V2);
+        this.writeBuffer = new byte[Math.max(maxData, HEADER_SIZE + SYNC_DATA_MAX)];
+    }
+
+    /**
+     * Gets the underlying ADB stream.
+     * @return The stream carrying the sync protocol
+     */
+    public AdbStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Sets how long a reply may stall before a request fails with a
+     * {@link SocketTimeoutException}. The stream is unusable after that.
+     * @param timeoutMillis The maximum time to wait for the next bytes of a reply
+     */
+    public void setReadTimeout(long timeoutMillis) {
+        this.readTimeout = timeoutMillis;
+    }
+
+    /**
+     * Gets the attributes of a remote path. Like adb's own STAT, a final
+     * symlink is not followed.
+     * @param remotePath The path on the device
+     * @return The attributes; check {@link FileStat#exists()} for missing paths
+     * @throws IOException If the stream fails or the peer answers unexpectedly
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public FileStat stat(String remotePath) throws IOException, InterruptedException {
+        int request = statV2 ? ID_LSTAT_V2 : ID_STAT;
+        writeRequest(request, remotePath);
+        flush();
+
+        int reply = readId();
+        if (reply != request)
+            throw unexpected(reply);
+
+        if (statV2) {
+            readFully(replyBuffer, STAT_V2_SIZE);
+            return decodeStatV2(replyBuffer, 0);
+        }
+
+        readFully(replyBuffer, STAT_V1_SIZE);
+        return new FileStat(0, readInt(replyBuffer, 0), readInt(replyBuffer, 4) & 0xffffffffL,
+                0, 0, readInt(replyBuffer, 8) & 0xffffffffL);
+    }
+
+    /**
+     * Lists a remote directory, including the "." and ".." entries adbd reports.
+     * @param remotePath The directory on the device
+     * @return The entries; empty if the directory cannot be read
+     * @throws IOException If the stream fails or the peer answers unexpectedly
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public List<DirEntry> list(String remotePath) throws IOException, InterruptedException {
+        writeRequest(lsV2 ? ID_LIS2 : ID_LIST, remotePath);
+        flush();
+
+        int entryId = lsV2 ? ID_DNT2 : ID_DENT;
+        int entrySize = lsV2 ? DENT_V2_SIZE : DENT_V1_SIZE;
+        List<DirEntry> entries = new ArrayList<>();
+
+        while (true) {
+            int reply = readId();
+            readFully(replyBuffer, entrySize);
+            if (reply == ID_DONE)
+                return entries;
+            if (reply != entryId)
+                throw unexpected(reply);
+
+            FileStat stat;
+            int nameLength;
+            if (lsV2) {
+                stat = decodeStatV2(replyBuffer, 0);
+                nameLength = readInt(replyBuffer, STAT_V2_SIZE);
+            } else {
+                stat = new FileStat(0, readInt(replyBuffer, 0), readInt(replyBuffer, 4) & 0xffffffffL,
+                        0, 0, readInt(replyBuffer, 8) & 0xffffffffL);
+                nameLength = readInt(replyBuffer, 12);
+            }
+
+            entries.add(new DirEntry(readString(nameLength), stat));
+        }
+    }
+
+    /**
+     * Pushes the contents of a stream to a remote file, replacing it. Missing
+     * parent directories are created by adbd.
+     * @param source The data to push; read to its end but not closed
+     * @param remotePath The file on the device
+     * @param mode The permission bits of the file, e.g. 0755
+     * @param mtime The modification time in seconds since the epoch
+     * @return The number of bytes pushed
+     * @throws IOException If reading the source fails, the stream fails or the peer rejects the file
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public long push(InputStream source, String remotePath, int mode, long mtime)
+            throws IOException, InterruptedException {
+        int fileMode = S_IFREG | (mode & 07777);
+
+        if (sendRecvV2) {
+            writeRequest(ID_SND2, remotePath);
+            ensureRoom(HEADER_SIZE + 4);
+            writeInt(ID_SND2);
+            writeInt(fileMode);
+            /* No compression and no dry run */
+            writeInt(0);
+        } else {
+            writeRequest(ID_SEND, remotePath + "," + fileMode);
+        }
+
+        long total = 0;
+        while (true) {
+            /* Read each chunk straight into the batch buffer, behind its header */
+            ensureRoom(HEADER_SIZE + SYNC_DATA_MAX);
+            int read = source.read(writeBuffer, writeFilled + HEADER_SIZE, SYNC_DATA_MAX);
+            if (read < 0)
+                break;
+            if (read == 0)
+                continue;
+
+            writeInt(ID_DATA);
+            writeInt(read);
+            writeFilled += read;
+            total += read;
+        }
+
+        ensureRoom(HEADER_SIZE);
+        writeInt(ID_DONE);
+        writeInt((int) mtime);
+        flush();
+
+        int reply = readId();
+        int length = readLength();
+        if (reply == ID_OKAY)
+            return total;
+        if (reply == ID_FAIL)
+            throw new IOException("Push of " + remotePath + " failed: " + readString(length));
+        throw unexpected(reply);
+    }
+
+    /**
+     * Pushes a local file, keeping its modification time. The file is made
+     * executable on the device if it is executable here.
+     * @param local The local file
+     * @param remotePath The file on the device
+     * @return The number of bytes pushed
+     * @throws IOException If the file cannot be read, the stream fails or the peer rejects the file
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public long push(File local, String remotePath) throws IOException, InterruptedException {
+        return push(local, remotePath, local.canExecute() ? 0755 : 0644);
+    }
+
+    /**
+     * Pushes a local file with the given permissions, keeping its modification time.
+     * @param local The local file
+     * @param remotePath The file on the device
+     * @param mode The permission bits of the file, e.g. 0755
+     * @return The number of bytes pushed
+     * @throws IOException If the file cannot be read, the stream fails or the peer rejects the file
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public long push(File local, String remotePath, int mode) throws IOException, InterruptedException {
+        try (InputStream source = new FileInputStream(local)) {
+            return push(source, remotePath, mode, local.lastModified() / 1000);
+        }
+    }
+
+    /**
+     * Pulls a remote file into a stream.
+     * @param remotePath The file on the device
+     * @param target Receives the file contents; not closed
+     * @return The number of bytes pulled
+     * @throws IOException If writing the target fails, the stream fails or the peer cannot read the file
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public long pull(String remotePath, OutputStream target) throws IOException, InterruptedException {
+        if (sendRecvV2) {
+            writeRequest(ID_RCV2, remotePath);
+            ensureRoom(HEADER_SIZE);
+            writeInt(ID_RCV2);
+            /* No compression */
+            writeInt(0);
+        } else {
+            writeRequest(ID_RECV, remotePath);
+        }
+        flush();
+
+        byte[] chunk = new byte[SYNC_DATA_MAX];
+        long total = 0;
+        while (true) {
+            int reply = readId();
+            int length = readLength();
+            if (reply == ID_DONE)
+                return total;
+            if (reply == ID_FAIL)
+                throw new IOException("Pull of " + remotePath + " failed: " + readString(length));
+            if (reply != ID_DATA)
+                throw unexpected(reply);
+            if (length > chunk.length)
+                throw new IOException("Sync data chunk too large: " + length);
+
+            readFully(chunk, length);
+            target.write(chunk, 0, length);
+            total += length;
+        }
+    }
+
+    /**
+     * Pulls a remote file into a local file, replacing it.
+     * @param remotePath The file on the device
+     * @param local The local file
+     * @return The number of bytes pulled
+     * @throws IOException If the file cannot be written, the stream fails or the peer cannot read the file
+     * @throws InterruptedException If we are unable to wait to send data
+     */
+    public long pull(String remotePath, File local) throws IOException, InterruptedException {
+        try (OutputStream target = new FileOutputStream(local)) {
+            return pull(remotePath, target);
+        }
+    }
+
+    /**
+     * Ends the sync session with QUIT and closes the stream.
+     * @throws IOException If the stream fails while closing
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!stream.isClosed()) {
+                writeFilled = 0;
+                writeInt(ID_QUIT);
+                writeInt(0);
+                flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            /* The stream is closed below anyway */
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Retrieves whether the stream is closed or not
+     * @return True if the stream is closed, false if not
+     */
+    public boolean isClosed() {
+        return stream.isClosed();
+    }
+
+    /**
+     * Queues a request header with its path.
+     */
+    private void writeRequest(int id, String path) throws IOException, InterruptedException {
+        byte[] data = path.getBytes(StandardCharsets.UTF_8);
+        if (data.length > 1024)
+            throw new IOException("Path too long: " + path);
+
+        writeFilled = 0;
+        ensureRoom(HEADER_SIZE + data.length);
+        writeInt(id);
+        writeInt(data.length);
+        System.arraycopy(data, 0, writeBuffer, writeFilled, data.length);
+        writeFilled += data.length;
+    }
+
+    /**
+     * Sends the batch if fewer than <code>count</code> bytes are left in it.
+     */
+    private void ensureRoom(int count) throws IOException, InterruptedException {
+        if (writeBuffer.length - writeFilled < count)
+            flush();
+    }
+
+    private void flush() throws IOException, InterruptedException {
+        if (writeFilled > 0) {
+            stream.write(writeBuffer, 0, writeFilled);
+            writeFilled = 0;
+        }
+    }
+
+    private void writeInt(int value) {
+        writeBuffer[writeFilled++] = (byte) value;
+        writeBuffer[writeFilled++] = (byte) (value >> 8);
+        writeBuffer[writeFilled++] = (byte) (value >> 16);
+        writeBuffer[writeFilled++] = (byte) (value >> 24);
+    }
+
+    private int readId() throws IOException {
+        readFully(replyBuffer, 4);
+        return readInt(replyBuffer, 0);
+    }
+
+    private int readLength() throws IOException {
+        readFully(replyBuffer, 4);
+        int length = readInt(replyBuffer, 0);
+        if (length < 0)
+            throw new IOException("Invalid sync length " + length);
+        return length;
+    }
+
+    private String readString(int length) throws IOException {
+        if (length > 64 * 1024)
+            throw new IOException("Sync string too long: " + length);
+        byte[] data = new byte[length];
+        readFully(data, length);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads exactly <code>count</code> bytes, failing if the reply stalls
+     * for longer than the read timeout.
+     */
+    private void readFully(byte[] buffer, int count) throws IOException {
+        int filled = 0;
+        while (filled < count) {
+            int read = in.read(buffer, filled, count - filled, readTimeout);
+            if (read < 0)
+                throw new EOFException("Sync stream ended");
+            if (read == 0)
+                throw new SocketTimeoutException("Sync reply timed out after " + readTimeout + " ms");
+            filled += read;
+        }
+    }
+
+    private static FileStat decodeStatV2(byte[] data, int offset) {
+        int error = readInt(data, offset);
+        /* dev and ino at 4 and 12 are not needed */
+        int mode = readInt(data, offset + 20);
+        int uid = readInt(data, offset + 28);
+        int gid = readInt(data, offset + 32);
+        long size = readLong(data, offset + 36);
+        long mtime = readLong(data, offset + 52);
+        return new FileStat(error, mode, size, uid, gid, mtime);
+    }
+
+    private IOException unexpected(int reply) {
+        byte[] name = {(byte) reply, (byte) (reply >> 8), (byte) (reply >> 16), (byte) (reply >> 24)};
+        return new IOException("Unexpected sync reply " + new String(name, StandardCharsets.ISO_8859_1));
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return AdbMessageReader.readIntLE(data, offset);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (readInt(data, offset) & 0xffffffffL) | ((long) readInt(data, offset + 4) << 32);
+    }
+
+    private static int id(String name) {
+        byte[] b = name.getBytes(StandardCharsets.US_ASCII);
+        return (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
+    }
+}
@@ -31,22 +31,80 @@ package pub.log.startfrp.adblib;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 参照ByteArrayInputStream实现，支持使用byte[]队列作为数据源
+ * <p>
+ * 队列为无锁的多生产者/单消费者结构：连接线程入队，同一时刻只允许一个线程读取。
+ * 读取不获取任何监视器，数据为空时消费者park等待，入队时unpark唤醒。
+ * <p>
+ * 缓冲按字节数限定：积压超过{@link #HIGH_WATER_MARK}后暂不回复OKAY，
+ * 待读取方消费到{@link #LOW_WATER_MARK}以下再补发，由adbd自身的流控让发送方停下，
+ * 无论命令输出多少，内存占用都保持平稳。
  *
  * @author  ruikai.qrk
  * @see     java.io.ByteArrayInputStream
  */
 public class ByteQueueInputStream extends InputStream {
 
-    private boolean isRunning;
+    /**
+     * 积压字节超过该值后暂缓确认
+     */
+    public static final int HIGH_WATER_MARK = 1024 * 1024;
+
+    /**
+     * 积压降到该值以下后补发暂缓的确认
+     */
+    public static final int LOW_WATER_MARK = 256 * 1024;
+
+    /**
+     * 回复OKAY，由所属stream实现
+     */
+    interface ReadyCallback {
+        void sendReady(int ackedBytes) throws IOException;
+    }
+
+    private volatile boolean isRunning;
+
+    /**
+     * 回复OKAY的回调，为空时不做流控
+     */
+    private volatile ReadyCallback readyCallback;
+
+    /**
+     * 已收到但暂缓确认的字节数
+     */
+    private final AtomicInteger withheldBytes = new AtomicInteger();
+
+    /**
+     * 数据源，元素为WRTE消息，读完后归还缓冲池
+     */
+    protected final ConcurrentLinkedQueue<AdbProtocol.AdbMessage> readQueue;
 
     /**
-     * 数据源
+     * 队列中尚未取出的字节数
      */
-    protected final LinkedBlockingQueue<byte[]> readQueue;
+    private final AtomicInteger queuedBytes;
+
+    /**
+     * 对端已关闭stream，队列读完即到达流末尾
+     */
+    private volatile boolean endOfStream;
+
+    /**
+     * 正在等待数据的读取线程
+     */
+    private volatile Thread waiter;
+
+    /**
+     * 当前读取的消息
+     */
+    private AdbProtocol.AdbMessage currentMessage;
 
     /**
      * 当前读取列表
@@ -62,7 +120,7 @@ public class ByteQueueInputStream extends InputStream {
      */
     private int pos;
 
-    private boolean socketForward = false;
+    private volatile boolean socketForward = false;
 
     /**
      * The currently marked position in the stream.
@@ -90,10 +148,6 @@ public class ByteQueueInputStream extends InputStream {
      */
     protected int count;
 
-    private final Object lock = new Object();
-
-    private final Object addLock = new Object();
-
     /**
      * Creates a <code>ByteArrayInputStream</code>
      * so that it  uses <code>buf</code> as its
@@ -106,11 +160,11 @@ public class ByteQueueInputStream extends InputStream {
      *
      */
     public ByteQueueInputStream() {
-        this.readQueue = new LinkedBlockingQueue<>();
+        this.readQueue = new ConcurrentLinkedQueue<>();
+        this.queuedBytes = new AtomicInteger();
         this.pos = 0;
         this.count = 0;
 
-        // 最大20K
         this.currentBytes = null;
         this.isRunning = true;
     }
@@ -128,46 +182,228 @@ public class ByteQueueInputStream extends InputStream {
      * @param bytes
      */
     public void addBytes(byte[] bytes) {
-        long startTime = System.currentTimeMillis();
-        this.readQueue.add(bytes);
+        if (bytes == null || bytes.length == 0) {
+            return;
+        }
+
+        AdbProtocol.AdbMessage msg = new AdbProtocol.AdbMessage();
+        msg.payload = bytes;
+        msg.payloadLength = bytes.length;
+        enqueue(msg);
     }
 
     /**
-     * 加载数据，直到当前bytes非空或者队列为空
+     * 添加WRTE消息到队列中，负载读完后消息归还缓冲池
+     * @param msg
+     * @return 是否接管了该消息，空负载不入队
      */
-    private void pollToAvailable() {
-        if (pos >= count) {
-            synchronized (lock) {
-                while (pos >= count) {
-                    // 非forward模式，不强制poll
-                    if (!socketForward) {
-                        if (readQueue.isEmpty()) {
-                            pos = 0;
-                            count = 0;
-                            return;
-                        }
-                    }
+    boolean addMessage(AdbProtocol.AdbMessage msg) {
+        if (msg.payloadLength == 0) {
+            return false;
+        }
 
-                    try {
-                        currentBytes = this.readQueue.take();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
+        enqueue(msg);
+        return true;
+    }
+
+    /**
+     * 设置回复OKAY的回调，启用基于水位的流控
+     * @param callback
+     */
+    void setReadyCallback(ReadyCallback callback) {
+        this.readyCallback = callback;
+    }
+
+    /**
+     * 连接线程收到WRTE并入队后调用：积压未超过高水位时立即确认，
+     * 否则记下字节数，等读取方消费到低水位以下再确认
+     * @param length WRTE负载长度
+     * @throws IOException 发送OKAY失败
+     */
+    void onReceived(int length) throws IOException {
+        ReadyCallback callback = readyCallback;
+        if (callback == null) {
+            return;
+        }
+
+        if (queuedBytes.get() <= HIGH_WATER_MARK && withheldBytes.get() == 0) {
+            callback.sendReady(length);
+            return;
+        }
+
+        withheldBytes.addAndGet(length);
+
+        // 读取方可能刚刚消费完，再检查一次，避免双方都不发送
+        releaseWithheld();
+    }
+
+    /**
+     * 积压在低水位以下时补发暂缓的确认，生产方和读取方都可能调用，只会发送一次
+     */
+    private void releaseWithheld() throws IOException {
+        if (withheldBytes.get() == 0 || queuedBytes.get() > LOW_WATER_MARK) {
+            return;
+        }
+
+        int acked = withheldBytes.getAndSet(0);
+        ReadyCallback callback = readyCallback;
+        if (acked > 0 && callback != null) {
+            callback.sendReady(acked);
+        }
+    }
+
+    /**
+     * 读取方消费数据后补发确认，发送失败由连接线程处理
+     */
+    private void releaseWithheldQuietly() {
+        if (withheldBytes.get() == 0) {
+            return;
+        }
+
+        try {
+            releaseWithheld();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * 标记流末尾（对端关闭了stream），队列中已有的数据仍可读完
+     */
+    void markEndOfStream() {
+        endOfStream = true;
+        wakeReader();
+    }
+
+    private void enqueue(AdbProtocol.AdbMessage msg) {
+        queuedBytes.addAndGet(msg.payloadLength);
+        readQueue.offer(msg);
+        wakeReader();
+    }
+
+    private void wakeReader() {
+        Thread reader = waiter;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    /**
+     * 当前消息读完后切换到队列中的下一条，不阻塞
+     * @return 是否有可读数据
+     */
+    private boolean advance() {
+        while (pos >= count) {
+            // 上一条消息已读完，归还缓冲
+            if (currentMessage != null) {
+                currentMessage.recycle();
+                currentMessage = null;
+                currentBytes = null;
+            }
+            pos = 0;
+            count = 0;
+
+            AdbProtocol.AdbMessage next = readQueue.poll();
+            if (next == null) {
+                return false;
+            }
+
+            queuedBytes.addAndGet(-next.payloadLength);
+            currentMessage = next;
+            currentBytes = next.payload;
+            count = next.payloadLength;
+
+            releaseWithheldQuietly();
+        }
+
+        return true;
+    }
 
-                    // 重设
-                    if (currentBytes != null) {
-                        pos = 0;
-                        count = currentBytes.length;
+    /**
+     * 等待直到有可读数据、到达流末尾或超时
+     * @param timeoutNanos 超时时间，小于等于0表示一直等待
+     * @return 是否有可读数据
+     * @throws InterruptedIOException 等待时被中断
+     */
+    private boolean awaitData(long timeoutNanos) throws InterruptedIOException {
+        long deadline = System.nanoTime() + timeoutNanos;
+
+        while (true) {
+            if (advance()) {
+                return true;
+            }
+
+            // 流末尾标记之前入队的数据此时一定可见
+            if (!isRunning || endOfStream) {
+                return advance();
+            }
+
+            long remaining = 0;
+            if (timeoutNanos > 0) {
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+            }
+
+            waiter = Thread.currentThread();
+            try {
+                // 发布waiter后再检查一次，避免错过唤醒
+                if (readQueue.isEmpty() && isRunning && !endOfStream) {
+                    if (timeoutNanos > 0) {
+                        LockSupport.parkNanos(this, remaining);
                     } else {
-                        pos = 0;
-                        count = 0;
-                        break;
+                        LockSupport.park(this);
                     }
                 }
+            } finally {
+                waiter = null;
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for data");
             }
         }
     }
 
+    /**
+     * 加载数据：forward模式阻塞等待，否则队列为空时直接返回
+     * @return 是否有可读数据
+     */
+    private boolean fill() {
+        if (advance()) {
+            return true;
+        }
+
+        // 非forward模式，不强制等待
+        if (!socketForward) {
+            return false;
+        }
+
+        try {
+            return awaitData(0);
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 从当前消息开始连续拷贝已入队的数据，不阻塞
+     */
+    private int drainTo(byte[] b, int off, int len) {
+        int copied = 0;
+
+        while (copied < len && advance()) {
+            int toCopy = Math.min(count - pos, len - copied);
+            System.arraycopy(currentBytes, pos, b, off + copied, toCopy);
+
+            pos += toCopy;
+            copied += toCopy;
+        }
+
+        return copied;
+    }
+
     /**
      * Reads the next byte of data from this input stream. The value
      * byte is returned as an <code>int</code> in the range
@@ -175,40 +411,28 @@ public class ByteQueueInputStream extends InputStream {
      * because the end of the stream has been reached, the value
      * <code>-1</code> is returned.
      * <p>
-     * This <code>read</code> method
-     * cannot block.
+     * This <code>read</code> method only blocks in socket forwarding mode;
+     * otherwise <code>-1</code> is also returned when no data is queued.
      *
      * @return  the next byte of data, or <code>-1</code> if the end of the
      *          stream has been reached.
      */
     @Override
     public int read() {
-        if (!isRunning) {
+        if (!isRunning || !fill()) {
             return -1;
         }
 
-        synchronized (addLock) {
-            pollToAvailable();
-            return (pos < count) ? currentBytes[pos++] & 0xff : -1;
-        }
+        return currentBytes[pos++] & 0xff;
     }
+
     /**
      * Reads up to <code>len</code> bytes of data into an array of bytes
-     * from this input stream.
-     * If <code>pos</code> equals <code>count</code>,
-     * then <code>-1</code> is returned to indicate
-     * end of file. Otherwise, the  number <code>k</code>
-     * of bytes read is equal to the smaller of
-     * <code>len</code> and <code>count-pos</code>.
-     * If <code>k</code> is positive, then bytes
-     * <code>buf[pos]</code> through <code>buf[pos+k-1]</code>
-     * are copied into <code>b[off]</code>  through
-     * <code>b[off+k-1]</code> in the manner performed
-     * by <code>System.arraycopy</code>. The
-     * value <code>k</code> is added into <code>pos</code>
-     * and <code>k</code> is returned.
+     * from this input stream, draining as many queued chunks as fit.
      * <p>
-     * This <code>read</code> method cannot block.
+     * This <code>read</code> method only blocks in socket forwarding mode,
+     * until at least one byte is available; otherwise <code>-1</code> is
+     * also returned when no data is queued.
      *
      * @param   b     the buffer into which the data is read.
      * @param   off   the start offset in the destination array <code>b</code>
@@ -229,102 +453,95 @@ public class ByteQueueInputStream extends InputStream {
             throw new IndexOutOfBoundsException();
         } else if (!isRunning) {
             return -1;
+        } else if (len == 0) {
+            return 0;
         }
 
-        // 初始计数
-        int realCount = -1;
-
-        synchronized (addLock) {
-            // 只填充一次数据，不需要按照len填充
-            pollToAvailable();
+        if (!fill()) {
+            return -1;
+        }
 
-            if (count - pos > 0) {
-                int toCopy = Math.min(count - pos, len);
-                System.arraycopy(currentBytes, pos, b, off, toCopy);
+        return drainTo(b, off, len);
+    }
 
-                pos += toCopy;
-                realCount = toCopy;
-            }
+    /**
+     * Reads up to <code>len</code> bytes, waiting at most <code>timeoutMillis</code>
+     * for the first byte to arrive regardless of the forwarding mode.
+     *
+     * @param   b     the buffer into which the data is read.
+     * @param   off   the start offset in the destination array <code>b</code>
+     * @param   len   the maximum number of bytes read.
+     * @param   timeoutMillis the maximum time to wait, or 0 to wait until data
+     *                or the end of the stream arrives.
+     * @return  the number of bytes read, <code>0</code> if the timeout expired,
+     *          or <code>-1</code> once the stream was closed and all queued data
+     *          has been read.
+     * @throws  InterruptedIOException If the thread is interrupted while waiting
+     */
+    public int read(byte b[], int off, int len, long timeoutMillis) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (!isRunning) {
+            return -1;
+        } else if (len == 0) {
+            return 0;
+        }
 
-            return realCount;
+        if (!awaitData(TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis)))) {
+            return (endOfStream || !isRunning) ? -1 : 0;
         }
+
+        return drainTo(b, off, len);
     }
 
     /**
      * Skips <code>n</code> bytes of input from this input stream. Fewer
-     * bytes might be skipped if the end of the input stream is reached.
-     * The actual number <code>k</code>
-     * of bytes to be skipped is equal to the smaller
-     * of <code>n</code> and  <code>count-pos</code>.
-     * The value <code>k</code> is added into <code>pos</code>
-     * and <code>k</code> is returned.
+     * bytes might be skipped if less data is queued; this method does
+     * not block.
      *
      * @param   n   the number of bytes to be skipped.
      * @return  the actual number of bytes skipped.
      */
     @Override
     public long skip(long n) {
-        synchronized (addLock) {
-            // 首先移动到可用bytes
-            pollToAvailable();
-
-            // 初始计数
-            int availableCount = count - pos;
-            long leftCount = n < 0 ? 0 : n;
-            long realCount = 0;
-
-            // 当列表未填充完毕且仍有可用数据
-            while (leftCount > 0 && availableCount > 0) {
-                long toCopy = Math.min(availableCount, leftCount);
-
-                pos += toCopy;
-                leftCount -= toCopy;
-                realCount += toCopy;
+        long skipped = 0;
 
-                // 移动到可用bytes
-                pollToAvailable();
+        while (skipped < n && advance()) {
+            long toSkip = Math.min(count - pos, n - skipped);
 
-                // 重新计算可用数量
-                availableCount = count - pos;
-            }
-
-            return realCount;
+            pos += (int) toSkip;
+            skipped += toSkip;
         }
+
+        return skipped;
     }
 
     /**
-     * Returns the number of remaining bytes that can be read (or skipped over)
-     * from this input stream.
-     * <p>
-     * The value returned is <code>count&nbsp;- pos</code>,
-     * which is the number of bytes remaining to be read from the input buffer.
+     * Returns the number of bytes that can be read (or skipped over)
+     * from this input stream without blocking: the rest of the current
+     * chunk plus everything still queued.
      *
      * @return  the number of remaining bytes that can be read (or skipped
      *          over) from this input stream without blocking.
      */
     @Override
     public int available() {
+        if (!isRunning) {
+            return 0;
+        }
 
-        return 0;
-//        while (isRunning) {
-//            int available;
-//            synchronized (lock) {
-//                pollToAvailable();
-//                available = count - pos;
-//            }
-//
-//            if (available <= 0) {
-//                try {
-//                    addLock.wait();
-//                } catch (InterruptedException e) {
-//                    e.printStackTrace();
-//                }
-//            } else {
-//                return available;
-//            }
-//        }
-//
-//        return -1;
+        return Math.max(0, count - pos) + queuedBytes.get();
+    }
+
+    /**
+     * Returns whether the peer has closed the stream and all data has been read.
+     *
+     * @return  true once no more data will ever be returned
+     */
+    public boolean isEndOfStream() {
+        return !isRunning || (endOfStream && pos >= count && readQueue.isEmpty());
     }
 
     /**
@@ -369,13 +586,21 @@ public class ByteQueueInputStream extends InputStream {
     }
 
     /**
-     * Closing a <tt>ByteArrayInputStream</tt> has no effect. The methods in
-     * this class can be called after the stream has been closed without
-     * generating an <tt>IOException</tt>.
+     * Closing the stream makes every further read return <code>-1</code>,
+     * wakes up a waiting reader and returns the queued buffers to the pool.
+     * The methods in this class can be called after the stream has been
+     * closed without generating an <tt>IOException</tt>.
      * <p>
      */
     @Override
     public void close() throws IOException {
         isRunning = false;
+        wakeReader();
+
+        AdbProtocol.AdbMessage msg;
+        while ((msg = readQueue.poll()) != null) {
+            queuedBytes.addAndGet(-msg.payloadLength);
+            msg.recycle();
+        }
     }
 }
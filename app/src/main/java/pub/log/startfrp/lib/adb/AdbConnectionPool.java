@@ -0,0 +1,591 @@
+package pub.log.startfrp.lib.adb;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pub.log.startfrp.adblib.AdbConnection;
+
+/**
+ * ADB连接池
+ * 以租约方式借出连接，多个线程可同时持有不同的连接；租约关闭时连接归还空闲队列
+ * 支持最小空闲连接预热、最大连接数、借出时校验，并统计等待情况
+ * 连接是否存活由读线程被动判断：收到任何消息即视为活跃，socket出错时连接在后台移出连接池
+ * 只有空闲较久的连接才在后台发送探测命令，不占用执行命令的连接
+ * 用法：try (AdbConnectionPool.Lease lease = pool.lease(timeout)) { ... }
+ * @author BY YYX
+ */
+public class AdbConnectionPool implements Closeable {
+    private static final String TAG = "AdbConnectionPool";
+
+    /**
+     * 创建并完成握手的新连接
+     */
+    public interface ConnectionFactory {
+        AdbConnection create() throws IOException, InterruptedException;
+    }
+
+    /**
+     * 探测空闲较久的连接是否仍然可用，不能关闭传入的租约
+     */
+    public interface ConnectionValidator {
+        boolean isValid(Lease lease);
+    }
+
+    /**
+     * 池中的一个连接及其持久shell会话
+     */
+    private static final class PooledConnection {
+        final AdbConnection connection;
+        final long generation;
+        AdbShellSession shellSession;
+        long lastUsed;
+
+        PooledConnection(AdbConnection connection, long generation) {
+            this.connection = connection;
+            this.generation = generation;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        void close() {
+            if (shellSession != null) {
+                shellSession.close();
+                shellSession = null;
+            }
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.d(TAG, "关闭连接时出错：" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 连接租约，关闭时归还连接；连接出错时先调用invalidate()，归还时连接会被关闭
+     */
+    public final class Lease implements AutoCloseable {
+        private final PooledConnection entry;
+        private boolean released;
+        private boolean broken;
+
+        private Lease(PooledConnection entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * 获取租用的连接
+         * @return ADB连接
+         */
+        public AdbConnection getConnection() {
+            return entry.connection;
+        }
+
+        /**
+         * 获取连接上的持久shell会话，没有时创建；会话随连接留在池中复用
+         * @return shell会话
+         */
+        public AdbShellSession getShellSession() {
+            if (entry.shellSession == null) {
+                entry.shellSession = new AdbShellSession(entry.connection);
+            }
+            return entry.shellSession;
+        }
+
+        /**
+         * 关闭连接上的shell会话，下次使用时重建
+         */
+        public void resetShellSession() {
+            if (entry.shellSession != null) {
+                entry.shellSession.close();
+                entry.shellSession = null;
+            }
+        }
+
+        /**
+         * 标记连接已损坏，归还时关闭而不放回池中
+         */
+        public void invalidate() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            release(entry, broken);
+        }
+    }
+
+    /**
+     * 连接池统计信息快照
+     */
+    public static final class Stats {
+        public final int total;
+        public final int idle;
+        public final int waiting;
+        public final int maxWaiting;
+        public final long leases;
+        public final long waits;
+        public final long timeouts;
+        public final long totalWaitMillis;
+        public final long maxWaitMillis;
+        public final long created;
+        public final long destroyed;
+        public final long validationFailures;
+        public final long evictions;
+
+        Stats(AdbConnectionPool pool) {
+            total = pool.total;
+            idle = pool.idle.size();
+            waiting = pool.waiting;
+            maxWaiting = pool.maxWaiting;
+            leases = pool.leaseCount;
+            waits = pool.waitCount;
+            timeouts = pool.timeoutCount;
+            totalWaitMillis = TimeUnit.NANOSECONDS.toMillis(pool.totalWaitNanos);
+            maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(pool.maxWaitNanos);
+            created = pool.createdCount;
+            destroyed = pool.destroyedCount;
+            validationFailures = pool.validationFailureCount;
+            evictions = pool.evictionCount;
+        }
+
+        @Override
+        public String toString() {
+            return "连接总数=" + total + "，空闲=" + idle + "，等待中=" + waiting + "（最多" + maxWaiting + "）"
+                    + "，租用=" + leases + "，等待=" + waits + "，超时=" + timeouts
+                    + "，累计等待=" + totalWaitMillis + "ms，最长等待=" + maxWaitMillis + "ms"
+                    + "，创建=" + created + "，关闭=" + destroyed + "，校验失败=" + validationFailures
+                    + "，断开移出=" + evictions;
+        }
+    }
+
+    private final ConnectionFactory factory;
+    private final ConnectionValidator validator;
+    private final int maxSize;
+    private final int minIdle;
+    private final long probeAfterIdleMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    // 空闲连接，最近归还的在队首，优先借出仍然活跃的连接
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+
+    // 已创建和正在创建的连接数，不超过maxSize
+    private int total;
+
+    // evictAll()后递增，旧一代的连接归还时关闭
+    private long generation;
+    private boolean closed;
+
+    private int waiting;
+    private int maxWaiting;
+    private long leaseCount;
+    private long waitCount;
+    private long timeoutCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long createdCount;
+    private long destroyedCount;
+    private long validationFailureCount;
+    private long evictionCount;
+
+    private final AtomicBoolean warming = new AtomicBoolean(false);
+
+    // 预热、探测空闲连接和移出断开的连接都在这个线程上执行
+    private final ScheduledThreadPoolExecutor maintenance = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "AdbPoolMaintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param factory 创建新连接
+     * @param validator 探测空闲较久的连接，可为null
+     * @param maxSize 最大连接数
+     * @param minIdle 预热时保持的最小空闲连接数
+     * @param probeAfterIdleMillis 既没有借出也没有收到消息超过该时间的空闲连接，在后台探测
+     */
+    public AdbConnectionPool(ConnectionFactory factory, ConnectionValidator validator,
+                             int maxSize, int minIdle, long probeAfterIdleMillis) {
+        this.factory = factory;
+        this.validator = validator;
+        this.maxSize = maxSize;
+        this.minIdle = Math.min(minIdle, maxSize);
+        this.probeAfterIdleMillis = probeAfterIdleMillis;
+    }
+
+    /**
+     * 开始定期维护：探测空闲较久的连接并补足最小空闲连接，只需调用一次
+     * @param intervalMillis 维护间隔
+     */
+    public void startMaintenance(long intervalMillis) {
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                probeIdle();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "探测空闲连接失败：" + e.getMessage());
+            }
+            // 只在已有连接时补足空闲连接，ADB不可用时不反复尝试连接
+            if (getStats().total > 0) {
+                ensureMinIdle();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 借出一个连接，没有空闲连接且未达到最大连接数时新建连接，否则等待其他租约归还
+     * 借出前只做被动检查（连接未断开），不发送探测命令
+     * @param timeoutMillis 最长等待时间
+     * @return 连接租约
+     * @throws SocketTimeoutException 等待超时
+     * @throws IOException 连接池已关闭或无法创建连接
+     * @throws InterruptedException
+     */
+    public Lease lease(long timeoutMillis) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean waited = false;
+
+        while (true) {
+            PooledConnection entry;
+            long createGeneration = -1;
+
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("连接池已关闭");
+                    }
+                    entry = idle.pollFirst();
+                    if (entry != null) {
+                        break;
+                    }
+                    if (total < maxSize) {
+                        total++;
+                        createGeneration = generation;
+                        break;
+                    }
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeoutCount++;
+                        throw new SocketTimeoutException("等待ADB连接超时，连接池已满：" + maxSize);
+                    }
+                    waited = true;
+                    waiting++;
+                    maxWaiting = Math.max(maxWaiting, waiting);
+                    try {
+                        available.awaitNanos(remaining);
+                    } finally {
+                        waiting--;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (entry == null) {
+                entry = createEntry(createGeneration);
+            } else if (!validate(entry)) {
+                destroy(entry);
+                continue;
+            }
+
+            long waitNanos = System.nanoTime() - start;
+            lock.lock();
+            try {
+                leaseCount++;
+                if (waited) {
+                    waitCount++;
+                    totalWaitNanos += waitNanos;
+                    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return new Lease(entry);
+        }
+    }
+
+    /**
+     * 在后台补足最小空闲连接，已在预热时直接返回
+     */
+    public void ensureMinIdle() {
+        if (minIdle <= 0 || !warming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            maintenance.execute(() -> {
+                try {
+                    while (true) {
+                        long createGeneration;
+                        lock.lock();
+                        try {
+                            if (closed || idle.size() >= minIdle || total >= maxSize) {
+                                return;
+                            }
+                            total++;
+                            createGeneration = generation;
+                        } finally {
+                            lock.unlock();
+                        }
+
+                        release(createEntry(createGeneration), false);
+                        Log.d(TAG, "预热ADB连接完成：" + getStats());
+                    }
+                } catch (Exception e) {
+                    Log.d(TAG, "预热ADB连接失败：" + e.getMessage());
+                } finally {
+                    warming.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            warming.set(false);
+        }
+    }
+
+    /**
+     * 逐个探测空闲较久的连接，关闭不可用的连接
+     * 探测中的连接暂时移出空闲队列，其他连接照常借出
+     */
+    void probeIdle() {
+        if (validator == null) {
+            return;
+        }
+
+        while (true) {
+            PooledConnection candidate = null;
+            long now = System.currentTimeMillis();
+            lock.lock();
+            try {
+                for (PooledConnection entry : idle) {
+                    if (now - lastActive(entry) > probeAfterIdleMillis) {
+                        candidate = entry;
+                        break;
+                    }
+                }
+                if (candidate == null) {
+                    return;
+                }
+                idle.remove(candidate);
+            } finally {
+                lock.unlock();
+            }
+
+            // 探测后归还，lastUsed随之更新，本轮不会再次探测
+            Lease lease = new Lease(candidate);
+            if (!candidate.connection.isFine() || !validator.isValid(lease)) {
+                recordValidationFailure();
+                lease.invalidate();
+            }
+            lease.close();
+        }
+    }
+
+    /**
+     * 关闭所有空闲连接，已借出的连接在归还时关闭
+     */
+    public void evictAll() {
+        List<PooledConnection> entries = new ArrayList<>();
+        lock.lock();
+        try {
+            generation++;
+            entries.addAll(idle);
+            idle.clear();
+            total -= entries.size();
+            destroyedCount += entries.size();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (PooledConnection entry : entries) {
+            entry.close();
+        }
+    }
+
+    /**
+     * 是否有可用的连接
+     * @return 有已借出的连接或可用的空闲连接时返回true
+     */
+    public boolean hasLiveConnection() {
+        lock.lock();
+        try {
+            if (total > idle.size()) {
+                return true;
+            }
+            for (PooledConnection entry : idle) {
+                if (entry.connection.isFine()) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取统计信息快照
+     * @return 统计信息
+     */
+    public Stats getStats() {
+        lock.lock();
+        try {
+            return new Stats(this);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭连接池和所有连接，之后不能再借出连接
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        evictAll();
+        maintenance.shutdownNow();
+    }
+
+    private PooledConnection createEntry(long createGeneration) throws IOException, InterruptedException {
+        boolean success = false;
+        try {
+            final PooledConnection entry = new PooledConnection(factory.create(), createGeneration);
+            // 读线程发现连接断开时，在后台将连接移出连接池
+            entry.connection.addConnectionListener((connection, cause) -> evictAsync(entry));
+            success = true;
+            return entry;
+        } finally {
+            lock.lock();
+            try {
+                if (success) {
+                    createdCount++;
+                } else {
+                    // 创建失败，空出名额
+                    total--;
+                    available.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean validate(PooledConnection entry) {
+        boolean valid;
+        lock.lock();
+        try {
+            valid = entry.generation == generation;
+        } finally {
+            lock.unlock();
+        }
+
+        valid = valid && entry.connection.isFine();
+        if (!valid) {
+            recordValidationFailure();
+        }
+        return valid;
+    }
+
+    /**
+     * 连接最后一次活跃的时间：最后归还或最后收到消息，取较晚者
+     */
+    private static long lastActive(PooledConnection entry) {
+        return Math.max(entry.lastUsed, entry.connection.getLastMessageTime());
+    }
+
+    /**
+     * 在维护线程上将已断开的空闲连接移出连接池；借出中的连接在归还时关闭
+     * 不能在读线程上直接关闭连接，close()会等待读线程结束
+     */
+    private void evictAsync(final PooledConnection entry) {
+        try {
+            maintenance.execute(() -> {
+                boolean removed;
+                lock.lock();
+                try {
+                    removed = idle.remove(entry);
+                    if (removed) {
+                        total--;
+                        destroyedCount++;
+                        evictionCount++;
+                        available.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                if (removed) {
+                    Log.d(TAG, "空闲连接已断开，移出连接池：" + entry.connection.getCloseCause());
+                    entry.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 连接池已关闭
+        }
+    }
+
+    private void recordValidationFailure() {
+        lock.lock();
+        try {
+            validationFailureCount++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(PooledConnection entry, boolean broken) {
+        boolean keep;
+        lock.lock();
+        try {
+            keep = !broken && !closed && entry.generation == generation && entry.connection.isFine();
+            if (keep) {
+                entry.lastUsed = System.currentTimeMillis();
+                idle.addFirst(entry);
+            } else {
+                total--;
+                destroyedCount++;
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (!keep) {
+            entry.close();
+        }
+    }
+
+    private void destroy(PooledConnection entry) {
+        lock.lock();
+        try {
+            total--;
+            destroyedCount++;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        entry.close();
+    }
+}
@@ -1,33 +1,32 @@
 package pub.log.startfrp.lib.adb;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.util.Base64;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.security.GeneralSecurityException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.SocketChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import pub.log.startfrp.LogManager;
-import pub.log.startfrp.adblib.AdbBase64;
 import pub.log.startfrp.adblib.AdbConnection;
 import pub.log.startfrp.adblib.AdbCrypto;
+import pub.log.startfrp.adblib.AdbShellResult;
 import pub.log.startfrp.adblib.AdbStream;
+import pub.log.startfrp.adblib.AdbSyncClient;
+import pub.log.startfrp.adblib.ByteQueueInputStream;
 
 /**
  * ADB连接器类
  * 用于与ADB服务器建立连接，执行shell命令，并管理连接池
+ * 连接以租约方式从连接池借出，多个线程可同时执行命令
  * 支持自动重连和连接状态检查
  * @author BY YYX
  */
@@ -35,25 +34,57 @@ public class AdbConnector {
     private static final String TAG = "AdbConnector";
     private static final String ADB_HOST = "localhost";
     private static final int ADB_PORT = 5555;
-    private static final String PREF_NAME = "adb_connector_prefs";
-    private static final String KEY_PRIVATE_KEY = "private_key";
-    private static final String KEY_PUBLIC_KEY = "public_key";
     private static final int MAX_POOL_SIZE = 3; // 连接池最大大小
+    private static final int MIN_IDLE = 1; // 连接成功后预热保持的空闲连接数
+    private static final long LEASE_TIMEOUT = 10 * 1000; // 等待空闲连接最长10秒
+    private static final long PROBE_AFTER_IDLE = 60 * 1000; // 空闲且未收到消息超过60秒的连接在后台探测
+    private static final long CONNECT_TIMEOUT = 10 * 1000; // 调用方等待连接最长10秒
+    private static final long RECONNECT_BASE_DELAY = 500; // 重连首次退避0.5秒
+    private static final long RECONNECT_MAX_DELAY = 30 * 1000; // 重连退避上限30秒
+    private static final int CONNECT_ATTEMPTS = 3; // 一次连接尝试内最多连接3次，连接被拒绝时不重试
 
     private final Context context;
-    private AdbConnection connection;
-    private boolean connected = false;
-    private AdbCrypto adbCrypto;
-    private final java.util.Queue<AdbConnection> connectionPool = new java.util.LinkedList<>();
-    private final java.util.concurrent.Semaphore poolSemaphore = new java.util.concurrent.Semaphore(MAX_POOL_SIZE);
-    private java.util.Timer connectionCheckTimer;
-    private static final long CONNECTION_CHECK_INTERVAL = 60 * 1000; // 60秒检查一次
+    private final AdbConnectionPool pool;
+    private final AdbReconnectScheduler reconnectScheduler;
+    private static final long CONNECTION_CHECK_INTERVAL = 30 * 1000; // 30秒检查一次空闲连接
+    private static final long COMMAND_TIMEOUT = 15 * 1000; // 单条命令最长等待15秒，正常情况下命令退出即返回
+    private static final long PROBE_TIMEOUT = 2000; // 连接检查命令最长等待2秒
+    private static final String EXIT_MARKER = "__STARTFRP_EXIT__:"; // 不支持shell_v2时用于取得退出码的输出标记
+
+    // 命令默认通过连接上的持久shell会话执行
+    private volatile boolean shellSessionEnabled = true;
+
+    // 重连统计：因传输故障断开的连接数，以及替换这些连接的新连接数
+    private final AtomicLong transportFailureCount = new AtomicLong();
+    private final AtomicLong reconnectCount = new AtomicLong();
+    // 因传输故障断开、尚未被新连接替换的连接数
+    private final AtomicInteger lostConnections = new AtomicInteger();
 
     public AdbConnector(Context context) {
         this.context = context.getApplicationContext();
-        this.connection = null;
-        this.connected = false;
-        this.adbCrypto = null;
+        this.pool = new AdbConnectionPool(new AdbConnectionPool.ConnectionFactory() {
+            @Override
+            public AdbConnection create() throws IOException, InterruptedException {
+                return createConnection();
+            }
+        }, new AdbConnectionPool.ConnectionValidator() {
+            @Override
+            public boolean isValid(AdbConnectionPool.Lease lease) {
+                return probeConnection(lease);
+            }
+        }, MAX_POOL_SIZE, MIN_IDLE, PROBE_AFTER_IDLE);
+
+        // 连接存活由读线程被动判断，只有空闲较久的连接才在后台探测
+        this.pool.startMaintenance(CONNECTION_CHECK_INTERVAL);
+
+        // 所有调用方共享同一次连接尝试：借出一个连接即说明可以连接，没有空闲连接时由连接池新建
+        this.reconnectScheduler = new AdbReconnectScheduler(ADB_HOST + ":" + ADB_PORT,
+                new AdbReconnectScheduler.ConnectAction() {
+                    @Override
+                    public void connect() throws IOException, InterruptedException {
+                        pool.lease(LEASE_TIMEOUT).close();
+                    }
+                }, RECONNECT_BASE_DELAY, RECONNECT_MAX_DELAY, CONNECT_ATTEMPTS);
     }
     
     private void sendAdbLog(String logMessage) {
@@ -61,718 +92,553 @@ public class AdbConnector {
         AdbManager.sendAdbLog(logMessage);
     }
 
-    public synchronized boolean connect() {
+    /**
+     * 确保至少有一个可用连接，并在后台预热空闲连接
+     * 并发调用共享同一次连接尝试；adbd拒绝连接时立即失败，退避期内直接返回失败
+     * @return 是否连接成功
+     */
+    public boolean connect() {
+        return connect(CONNECT_TIMEOUT);
+    }
+
+    /**
+     * 确保至少有一个可用连接，最多等待指定时间
+     * @param timeoutMillis 最长等待时间，超时后连接尝试在后台继续
+     * @return 是否连接成功
+     */
+    public boolean connect(long timeoutMillis) {
         try {
-            // 检查是否已经连接
-            if (connected && connection != null) {
-                Log.d(TAG, "ADB已经连接，无需重新连接");
-                LogManager.getInstance(context).d(TAG, "ADB已经连接，无需重新连接");
-                return true;
+            if (!reconnectScheduler.awaitConnected(timeoutMillis)) {
+                IOException error = reconnectScheduler.getLastError();
+                String reason = error != null ? error.getMessage() : "等待超时";
+                String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
+                String logMessage = timestamp + " ADB连接失败：" + reason;
+                Log.e(TAG, "ADB连接失败：" + reason);
+                LogManager.getInstance(context).e(TAG, "ADB连接失败：" + reason);
+                sendAdbLog(logMessage);
+                return false;
             }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "ADB连接被中断：" + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "ADB连接被中断：" + e.getMessage());
+            Thread.currentThread().interrupt();
+            return false;
+        }
 
-            // 尝试从连接池获取连接
-            if (!connectionPool.isEmpty()) {
-                connection = connectionPool.poll();
-                if (connection != null) {
-                    Log.d(TAG, "从连接池获取ADB连接");
-                    LogManager.getInstance(context).d(TAG, "从连接池获取ADB连接");
-                    connected = true;
-                    startConnectionChecks();
-                    return true;
-                }
-            }
+        Log.d(TAG, "ADB连接可用");
+        LogManager.getInstance(context).d(TAG, "ADB连接可用");
+        pool.ensureMinIdle();
+        return true;
+    }
 
-            // 检查连接池是否已满
-            if (!poolSemaphore.tryAcquire()) {
-                Log.d(TAG, "ADB连接池已满，等待可用连接");
-                LogManager.getInstance(context).d(TAG, "ADB连接池已满，等待可用连接");
-                // 连接池已满，使用现有连接
-                if (connection != null) {
-                    connected = true;
-                    startConnectionChecks();
-                    return true;
-                }
-                return false;
-            }
+    /**
+     * 订阅ADB连接状态，未连接时在后台按退避时间重连，连接成功时回调
+     * 回调在重连线程上执行，不能在其中等待连接
+     * @param listener 订阅者
+     */
+    public void addConnectionListener(AdbReconnectScheduler.Listener listener) {
+        reconnectScheduler.addListener(listener);
+    }
 
-            Log.d(TAG, "开始连接ADB服务器");
-            LogManager.getInstance(context).d(TAG, "开始连接ADB服务器");
+    /**
+     * 取消订阅ADB连接状态
+     * @param listener 订阅者
+     */
+    public void removeConnectionListener(AdbReconnectScheduler.Listener listener) {
+        reconnectScheduler.removeListener(listener);
+    }
 
-            // 先断开现有连接
-            if (connection != null) {
-                try {
-                    connection.close();
-                } catch (Exception e) {
-                    Log.d(TAG, "关闭现有连接时出错：" + e.getMessage());
-                    LogManager.getInstance(context).d(TAG, "关闭现有连接时出错：" + e.getMessage());
-                }
-                connection = null;
-            }
+    /**
+     * 获取重连调度统计信息
+     * @return 统计信息
+     */
+    public String getReconnectStats() {
+        return reconnectScheduler.getStats();
+    }
 
-            // 加载或生成RSA密钥
-            if (adbCrypto == null) {
-                adbCrypto = loadOrGenerateCrypto();
-            }
+    /**
+     * 借出一个连接，用完后关闭租约归还；连接出错时先调用lease.invalidate()
+     * 用法：try (AdbConnectionPool.Lease lease = connector.lease()) { ... }
+     * @return 连接租约
+     * @throws IOException 无法建立连接或等待超时
+     * @throws InterruptedException
+     */
+    public AdbConnectionPool.Lease lease() throws IOException, InterruptedException {
+        return pool.lease(LEASE_TIMEOUT);
+    }
 
-            // 尝试连接，最多尝试3次
-            for (int i = 0; i < 3; i++) {
-                try {
-                    String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    String logMessage = timestamp + " 尝试连接ADB服务器，第" + (i + 1) + "次: " + ADB_HOST + ":" + ADB_PORT;
-                    Log.d(TAG, "尝试连接ADB服务器，第" + (i + 1) + "次: " + ADB_HOST + ":" + ADB_PORT);
-                    LogManager.getInstance(context).d(TAG, "尝试连接ADB服务器，第" + (i + 1) + "次: " + ADB_HOST + ":" + ADB_PORT);
-                    sendAdbLog(logMessage);
-
-                    // 创建Socket
-                    Socket socket = new Socket(ADB_HOST, ADB_PORT);
-                    socket.setSoTimeout(5000); // 设置Socket超时
-
-                    // 创建AdbConnection
-                    connection = AdbConnection.create(socket, adbCrypto);
-
-                    // 检查连接是否创建成功
-                    if (connection == null) {
-                        timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                        logMessage = timestamp + " 创建AdbConnection失败，返回null";
-                        Log.e(TAG, "创建AdbConnection失败，返回null");
-                        LogManager.getInstance(context).e(TAG, "创建AdbConnection失败，返回null");
-                        sendAdbLog(logMessage);
-                        continue;
-                    }
+    /**
+     * 获取重连次数，即替换因传输故障断开的连接而新建的连接数
+     * @return 重连次数
+     */
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    /**
+     * 获取因传输故障（socket出错、对端断开）而断开的连接数，空闲不计入
+     * @return 传输故障次数
+     */
+    public long getTransportFailureCount() {
+        return transportFailureCount.get();
+    }
+
+    /**
+     * 获取连接池统计信息
+     * @return 统计信息快照
+     */
+    public AdbConnectionPool.Stats getPoolStats() {
+        return pool.getStats();
+    }
+
+    /**
+     * 创建新的ADB连接，供连接池调用
+     * 只连接一次，重试和退避由重连调度器负责；退避期内直接失败
+     * @return 已完成握手的连接
+     * @throws IOException 连接失败或处于退避期
+     * @throws InterruptedException
+     */
+    private AdbConnection createConnection() throws IOException, InterruptedException {
+        // adbd刚拒绝过连接时不再连接
+        reconnectScheduler.checkHoldoff();
+
+        // 进程内共享的RSA密钥，首次安装时已在应用启动时后台生成
+        AdbCrypto crypto = AdbCredentials.getInstance(context).get();
 
-                    // 连接，设置5秒超时
-                    connection.connect(5000);
-
-                    connected = true;
-                    timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    logMessage = timestamp + " ADB连接成功";
-                    Log.d(TAG, "ADB连接成功");
-                    LogManager.getInstance(context).d(TAG, "ADB连接成功");
-                    sendAdbLog(logMessage);
-                    startConnectionChecks();
-                    return true;
-                } catch (IOException e) {
-                    String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    String logMessage = timestamp + " ADB连接失败，第" + (i + 1) + "次：" + e.getMessage();
-                    Log.e(TAG, "ADB连接失败，第" + (i + 1) + "次：" + e.getMessage(), e);
-                    LogManager.getInstance(context).e(TAG, "ADB连接失败，第" + (i + 1) + "次：" + e.getMessage());
-                    sendAdbLog(logMessage);
-                    // 等待1秒后重试
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
+        AdbConnection connection = null;
+        try {
+            String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
+            String logMessage = timestamp + " 尝试连接ADB服务器: " + ADB_HOST + ":" + ADB_PORT;
+            Log.d(TAG, "尝试连接ADB服务器: " + ADB_HOST + ":" + ADB_PORT);
+            LogManager.getInstance(context).d(TAG, "尝试连接ADB服务器: " + ADB_HOST + ":" + ADB_PORT);
+            sendAdbLog(logMessage);
+
+            // 通过SocketChannel创建Socket，以便AdbConnection使用聚集写发送ADB消息
+            // 不设置SO_TIMEOUT：通道socket上的超时读会把通道切换为非阻塞模式，与并发的写操作冲突
+            SocketChannel channel = SocketChannel.open();
+            Socket socket = channel.socket();
+            try {
+                socket.connect(new InetSocketAddress(ADB_HOST, ADB_PORT), 5000);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+
+            // 创建AdbConnection
+            connection = AdbConnection.create(socket, crypto);
+
+            // 设备支持delayed_ack时按窗口发送，一个stream可同时有多个WRTE在途
+            connection.setDelayedAckEnabled(true);
+
+            // 连接，设置5秒超时
+            connection.connect(5000);
+
+            // 空闲不会断开连接，只有传输故障才需要重连
+            connection.addConnectionListener(new AdbConnection.ConnectionListener() {
+                @Override
+                public void onConnectionClosed(AdbConnection conn, Exception cause) {
+                    if (cause != null) {
+                        transportFailureCount.incrementAndGet();
+                        lostConnections.incrementAndGet();
+                        Log.d(TAG, "ADB连接因传输故障断开：" + cause.getMessage());
+                        LogManager.getInstance(context).d(TAG, "ADB连接因传输故障断开：" + cause.getMessage());
+                        // 没有其他可用连接时通知订阅者所在的重连调度器
+                        if (!pool.hasLiveConnection()) {
+                            reconnectScheduler.markDisconnected();
+                        }
                     }
-                    continue;
-                } catch (InterruptedException e) {
-                    String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    String logMessage = timestamp + " ADB连接被中断，第" + (i + 1) + "次：" + e.getMessage();
-                    Log.e(TAG, "ADB连接被中断，第" + (i + 1) + "次：" + e.getMessage(), e);
-                    LogManager.getInstance(context).e(TAG, "ADB连接被中断，第" + (i + 1) + "次：" + e.getMessage());
-                    sendAdbLog(logMessage);
-                    Thread.currentThread().interrupt();
-                    poolSemaphore.release();
-                    return false;
-                } catch (Exception e) {
-                    String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    String logMessage = timestamp + " ADB连接异常，第" + (i + 1) + "次：" + e.getMessage();
-                    Log.e(TAG, "ADB连接异常，第" + (i + 1) + "次：" + e.getMessage(), e);
-                    LogManager.getInstance(context).e(TAG, "ADB连接异常，第" + (i + 1) + "次：" + e.getMessage());
-                    sendAdbLog(logMessage);
-                    continue;
                 }
+            });
+            if (lostConnections.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                reconnectCount.incrementAndGet();
             }
+            reconnectScheduler.markConnected();
 
+            timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
+            logMessage = timestamp + " ADB连接成功";
+            Log.d(TAG, "ADB连接成功");
+            LogManager.getInstance(context).d(TAG, "ADB连接成功");
+            sendAdbLog(logMessage);
+            return connection;
+        } catch (IOException e) {
             String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-            String logMessage = timestamp + " ADB连接失败，已尝试3次";
-            Log.e(TAG, "ADB连接失败，已尝试3次");
-            LogManager.getInstance(context).e(TAG, "ADB连接失败，已尝试3次");
+            String logMessage = timestamp + " ADB连接失败：" + e.getMessage();
+            Log.e(TAG, "ADB连接失败：" + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "ADB连接失败：" + e.getMessage());
             sendAdbLog(logMessage);
-            disconnect();
-            poolSemaphore.release();
-            return false;
-        } catch (Exception e) {
+            closeQuietly(connection);
+            throw e;
+        } catch (InterruptedException e) {
             String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-            String logMessage = timestamp + " ADB连接异常：" + e.getMessage();
-            Log.e(TAG, "ADB连接异常：" + e.getMessage(), e);
-            LogManager.getInstance(context).e(TAG, "ADB连接异常：" + e.getMessage());
+            String logMessage = timestamp + " ADB连接被中断：" + e.getMessage();
+            Log.e(TAG, "ADB连接被中断：" + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "ADB连接被中断：" + e.getMessage());
             sendAdbLog(logMessage);
-            disconnect();
-            poolSemaphore.release();
-            return false;
+            closeQuietly(connection);
+            throw e;
         }
     }
 
-    /**
-     * 开始定期检查连接状态
-     */
-    private synchronized void startConnectionChecks() {
-        // 先停止现有的定时器
-        stopConnectionChecks();
-        
-        // 创建新的定时器
-        connectionCheckTimer = new java.util.Timer();
-        connectionCheckTimer.schedule(new java.util.TimerTask() {
-            @Override
-            public void run() {
-                synchronized (AdbConnector.this) {
-                    // 检查当前连接
-                    if (connected && connection != null) {
-                        if (!isConnectionValid()) {
-                            Log.d(TAG, "当前ADB连接无效，尝试重新连接");
-                            LogManager.getInstance(context).d(TAG, "当前ADB连接无效，尝试重新连接");
-                            connect();
-                        }
-                    }
-                    
-                    // 检查连接池中的连接
-                    if (!connectionPool.isEmpty()) {
-                        java.util.Queue<AdbConnection> validConnections = new java.util.LinkedList<>();
-                        while (!connectionPool.isEmpty()) {
-                            AdbConnection pooledConnection = connectionPool.poll();
-                            try {
-                                // 验证连接是否有效
-                                AdbStream stream = pooledConnection.open("shell:");
-                                byte[] commandBytes = ("echo test\n").getBytes("UTF-8");
-                                stream.write(commandBytes);
-                                Thread.sleep(200);
-                                InputStream inputStream = stream.getInputStream();
-                                byte[] buffer = new byte[1024];
-                                int bytesRead = inputStream.read(buffer);
-                                stream.close();
-                                
-                                if (bytesRead > 0) {
-                                    validConnections.offer(pooledConnection);
-                                } else {
-                                    // 连接无效，关闭
-                                    pooledConnection.close();
-                                    poolSemaphore.release();
-                                }
-                            } catch (Exception e) {
-                                // 连接无效，关闭
-                                try {
-                                    if (pooledConnection != null) {
-                                        pooledConnection.close();
-                                    }
-                                } catch (Exception ex) {
-                                    // 忽略错误
-                                }
-                                poolSemaphore.release();
-                            }
-                        }
-                        // 将有效连接放回池
-                        while (!validConnections.isEmpty()) {
-                            connectionPool.offer(validConnections.poll());
-                        }
-                    }
-                }
+    private static void closeQuietly(AdbConnection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // 忽略错误
             }
-        }, CONNECTION_CHECK_INTERVAL, CONNECTION_CHECK_INTERVAL);
+        }
     }
 
     /**
-     * 停止定期检查连接状态
+     * 执行命令，返回合并后的标准输出和标准错误
+     * @param command 要执行的命令
+     * @return 命令输出，失败时返回null
      */
-    private synchronized void stopConnectionChecks() {
-        if (connectionCheckTimer != null) {
-            connectionCheckTimer.cancel();
-            connectionCheckTimer = null;
+    public String executeCommand(String command) {
+        AdbShellResult result = executeShell(command);
+        if (result == null) {
+            return null;
         }
+        String output = mergeOutput(result);
+        Log.d(TAG, "ADB命令执行结果：" + output);
+        LogManager.getInstance(context).d(TAG, "ADB命令执行结果：" + output);
+        return output;
     }
 
     /**
-     * 将连接返回连接池
+     * 执行命令，分别返回退出码、标准输出和标准错误
+     * 默认通过连接上的持久shell会话执行；会话不可用时，设备支持shell_v2则使用shell,v2,raw:服务，
+     * 否则使用shell:服务，并在命令后输出退出码标记
+     * @param command 要执行的命令
+     * @return 命令执行结果，失败时返回null
      */
-    public synchronized void returnToPool() {
-        if (connected && connection != null) {
-            // 检查连接是否仍然有效
-            if (isConnectionValid()) {
-                connectionPool.offer(connection);
-                Log.d(TAG, "ADB连接返回连接池，当前池大小：" + connectionPool.size());
-                LogManager.getInstance(context).d(TAG, "ADB连接返回连接池，当前池大小：" + connectionPool.size());
-            } else {
-                // 连接无效，关闭并释放信号量
-                try {
-                    connection.close();
-                } catch (Exception e) {
-                    Log.d(TAG, "关闭无效连接时出错：" + e.getMessage());
-                    LogManager.getInstance(context).d(TAG, "关闭无效连接时出错：" + e.getMessage());
-                }
-                poolSemaphore.release();
+    public AdbShellResult executeShell(String command) {
+        // 最多尝试2次，连接出错时换一个连接重试
+        int maxAttempts = 2;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            AdbConnectionPool.Lease lease;
+            try {
+                lease = pool.lease(LEASE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (Exception e) {
+                Log.e(TAG, "ADB未连接，无法执行命令：" + e.getMessage(), e);
+                LogManager.getInstance(context).e(TAG, "ADB未连接，无法执行命令：" + e.getMessage());
+                return null;
             }
-            connection = null;
-            connected = false;
-        }
-    }
 
-    public synchronized String executeCommand(String command) {
-        if (!connected && !connect()) {
-            Log.e(TAG, "ADB未连接，无法执行命令");
-            LogManager.getInstance(context).e(TAG, "ADB未连接，无法执行命令");
-            return null;
-        }
-
-        // 最多尝试3次执行命令
-        int maxAttempts = 3;
-        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
-            AdbStream stream = null;
             try {
                 Log.d(TAG, "执行ADB命令（尝试" + attempt + "/" + maxAttempts + "）：" + command);
                 LogManager.getInstance(context).d(TAG, "执行ADB命令（尝试" + attempt + "/" + maxAttempts + "）：" + command);
 
-                // 打开shell流来执行命令
-                Log.d(TAG, "打开shell流");
-                LogManager.getInstance(context).d(TAG, "打开shell流");
-                try {
-                    stream = connection.open("shell:");
-                    Log.d(TAG, "shell流打开成功");
-                    LogManager.getInstance(context).d(TAG, "shell流打开成功");
-                } catch (Exception e) {
-                    Log.e(TAG, "打开shell流失败：" + e.getMessage(), e);
-                    LogManager.getInstance(context).e(TAG, "打开shell流失败：" + e.getMessage());
-                    // 重新连接
-                    if (connect()) {
-                        // 重新尝试打开流
-                        try {
-                            stream = connection.open("shell:");
-                            Log.d(TAG, "重新打开shell流成功");
-                            LogManager.getInstance(context).d(TAG, "重新打开shell流成功");
-                        } catch (Exception ex) {
-                            Log.e(TAG, "重新打开shell流失败：" + ex.getMessage(), ex);
-                            LogManager.getInstance(context).e(TAG, "重新打开shell流失败：" + ex.getMessage());
-                            // 继续下一次尝试
-                            continue;
-                        }
-                    } else {
-                        Log.e(TAG, "重新连接失败，无法打开shell流");
-                        LogManager.getInstance(context).e(TAG, "重新连接失败，无法打开shell流");
-                        // 继续下一次尝试
-                        continue;
-                    }
+                AdbShellResult result = null;
+                if (shellSessionEnabled) {
+                    result = executeInSession(lease, command);
                 }
-
-                // 写入命令
-                Log.d(TAG, "写入命令：" + command);
-                LogManager.getInstance(context).d(TAG, "写入命令：" + command);
-                try {
-                    // 写入命令，确保以换行符结束
-                    byte[] commandBytes = (command + "\n").getBytes("UTF-8");
-                    stream.write(commandBytes);
-                    Log.d(TAG, "命令写入成功");
-                    LogManager.getInstance(context).d(TAG, "命令写入成功");
-                } catch (Exception e) {
-                    Log.e(TAG, "写入命令失败：" + e.getMessage(), e);
-                    LogManager.getInstance(context).e(TAG, "写入命令失败：" + e.getMessage());
-                    // 重新连接
-                    if (connect()) {
-                        // 继续下一次尝试
-                        continue;
-                    }
-                    // 继续下一次尝试
-                    continue;
-                }
-
-                // 等待一小段时间，让命令有时间执行
-                try {
-                    Thread.sleep(1500); // 增加等待时间，确保命令执行完成
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-
-                // 创建一个final的引用，以便在内部类中使用
-                final AdbStream finalStream = stream;
-
-                // 使用单独的线程来读取数据，避免阻塞
-                final StringBuilder response = new StringBuilder();
-                final boolean[] hasData = {false};
-                final boolean[] readComplete = {false};
-                
-                Thread readThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            // 获取输入流
-                            Log.d(TAG, "获取输入流");
-                            LogManager.getInstance(context).d(TAG, "获取输入流");
-                            InputStream inputStream = finalStream.getInputStream();
-                            Log.d(TAG, "输入流获取成功");
-                            LogManager.getInstance(context).d(TAG, "输入流获取成功");
-                            byte[] buffer = new byte[1024];
-                            int bytesRead;
-                            
-                            // 读取数据，最多读取3000毫秒
-                            long startTime = System.currentTimeMillis();
-                            long timeout = 3000; // 3000毫秒超时
-                            
-                            Log.d(TAG, "开始读取数据");
-                            LogManager.getInstance(context).d(TAG, "开始读取数据");
-                            while ((bytesRead = inputStream.read(buffer)) != -1 && 
-                                   System.currentTimeMillis() - startTime < timeout) {
-                                hasData[0] = true;
-                                String chunk = new String(buffer, 0, bytesRead, "UTF-8");
-                                response.append(chunk);
-                                Log.d(TAG, "读取到数据：" + chunk);
-                                LogManager.getInstance(context).d(TAG, "读取到数据：" + chunk);
-                            }
-                            Log.d(TAG, "读取数据完成，共读取：" + response.length() + " 个字符");
-                            LogManager.getInstance(context).d(TAG, "读取数据完成，共读取：" + response.length() + " 个字符");
-                        } catch (Exception e) {
-                            Log.e(TAG, "读取响应数据失败：" + e.getMessage(), e);
-                            LogManager.getInstance(context).e(TAG, "读取响应数据失败：" + e.getMessage());
-                        } finally {
-                            readComplete[0] = true;
-                            Log.d(TAG, "读取线程完成");
-                            LogManager.getInstance(context).d(TAG, "读取线程完成");
-                        }
-                    }
-                });
-                
-                readThread.start();
-                
-                // 等待读取线程完成，最多等待3000毫秒
-                long startTime = System.currentTimeMillis();
-                long timeout = 3000; // 3000毫秒超时
-                Log.d(TAG, "等待读取线程完成");
-                LogManager.getInstance(context).d(TAG, "等待读取线程完成");
-                while (!readComplete[0] && System.currentTimeMillis() - startTime < timeout) {
-                    try {
-                        Thread.sleep(100); // 每100毫秒检查一次
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-                
-                // 如果读取线程还没有完成，中断它
-                if (!readComplete[0]) {
-                    Log.d(TAG, "读取响应超时，中断读取线程");
-                    LogManager.getInstance(context).d(TAG, "读取响应超时，中断读取线程");
-                }
-                
-                // 处理结果
-                String resultStr = response.toString().trim();
-                Log.d(TAG, "原始结果：" + resultStr);
-                LogManager.getInstance(context).d(TAG, "原始结果：" + resultStr);
-                
-                // 尝试不同的方式来提取结果
-                // 对于settings get命令，尝试直接提取值
-                if (command.startsWith("settings get")) {
-                    // 尝试简单的方式，直接返回结果
-                    Log.d(TAG, "处理settings get命令结果");
-                    LogManager.getInstance(context).d(TAG, "处理settings get命令结果");
-                    
-                    // 保存原始结果
-                    String originalResult = resultStr;
-                    
-                    // 尝试多种方式提取结果
-                    // 方式1：按行分割，查找包含命令的行，然后取下一行
-                    String[] lines = originalResult.split("\\n");
-                    for (int i = 0; i < lines.length; i++) {
-                        String line = lines[i].trim();
-                        if (line.contains(command)) {
-                            if (i + 1 < lines.length) {
-                                resultStr = lines[i + 1].trim();
-                                // 清理结果，移除可能的命令提示符或设备信息
-                                resultStr = resultStr.replaceAll("^.*\\$\\s*", "").trim();
-                                resultStr = resultStr.replaceAll("^.*:/\\s*", "").trim();
-                                Log.d(TAG, "按行分割提取结果：" + resultStr);
-                                LogManager.getInstance(context).d(TAG, "按行分割提取结果：" + resultStr);
-                                break;
-                            }
-                        }
-                    }
-                    
-                    // 方式2：如果方式1失败，尝试查找数字值
-                    if (resultStr.isEmpty() || resultStr.equals("")) {
-                        // 查找所有数字值
-                        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("\\d+");
-                        java.util.regex.Matcher matcher = pattern.matcher(originalResult);
-                        if (matcher.find()) {
-                            resultStr = matcher.group();
-                            Log.d(TAG, "查找数字值提取结果：" + resultStr);
-                            LogManager.getInstance(context).d(TAG, "查找数字值提取结果：" + resultStr);
-                        }
-                    }
-                    
-                    // 方式3：如果方式1和方式2都失败，尝试使用原始结果的最后一个单词
-                    if (resultStr.isEmpty() || resultStr.equals("")) {
-                        String[] parts = originalResult.split("\\s+");
-                        if (parts.length > 0) {
-                            String lastPart = parts[parts.length - 1].trim();
-                            // 移除非数字字符
-                            String numericValue = lastPart.replaceAll("[^0-9]", "");
-                            if (!numericValue.isEmpty()) {
-                                resultStr = numericValue;
-                                Log.d(TAG, "使用最后一个单词提取结果：" + resultStr);
-                                LogManager.getInstance(context).d(TAG, "使用最后一个单词提取结果：" + resultStr);
-                            }
-                        }
-                    }
-                    
-                    // 方式4：如果方式1、2、3都失败，尝试直接查找不包含命令的行
-                    if (resultStr.isEmpty() || resultStr.equals("")) {
-                        for (int i = 0; i < lines.length; i++) {
-                            String line = lines[i].trim();
-                            if (!line.contains(command) && !line.contains("$ ") && !line.contains(":/") && !line.isEmpty()) {
-                                resultStr = line.trim();
-                                Log.d(TAG, "查找不包含命令的行提取结果：" + resultStr);
-                                LogManager.getInstance(context).d(TAG, "查找不包含命令的行提取结果：" + resultStr);
-                                break;
-                            }
-                        }
-                    }
-                } else {
-                    // 对于其他命令，使用更合理的处理逻辑
-                    // 移除可能包含的命令本身
-                    if (resultStr.startsWith(command)) {
-                        resultStr = resultStr.substring(command.length()).trim();
-                    }
-                    // 保留原始的多行格式，不要移除所有空白字符
-                    // 这样 parseAdbProcessOutput 方法可以正确处理多行输出
-                }
-                
-                // 关闭流
-                try {
-                    stream.close();
-                    Log.d(TAG, "流关闭成功");
-                    LogManager.getInstance(context).d(TAG, "流关闭成功");
-                } catch (Exception e) {
-                    Log.e(TAG, "关闭流失败：" + e.getMessage(), e);
-                    LogManager.getInstance(context).e(TAG, "关闭流失败：" + e.getMessage());
-                }
-                
-                // 如果这次尝试成功获取到结果，返回结果
-                // 对于pm grant命令，执行成功时通常返回空字符串，也应该认为是成功
-                // 对于pm check-permission命令，需要特殊处理以确保正确返回结果
-                // 对于nohup命令，执行成功时通常返回空字符串或只包含进程ID的结果，也应该认为是成功
-                if ((resultStr != null && !resultStr.isEmpty()) || command.startsWith("pm grant") || command.startsWith("pm check-permission") || command.startsWith("nohup")) {
-                    Log.d(TAG, "ADB命令执行结果（尝试" + attempt + "）：" + resultStr);
-                    LogManager.getInstance(context).d(TAG, "ADB命令执行结果（尝试" + attempt + "）：" + resultStr);
-                    return resultStr;
-                } else {
-                    Log.d(TAG, "ADB命令执行无结果");
-                    LogManager.getInstance(context).d(TAG, "ADB命令执行无结果");
+                if (result == null) {
+                    result = executeInStream(lease.getConnection(), command);
                 }
 
+                Log.d(TAG, "命令执行结果：退出码=" + result.getExitCode() + "，输出：" + result.getStdout());
+                LogManager.getInstance(context).d(TAG, "命令执行结果：退出码=" + result.getExitCode() + "，输出：" + result.getStdout());
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
             } catch (Exception e) {
                 Log.e(TAG, "执行命令失败：" + e.getMessage(), e);
                 LogManager.getInstance(context).e(TAG, "执行命令失败：" + e.getMessage());
-                // 继续下一次尝试
-                continue;
+                // 连接可能已损坏，不再放回连接池
+                lease.invalidate();
             } finally {
-                // 确保流被关闭
-                try {
-                    if (stream != null) {
-                        stream.close();
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "关闭流失败：" + e.getMessage(), e);
-                    LogManager.getInstance(context).e(TAG, "关闭流失败：" + e.getMessage());
-                }
+                lease.close();
             }
         }
-        
-        // 所有尝试都失败
+
         Log.e(TAG, "所有尝试都失败，无法执行命令：" + command);
         LogManager.getInstance(context).e(TAG, "所有尝试都失败，无法执行命令：" + command);
         return null;
     }
 
     /**
-     * 执行命令并返回连接到池
+     * 打开新的流执行一条命令，命令退出后adbd关闭流
+     * @param connection 使用的连接
      * @param command 要执行的命令
      * @return 命令执行结果
+     * @throws Exception
      */
-    public synchronized String executeCommandWithPooling(String command) {
+    private AdbShellResult executeInStream(AdbConnection connection, String command) throws Exception {
+        if (connection.isShellV2Supported()) {
+            return connection.shell(command, COMMAND_TIMEOUT);
+        }
+
+        Log.d(TAG, "设备不支持shell_v2，通过shell执行命令：" + command);
+        LogManager.getInstance(context).d(TAG, "设备不支持shell_v2，通过shell执行命令：" + command);
+        // 换行分隔，命令以&结尾时也能追加标记
+        AdbStream stream = connection.open("shell:" + command + "\necho " + EXIT_MARKER + "$?");
         try {
-            return executeCommand(command);
+            CommandOutput output = readUntilClosed(stream, COMMAND_TIMEOUT);
+            if (!output.completed) {
+                Log.d(TAG, "读取命令输出超时（" + COMMAND_TIMEOUT + "毫秒），使用已读取的部分");
+                LogManager.getInstance(context).d(TAG, "读取命令输出超时（" + COMMAND_TIMEOUT + "毫秒），使用已读取的部分");
+            }
+            return parseMarkedOutput(output.text);
         } finally {
-            // 命令执行完成后，将连接返回连接池
-            returnToPool();
+            stream.close();
         }
     }
 
+    /**
+     * 设置是否通过持久shell会话执行命令，关闭后每条命令打开新的shell流
+     * @param enabled 是否启用
+     */
+    public void setShellSessionEnabled(boolean enabled) {
+        shellSessionEnabled = enabled;
+    }
 
-
-    private AdbCrypto loadOrGenerateCrypto() throws NoSuchAlgorithmException {
-        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        String privateKeyStr = prefs.getString(KEY_PRIVATE_KEY, null);
-        String publicKeyStr = prefs.getString(KEY_PUBLIC_KEY, null);
-
-        if (privateKeyStr != null && publicKeyStr != null) {
-            try {
-                // 加载已保存的密钥
-                byte[] privateKey = Base64.decode(privateKeyStr, Base64.NO_WRAP);
-                byte[] publicKey = Base64.decode(publicKeyStr, Base64.NO_WRAP);
-                
-                // 创建临时文件来保存密钥
-                File privateKeyFile = File.createTempFile("private", ".key", context.getCacheDir());
-                File publicKeyFile = File.createTempFile("public", ".key", context.getCacheDir());
-                
-                // 写入密钥数据
-                FileOutputStream privateOut = new FileOutputStream(privateKeyFile);
-                FileOutputStream publicOut = new FileOutputStream(publicKeyFile);
-                privateOut.write(privateKey);
-                publicOut.write(publicKey);
-                privateOut.close();
-                publicOut.close();
-                
-                // 加载密钥
-                AdbCrypto crypto = AdbCrypto.loadAdbKeyPair(new AdbBase64() {
-                    @Override
-                    public String encodeToString(byte[] bytes) {
-                        return Base64.encodeToString(bytes, Base64.NO_WRAP);
-                    }
-                }, privateKeyFile, publicKeyFile);
-                
-                // 删除临时文件
-                privateKeyFile.delete();
-                publicKeyFile.delete();
-                
-                Log.d(TAG, "成功加载已保存的RSA密钥");
-                LogManager.getInstance(context).d(TAG, "成功加载已保存的RSA密钥");
-                return crypto;
-            } catch (Exception e) {
-                Log.e(TAG, "加载密钥失败，将生成新密钥：" + e.getMessage(), e);
-                LogManager.getInstance(context).e(TAG, "加载密钥失败，将生成新密钥：" + e.getMessage());
-                // 加载失败，生成新密钥
-                return generateAndSaveCrypto();
+    /**
+     * 通过sync服务推送本地文件到设备，保留修改时间，父目录不存在时由adbd创建
+     * 文件按64KB的DATA块连续发送，不经过shell
+     * @param localFile 本地文件
+     * @param remotePath 设备上的目标路径
+     * @param mode 目标文件权限，例如0755
+     * @return 是否推送成功
+     */
+    public boolean pushFile(File localFile, String remotePath, int mode) {
+        try (AdbConnectionPool.Lease lease = pool.lease(LEASE_TIMEOUT)) {
+            long start = System.currentTimeMillis();
+            try (AdbSyncClient sync = lease.getConnection().openSync()) {
+                long bytes = sync.push(localFile, remotePath, mode);
+                long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                Log.d(TAG, "推送文件完成：" + remotePath + "，" + bytes + "字节，耗时" + elapsed + "毫秒");
+                LogManager.getInstance(context).d(TAG, "推送文件完成：" + remotePath + "，" + bytes + "字节，耗时" + elapsed + "毫秒");
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "推送文件失败：" + remotePath + "，" + e.getMessage(), e);
+                LogManager.getInstance(context).e(TAG, "推送文件失败：" + remotePath + "，" + e.getMessage());
+                // 设备拒绝写入时连接仍可用，只有连接出错时才不再放回连接池
+                if (!lease.getConnection().isFine()) {
+                    lease.invalidate();
+                }
+                return false;
             }
-        } else {
-            // 没有保存的密钥，生成新密钥
-            return generateAndSaveCrypto();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            Log.e(TAG, "ADB未连接，无法推送文件：" + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "ADB未连接，无法推送文件：" + e.getMessage());
+            return false;
         }
     }
 
-    private AdbCrypto generateAndSaveCrypto() throws NoSuchAlgorithmException {
-        // 生成新的密钥对
-        final AdbBase64 base64 = new AdbBase64() {
-            @Override
-            public String encodeToString(byte[] bytes) {
-                return Base64.encodeToString(bytes, Base64.NO_WRAP);
+    /**
+     * 通过sync服务从设备拉取文件到本地
+     * @param remotePath 设备上的文件路径
+     * @param localFile 本地目标文件，已存在时覆盖
+     * @return 是否拉取成功
+     */
+    public boolean pullFile(String remotePath, File localFile) {
+        try (AdbConnectionPool.Lease lease = pool.lease(LEASE_TIMEOUT)) {
+            try (AdbSyncClient sync = lease.getConnection().openSync()) {
+                long bytes = sync.pull(remotePath, localFile);
+                Log.d(TAG, "拉取文件完成：" + remotePath + "，" + bytes + "字节");
+                LogManager.getInstance(context).d(TAG, "拉取文件完成：" + remotePath + "，" + bytes + "字节");
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "拉取文件失败：" + remotePath + "，" + e.getMessage(), e);
+                LogManager.getInstance(context).e(TAG, "拉取文件失败：" + remotePath + "，" + e.getMessage());
+                if (!lease.getConnection().isFine()) {
+                    lease.invalidate();
+                }
+                return false;
             }
-        };
-        
-        AdbCrypto crypto = AdbCrypto.generateAdbKeyPair(base64);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            Log.e(TAG, "ADB未连接，无法拉取文件：" + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "ADB未连接，无法拉取文件：" + e.getMessage());
+            return false;
+        }
+    }
 
-        // 保存密钥
-        try {
-            // 创建临时文件来保存密钥
-            File privateKeyFile = File.createTempFile("private", ".key", context.getCacheDir());
-            File publicKeyFile = File.createTempFile("public", ".key", context.getCacheDir());
-            
-            // 保存密钥到临时文件
-            crypto.saveAdbKeyPair(privateKeyFile, publicKeyFile);
-            
-            // 读取密钥数据
-            byte[] privateKey = new byte[(int) privateKeyFile.length()];
-            byte[] publicKey = new byte[(int) publicKeyFile.length()];
-            FileInputStream privateIn = new FileInputStream(privateKeyFile);
-            FileInputStream publicIn = new FileInputStream(publicKeyFile);
-            privateIn.read(privateKey);
-            publicIn.read(publicKey);
-            privateIn.close();
-            publicIn.close();
-            
-            // 编码并保存到SharedPreferences
-            SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putString(KEY_PRIVATE_KEY, Base64.encodeToString(privateKey, Base64.NO_WRAP));
-            editor.putString(KEY_PUBLIC_KEY, Base64.encodeToString(publicKey, Base64.NO_WRAP));
-            editor.apply();
-            
-            // 删除临时文件
-            privateKeyFile.delete();
-            publicKeyFile.delete();
-            
-            Log.d(TAG, "成功生成并保存新的RSA密钥");
-            LogManager.getInstance(context).d(TAG, "成功生成并保存新的RSA密钥");
+    /**
+     * 通过sync服务查询设备上文件的属性
+     * @param remotePath 设备上的路径
+     * @return 文件属性，查询失败时返回null；文件不存在时exists()为false
+     */
+    public AdbSyncClient.FileStat statFile(String remotePath) {
+        try (AdbConnectionPool.Lease lease = pool.lease(LEASE_TIMEOUT);
+             AdbSyncClient sync = lease.getConnection().openSync()) {
+            return sync.stat(remotePath);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         } catch (Exception e) {
-            Log.e(TAG, "保存密钥失败：" + e.getMessage(), e);
-            LogManager.getInstance(context).e(TAG, "保存密钥失败：" + e.getMessage());
-            // 保存失败不影响使用，只是下次需要重新授权
+            Log.e(TAG, "查询文件属性失败：" + remotePath + "，" + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "查询文件属性失败：" + remotePath + "，" + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 通过租用连接上的shell会话执行命令
+     * @param lease 连接租约
+     * @param command 要执行的命令
+     * @return 命令执行结果，会话无法使用时返回null
+     */
+    private AdbShellResult executeInSession(AdbConnectionPool.Lease lease, String command) throws InterruptedException {
+        try {
+            Log.d(TAG, "通过shell会话执行命令：" + command);
+            LogManager.getInstance(context).d(TAG, "通过shell会话执行命令：" + command);
+            return lease.getShellSession().execute(command, COMMAND_TIMEOUT);
+        } catch (IOException e) {
+            Log.e(TAG, "shell会话不可用：" + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "shell会话不可用：" + e.getMessage());
+            lease.resetShellSession();
+            return null;
         }
+    }
 
-        return crypto;
+    /**
+     * 合并标准输出和标准错误，与PTY下的输出内容一致
+     */
+    private static String mergeOutput(AdbShellResult result) {
+        String output = result.getStdout();
+        if (!result.getStderr().isEmpty()) {
+            output = output + result.getStderr();
+        }
+        return output.trim();
     }
 
-    public synchronized void disconnect() {
+    /**
+     * 从带退出码标记的输出中分离命令输出和退出码
+     * @param text shell:服务的输出
+     * @return 命令执行结果，没有标记时退出码未知
+     */
+    private static AdbShellResult parseMarkedOutput(String text) {
+        int index = text.lastIndexOf(EXIT_MARKER);
+        if (index < 0) {
+            return new AdbShellResult(AdbShellResult.EXIT_UNKNOWN, text, "");
+        }
+
+        int exitCode = AdbShellResult.EXIT_UNKNOWN;
         try {
-            // 停止连接检查定时器
-            stopConnectionChecks();
-            
-            // 关闭当前连接
-            if (connection != null) {
-                connection.close();
+            exitCode = Integer.parseInt(text.substring(index + EXIT_MARKER.length()).trim());
+        } catch (NumberFormatException e) {
+            // 标记不完整，退出码未知
+        }
+        return new AdbShellResult(exitCode, text.substring(0, index), "");
+    }
+
+    /**
+     * 命令输出及命令是否已执行完成
+     */
+    private static final class CommandOutput {
+        final String text;
+        final boolean completed;
+
+        CommandOutput(String text, boolean completed) {
+            this.text = text;
+            this.completed = completed;
+        }
+    }
+
+    /**
+     * 读取shell:<命令>流的全部输出，直到adbd在命令退出后关闭流，或超时
+     * @param stream 以shell:<命令>打开的流
+     * @param timeoutMillis 最长等待时间
+     * @return 命令输出，completed表示是否读到了流结束
+     * @throws IOException
+     */
+    private static CommandOutput readUntilClosed(AdbStream stream, long timeoutMillis) throws IOException {
+        ByteQueueInputStream inputStream = stream.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean completed = false;
+
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            int bytesRead = inputStream.read(buffer, 0, buffer.length, remaining);
+            if (bytesRead < 0) {
+                completed = true;
+                break;
             }
-            
-            // 清空连接池
-            while (!connectionPool.isEmpty()) {
-                AdbConnection pooledConnection = connectionPool.poll();
-                try {
-                    if (pooledConnection != null) {
-                        pooledConnection.close();
-                    }
-                } catch (Exception e) {
-                    Log.d(TAG, "关闭池连接时出错：" + e.getMessage());
-                    LogManager.getInstance(context).d(TAG, "关闭池连接时出错：" + e.getMessage());
-                }
+            out.write(buffer, 0, bytesRead);
+        }
+
+        return new CommandOutput(out.toString("UTF-8"), completed);
+    }
+
+    /**
+     * 在租用的连接上执行echo命令，检查连接是否可用
+     * 优先在连接的shell会话中执行，不再新建shell
+     * @param lease 连接租约
+     * @return 命令是否按时返回了输出
+     */
+    private boolean probeConnection(AdbConnectionPool.Lease lease) {
+        try {
+            if (shellSessionEnabled) {
+                AdbShellResult result = lease.getShellSession().execute("echo test", PROBE_TIMEOUT);
+                return !result.getStdout().isEmpty();
             }
-            
-            // 释放所有信号量
-            while (poolSemaphore.availablePermits() < MAX_POOL_SIZE) {
-                poolSemaphore.release();
+
+            AdbStream stream = lease.getConnection().open("shell:echo test");
+            try {
+                return !readUntilClosed(stream, PROBE_TIMEOUT).text.isEmpty();
+            } finally {
+                stream.close();
             }
-        } catch (IOException e) {
-            Log.e(TAG, "ADB断开连接失败：" + e.getMessage(), e);
-            LogManager.getInstance(context).e(TAG, "ADB断开连接失败：" + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         } catch (Exception e) {
-            Log.e(TAG, "断开连接时出现异常：" + e.getMessage(), e);
-            LogManager.getInstance(context).e(TAG, "断开连接时出现异常：" + e.getMessage());
-        } finally {
-            connection = null;
-            connected = false;
-            Log.d(TAG, "ADB连接已断开");
-            LogManager.getInstance(context).d(TAG, "ADB连接已断开");
+            Log.e(TAG, "验证ADB连接失败：" + e.getMessage(), e);
+            LogManager.getInstance(context).e(TAG, "验证ADB连接失败：" + e.getMessage());
+            return false;
         }
     }
 
-    public synchronized boolean isConnected() {
-        return connected && connection != null;
+    /**
+     * 断开所有连接，已借出的连接在归还时关闭
+     */
+    public void disconnect() {
+        // 关闭连接池中的连接
+        pool.evictAll();
+        Log.d(TAG, "ADB连接已断开");
+        LogManager.getInstance(context).d(TAG, "ADB连接已断开");
+    }
+
+    public boolean isConnected() {
+        return pool.hasLiveConnection();
     }
 
     /**
      * 验证ADB连接是否仍然有效
      * @return 连接是否有效
      */
-    public synchronized boolean isConnectionValid() {
-        if (!connected || connection == null) {
+    public boolean isConnectionValid() {
+        if (!pool.hasLiveConnection()) {
             return false;
         }
-        
-        try {
-            // 通过执行一个简单的命令来验证连接是否有效
-            AdbStream stream = connection.open("shell:");
-            byte[] commandBytes = ("echo test\n").getBytes("UTF-8");
-            stream.write(commandBytes);
-            
-            // 等待一小段时间
-            Thread.sleep(500);
-            
-            // 读取响应
-            InputStream inputStream = stream.getInputStream();
-            byte[] buffer = new byte[1024];
-            int bytesRead = inputStream.read(buffer);
-            
-            // 关闭流
-            stream.close();
-            
-            return bytesRead > 0;
+
+        try (AdbConnectionPool.Lease lease = pool.lease(LEASE_TIMEOUT)) {
+            // 通过执行一个简单的命令来验证连接是否有效，命令退出即返回
+            if (probeConnection(lease)) {
+                return true;
+            }
+            // 连接无效，不再放回连接池
+            lease.invalidate();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         } catch (Exception e) {
             Log.e(TAG, "验证ADB连接失败：" + e.getMessage(), e);
             LogManager.getInstance(context).e(TAG, "验证ADB连接失败：" + e.getMessage());
-            // 连接无效，设置为断开状态
-            connected = false;
-            connection = null;
             return false;
         }
     }
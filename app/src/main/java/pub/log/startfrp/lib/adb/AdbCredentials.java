@@ -0,0 +1,138 @@
+package pub.log.startfrp.lib.adb;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+
+import pub.log.startfrp.LogManager;
+import pub.log.startfrp.adblib.AdbBase64;
+import pub.log.startfrp.adblib.AdbCrypto;
+
+/**
+ * ADB认证密钥缓存类
+ * 进程内只加载一次保存的RSA密钥，所有连接器共享同一个AdbCrypto，
+ * 公钥的ADB格式和签名用的Cipher由AdbCrypto缓存
+ * 首次安装时在应用启动的后台线程中生成2048位密钥，避免开机后第一次连接时才生成
+ * @author BY YYX
+ */
+public class AdbCredentials {
+    private static final String TAG = "AdbCredentials";
+    private static final String PREF_NAME = "adb_connector_prefs";
+    private static final String KEY_PRIVATE_KEY = "private_key";
+    private static final String KEY_PUBLIC_KEY = "public_key";
+
+    private static final AdbBase64 BASE64 = new AdbBase64() {
+        @Override
+        public String encodeToString(byte[] bytes) {
+            return Base64.encodeToString(bytes, Base64.NO_WRAP);
+        }
+    };
+
+    private static AdbCredentials instance;
+
+    private final Context context;
+    private final Object lock = new Object();
+    private volatile AdbCrypto crypto;
+
+    private AdbCredentials(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized AdbCredentials getInstance(Context context) {
+        if (instance == null) {
+            instance = new AdbCredentials(context);
+        }
+        return instance;
+    }
+
+    /**
+     * 在后台线程中加载或生成密钥，已加载时直接返回
+     */
+    public void prepareAsync() {
+        if (crypto != null) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                get();
+            } catch (IOException e) {
+                Log.e(TAG, "预先准备RSA密钥失败：" + e.getMessage(), e);
+            }
+        }, "AdbCredentials");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 获取RSA密钥，尚未加载时加载或生成；后台正在生成时等待其完成
+     * @return 密钥
+     * @throws IOException 生成密钥失败
+     */
+    public AdbCrypto get() throws IOException {
+        AdbCrypto current = crypto;
+        if (current != null) {
+            return current;
+        }
+        synchronized (lock) {
+            if (crypto == null) {
+                try {
+                    crypto = loadOrGenerate();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException("生成RSA密钥失败：" + e.getMessage(), e);
+                }
+            }
+            return crypto;
+        }
+    }
+
+    private AdbCrypto loadOrGenerate() throws NoSuchAlgorithmException {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        String privateKeyStr = prefs.getString(KEY_PRIVATE_KEY, null);
+        String publicKeyStr = prefs.getString(KEY_PUBLIC_KEY, null);
+
+        if (privateKeyStr != null && publicKeyStr != null) {
+            try {
+                // 直接从内存中的编码数据加载，不再经过临时文件
+                byte[] privateKey = Base64.decode(privateKeyStr, Base64.NO_WRAP);
+                byte[] publicKey = Base64.decode(publicKeyStr, Base64.NO_WRAP);
+                AdbCrypto loaded = AdbCrypto.loadAdbKeyPair(BASE64, privateKey, publicKey);
+
+                Log.d(TAG, "成功加载已保存的RSA密钥");
+                LogManager.getInstance(context).d(TAG, "成功加载已保存的RSA密钥");
+                return loaded;
+            } catch (Exception e) {
+                Log.e(TAG, "加载密钥失败，将生成新密钥：" + e.getMessage(), e);
+                LogManager.getInstance(context).e(TAG, "加载密钥失败，将生成新密钥：" + e.getMessage());
+            }
+        }
+
+        return generateAndSave();
+    }
+
+    private AdbCrypto generateAndSave() throws NoSuchAlgorithmException {
+        long start = System.currentTimeMillis();
+        AdbCrypto generated = AdbCrypto.generateAdbKeyPair(BASE64);
+        long elapsed = System.currentTimeMillis() - start;
+
+        // 保存失败不影响使用，只是下次需要重新授权
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        boolean saved = prefs.edit()
+                .putString(KEY_PRIVATE_KEY, Base64.encodeToString(generated.getEncodedPrivateKey(), Base64.NO_WRAP))
+                .putString(KEY_PUBLIC_KEY, Base64.encodeToString(generated.getEncodedPublicKey(), Base64.NO_WRAP))
+                .commit();
+
+        if (saved) {
+            Log.d(TAG, "成功生成并保存新的RSA密钥，耗时" + elapsed + "毫秒");
+            LogManager.getInstance(context).d(TAG, "成功生成并保存新的RSA密钥，耗时" + elapsed + "毫秒");
+        } else {
+            Log.e(TAG, "保存密钥失败");
+            LogManager.getInstance(context).e(TAG, "保存密钥失败");
+        }
+        return generated;
+    }
+}
@@ -4,11 +4,15 @@ import android.content.Context;
 import android.provider.Settings;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 import pub.log.startfrp.LogManager;
+import pub.log.startfrp.adblib.AdbShellResult;
+import pub.log.startfrp.adblib.AdbSyncClient;
 
 /**
  * ADB管理器类
@@ -20,6 +24,7 @@ public class AdbManager {
     private static final String TAG = "AdbManager";
     private static final String SETTING_ADB_ENABLED = "adb_enabled";
     private static final String SETTING_ADB_WIFI_ENABLED = "adb_wifi_enabled";
+    private static final long MAIN_THREAD_CONNECT_TIMEOUT = 5000; // 主线程上最多等待5秒
 
     private static AdbManager instance;
     private final Context context;
@@ -153,74 +158,54 @@ public class AdbManager {
         }
     }
 
+    /**
+     * 连接ADB服务器，并发调用共享同一次连接尝试
+     * adbd拒绝连接时立即失败；连接在重连线程上建立，主线程上调用也不会执行网络操作，但最多只等待5秒
+     * @return 是否连接成功
+     */
     public boolean connect() {
         String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
         String logMessage = timestamp + " 开始连接ADB服务器...";
         Log.i(TAG, "开始连接ADB服务器");
         LogManager.getInstance(context).i(TAG, "开始连接ADB服务器");
         sendAdbLog(logMessage);
-        
-        // 由于这是同步方法，我们不能直接在主线程上执行网络操作
-        // 但为了保持兼容性，我们仍然尝试执行
-        try {
-            // 检查是否在主线程
-            if (Thread.currentThread().getName().equals("main")) {
-                Log.w(TAG, "警告：在主线程上执行ADB连接操作，可能会导致NetworkOnMainThreadException");
-                LogManager.getInstance(context).w(TAG, "警告：在主线程上执行ADB连接操作，可能会导致NetworkOnMainThreadException");
-                // 尝试在后台线程上执行
-                final boolean[] result = new boolean[1];
-                final Object lock = new Object();
-                
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (lock) {
-                            result[0] = connection.connect();
-                            lock.notify();
-                        }
-                    }
-                }).start();
-                
-                synchronized (lock) {
-                    lock.wait(5000); // 最多等待5秒
-                }
-                
-                if (result[0]) {
-                    timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    logMessage = timestamp + " ADB连接成功";
-                    LogManager.getInstance(context).i(TAG, "ADB连接成功");
-                    sendAdbLog(logMessage);
-                } else {
-                    timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    logMessage = timestamp + " ADB连接失败，请确保无线ADB已开启";
-                    LogManager.getInstance(context).e(TAG, "ADB连接失败，请确保无线ADB已开启");
-                    sendAdbLog(logMessage);
-                }
-                return result[0];
-            } else {
-                // 在非主线程上，直接执行
-                boolean success = connection.connect();
-                if (success) {
-                    timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    logMessage = timestamp + " ADB连接成功";
-                    LogManager.getInstance(context).i(TAG, "ADB连接成功");
-                    sendAdbLog(logMessage);
-                } else {
-                    timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-                    logMessage = timestamp + " ADB连接失败，请确保无线ADB已开启";
-                    LogManager.getInstance(context).e(TAG, "ADB连接失败，请确保无线ADB已开启");
-                    sendAdbLog(logMessage);
-                }
-                return success;
-            }
-        } catch (Exception e) {
-            timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-            logMessage = timestamp + " ADB连接异常：" + e.getMessage();
-            Log.e(TAG, "ADB连接异常：" + e.getMessage(), e);
-            LogManager.getInstance(context).e(TAG, "ADB连接异常：" + e.getMessage());
-            sendAdbLog(logMessage);
-            return false;
+
+        boolean success;
+        if (Thread.currentThread().getName().equals("main")) {
+            Log.w(TAG, "警告：在主线程上等待ADB连接，最多等待5秒");
+            LogManager.getInstance(context).w(TAG, "警告：在主线程上等待ADB连接，最多等待5秒");
+            success = connection.connect(MAIN_THREAD_CONNECT_TIMEOUT);
+        } else {
+            success = connection.connect();
+        }
+
+        timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
+        if (success) {
+            logMessage = timestamp + " ADB连接成功";
+            LogManager.getInstance(context).i(TAG, "ADB连接成功");
+        } else {
+            logMessage = timestamp + " ADB连接失败，请确保无线ADB已开启";
+            LogManager.getInstance(context).e(TAG, "ADB连接失败，请确保无线ADB已开启");
         }
+        sendAdbLog(logMessage);
+        return success;
+    }
+
+    /**
+     * 订阅ADB连接状态，不需要轮询connect()
+     * 未连接时在后台按带抖动的指数退避重连，连接成功时回调onConnected，直到取消订阅
+     * @param listener 订阅者，回调在重连线程上执行
+     */
+    public void addConnectionListener(AdbReconnectScheduler.Listener listener) {
+        connection.addConnectionListener(listener);
+    }
+
+    /**
+     * 取消订阅ADB连接状态，没有订阅者时停止后台重连
+     * @param listener 订阅者
+     */
+    public void removeConnectionListener(AdbReconnectScheduler.Listener listener) {
+        connection.removeConnectionListener(listener);
     }
 
     public void connect(final AdbCallback callback) {
@@ -262,7 +247,84 @@ public class AdbManager {
 
     public String executeCommand(String command) {
         Log.i(TAG, "执行ADB命令：" + command);
-        return connection.executeCommandWithPooling(command);
+        return connection.executeCommand(command);
+    }
+
+    /**
+     * 执行命令，结果包含退出码，标准输出和标准错误分开，不含回显和提示符
+     * @param command 要执行的命令
+     * @return 命令执行结果，失败时返回null
+     */
+    public AdbShellResult executeShell(String command) {
+        Log.i(TAG, "执行ADB命令：" + command);
+        return connection.executeShell(command);
+    }
+
+    /**
+     * 设置是否通过持久shell会话执行命令，默认启用
+     * @param enabled 是否启用
+     */
+    public void setShellSessionEnabled(boolean enabled) {
+        connection.setShellSessionEnabled(enabled);
+    }
+
+    /**
+     * 通过ADB sync服务推送文件到设备，不需要Shizuku或root
+     * @param localFile 本地文件
+     * @param remotePath 设备上的目标路径
+     * @param mode 目标文件权限，例如0755
+     * @return 是否推送成功
+     */
+    public boolean pushFile(File localFile, String remotePath, int mode) {
+        Log.i(TAG, "推送文件：" + localFile.getAbsolutePath() + " -> " + remotePath);
+        return connection.pushFile(localFile, remotePath, mode);
+    }
+
+    /**
+     * 通过ADB sync服务从设备拉取文件
+     * @param remotePath 设备上的文件路径
+     * @param localFile 本地目标文件
+     * @return 是否拉取成功
+     */
+    public boolean pullFile(String remotePath, File localFile) {
+        Log.i(TAG, "拉取文件：" + remotePath + " -> " + localFile.getAbsolutePath());
+        return connection.pullFile(remotePath, localFile);
+    }
+
+    /**
+     * 查询设备上文件的属性
+     * @param remotePath 设备上的路径
+     * @return 文件属性，查询失败时返回null
+     */
+    public AdbSyncClient.FileStat statFile(String remotePath) {
+        return connection.statFile(remotePath);
+    }
+
+    /**
+     * 借出一个ADB连接，可在其上打开流；用完后关闭租约归还
+     * 用法：try (AdbConnectionPool.Lease lease = adbManager.lease()) { ... }
+     * @return 连接租约
+     * @throws IOException 无法建立连接或等待超时
+     * @throws InterruptedException
+     */
+    public AdbConnectionPool.Lease lease() throws IOException, InterruptedException {
+        return connection.lease();
+    }
+
+    /**
+     * 获取ADB重连次数，用于监控连接稳定性
+     * @return 重连次数
+     */
+    public long getReconnectCount() {
+        return connection.getReconnectCount();
+    }
+
+    /**
+     * 获取连接池统计信息，包括等待次数和等待时间
+     * @return 统计信息快照
+     */
+    public AdbConnectionPool.Stats getPoolStats() {
+        return connection.getPoolStats();
     }
 
     public void executeCommand(final String command, final AdbCallback callback) {
@@ -271,7 +333,7 @@ public class AdbManager {
             public void run() {
                 try {
                     Log.i(TAG, "执行ADB命令：" + command);
-                    String result = connection.executeCommandWithPooling(command);
+                    String result = connection.executeCommand(command);
                     if (result != null && !result.isEmpty()) {
                         Log.d(TAG, "命令 " + command + " 执行结果: " + result);
                         callback.onSuccess(result);
@@ -294,7 +356,7 @@ public class AdbManager {
                 try {
                     String command = "pm grant " + packageName + " " + permission;
                     Log.i(TAG, "执行授权命令：" + command);
-                    String result = connection.executeCommandWithPooling(command);
+                    String result = connection.executeCommand(command);
                     if (result != null) {
                         Log.d(TAG, "授权命令执行结果: " + result);
                         callback.onSuccess("权限授权成功");
@@ -0,0 +1,413 @@
+package pub.log.startfrp.lib.adb;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ADB重连调度器，每个目标地址一个实例
+ * 同一时间只有一次连接尝试，并发的调用方共享它的结果，不会各自重试造成连接风暴
+ * 一次尝试内按带随机抖动的指数退避重试；连接被拒绝（ECONNREFUSED）说明adbd没有监听，立即失败
+ * 失败后进入退避期，退避期内的调用方直接得到上次的错误，不再发起连接
+ * 有订阅者时，失败或连接断开后在后台继续重连，连接成功时通知订阅者，调用方无需轮询
+ * @author BY YYX
+ */
+public class AdbReconnectScheduler {
+    private static final String TAG = "AdbReconnectScheduler";
+
+    /**
+     * 一次连接动作，成功返回即视为已连接
+     */
+    public interface ConnectAction {
+        void connect() throws IOException, InterruptedException;
+    }
+
+    /**
+     * 连接状态订阅者，在调度器线程上回调，不能在回调中等待连接
+     */
+    public interface Listener {
+        /**
+         * 从未连接状态变为已连接
+         */
+        void onConnected();
+
+        /**
+         * 一次连接尝试失败
+         * @param error 最后一次连接的错误
+         * @param consecutiveFailures 连续失败的尝试次数
+         * @param retryDelayMillis 距下次允许连接的时间
+         */
+        void onConnectFailed(IOException error, int consecutiveFailures, long retryDelayMillis);
+    }
+
+    private final String target;
+    private final ConnectAction action;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttemptsPerFlight;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Random random = new Random();
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final Object lock = new Object();
+
+    // 正在进行的连接尝试，null表示没有
+    private CompletableFuture<Void> flight;
+
+    // 有订阅者时安排的后台重连
+    private ScheduledFuture<?> scheduledRetry;
+
+    private int consecutiveFailures;
+    private long holdoffUntil;
+    private IOException lastError;
+    private boolean connected;
+
+    // 统计
+    private long flightCount;
+    private long attemptCount;
+    private long joinedCount;
+    private long fastFailCount;
+
+    /**
+     * @param target 目标地址，用于日志和线程名
+     * @param action 连接动作
+     * @param baseDelayMillis 首次退避时间
+     * @param maxDelayMillis 退避时间上限
+     * @param maxAttemptsPerFlight 一次尝试内最多连接几次，连接被拒绝时不再重试
+     */
+    public AdbReconnectScheduler(String target, ConnectAction action, long baseDelayMillis,
+                                 long maxDelayMillis, int maxAttemptsPerFlight) {
+        this.target = target;
+        this.action = action;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttemptsPerFlight = Math.max(1, maxAttemptsPerFlight);
+        this.executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "AdbReconnect-" + target);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * 请求连接：已有尝试时加入它，处于退避期时立即返回失败，否则在调度器线程上发起新的尝试
+     * @return 连接成功时完成，失败时以IOException异常完成
+     */
+    public CompletableFuture<Void> requestConnect() {
+        synchronized (lock) {
+            if (flight != null) {
+                joinedCount++;
+                return flight;
+            }
+            if (lastError != null && System.currentTimeMillis() < holdoffUntil) {
+                fastFailCount++;
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(lastError);
+                return failed;
+            }
+            return startFlight();
+        }
+    }
+
+    /**
+     * 等待连接成功
+     * @param timeoutMillis 最长等待时间；超时后连接尝试仍在后台继续，之后的调用方可加入
+     * @return 是否已连接
+     * @throws InterruptedException
+     */
+    public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+        try {
+            requestConnect().get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (TimeoutException e) {
+            Log.d(TAG, "等待连接" + target + "超时（" + timeoutMillis + "毫秒）");
+            return false;
+        }
+    }
+
+    /**
+     * 退避期内直接失败，供连接池新建连接前调用，避免adbd不可用时每次借用都去连接
+     * 正在进行的尝试自身建立连接时不受限制
+     * @throws ConnectException 处于退避期
+     */
+    public void checkHoldoff() throws ConnectException {
+        synchronized (lock) {
+            if (flight == null && lastError != null && System.currentTimeMillis() < holdoffUntil) {
+                fastFailCount++;
+                ConnectException e = new ConnectException("ADB连接处于退避期：" + lastError.getMessage());
+                e.initCause(lastError);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 在调度器之外建立了连接（例如连接池按需新建），清除退避状态
+     */
+    public void markConnected() {
+        boolean notify;
+        synchronized (lock) {
+            notify = !connected;
+            connected = true;
+            consecutiveFailures = 0;
+            holdoffUntil = 0;
+            lastError = null;
+            cancelScheduledRetry();
+        }
+        if (notify) {
+            notifyConnected();
+        }
+    }
+
+    /**
+     * 已经没有可用连接：有订阅者时立即在后台重连
+     */
+    public void markDisconnected() {
+        synchronized (lock) {
+            connected = false;
+            if (!listeners.isEmpty() && flight == null && scheduledRetry == null) {
+                Log.d(TAG, target + "连接断开，后台重连");
+                startFlight();
+            }
+        }
+    }
+
+    /**
+     * 订阅连接状态；未连接时立即在后台发起连接，失败后按退避时间继续重试，直到取消订阅
+     * @param listener 订阅者
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        synchronized (lock) {
+            if (!connected && flight == null && scheduledRetry == null) {
+                long delay = Math.max(0, holdoffUntil - System.currentTimeMillis());
+                scheduleRetry(delay);
+            }
+        }
+    }
+
+    /**
+     * 取消订阅，没有订阅者时停止后台重连
+     * @param listener 订阅者
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+        synchronized (lock) {
+            if (listeners.isEmpty()) {
+                cancelScheduledRetry();
+            }
+        }
+    }
+
+    /**
+     * 是否处于已连接状态
+     */
+    public boolean isConnected() {
+        synchronized (lock) {
+            return connected;
+        }
+    }
+
+    /**
+     * 获取最近一次连接失败的错误
+     * @return 错误，连接成功后为null
+     */
+    public IOException getLastError() {
+        synchronized (lock) {
+            return lastError;
+        }
+    }
+
+    /**
+     * 统计信息，用于日志
+     */
+    public String getStats() {
+        synchronized (lock) {
+            return "目标=" + target + "，尝试=" + flightCount + "，连接=" + attemptCount
+                    + "，共享尝试=" + joinedCount + "，退避期直接失败=" + fastFailCount
+                    + "，连续失败=" + consecutiveFailures;
+        }
+    }
+
+    /**
+     * 停止后台重连，正在等待的调用方以失败结束
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            cancelScheduledRetry();
+        }
+        executor.shutdownNow();
+    }
+
+    private CompletableFuture<Void> startFlight() {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        flight = future;
+        flightCount++;
+        cancelScheduledRetry();
+        try {
+            executor.execute(() -> runFlight(future));
+        } catch (RejectedExecutionException e) {
+            flight = null;
+            future.completeExceptionally(new IOException("重连调度器已停止"));
+        }
+        return future;
+    }
+
+    /**
+     * 在调度器线程上执行一次连接尝试
+     */
+    private void runFlight(CompletableFuture<Void> future) {
+        IOException error = null;
+
+        for (int attempt = 1; attempt <= maxAttemptsPerFlight; attempt++) {
+            synchronized (lock) {
+                attemptCount++;
+            }
+            try {
+                action.connect();
+                onFlightSucceeded(future);
+                return;
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("连接被中断");
+                break;
+            } catch (IOException e) {
+                error = e;
+                if (isRefused(e)) {
+                    // adbd没有监听，重试没有意义
+                    Log.d(TAG, target + "拒绝连接，立即失败：" + e.getMessage());
+                    break;
+                }
+                if (attempt == maxAttemptsPerFlight) {
+                    break;
+                }
+                long delay = backoffDelay(attempt);
+                Log.d(TAG, target + "连接失败（第" + attempt + "次），" + delay + "毫秒后重试：" + e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+
+        onFlightFailed(future, error);
+    }
+
+    private void onFlightSucceeded(CompletableFuture<Void> future) {
+        boolean notify;
+        synchronized (lock) {
+            flight = null;
+            notify = !connected;
+            connected = true;
+            consecutiveFailures = 0;
+            holdoffUntil = 0;
+            lastError = null;
+        }
+        Log.d(TAG, target + "连接成功");
+        future.complete(null);
+        if (notify) {
+            notifyConnected();
+        }
+    }
+
+    private void onFlightFailed(CompletableFuture<Void> future, IOException error) {
+        int failures;
+        long delay;
+        synchronized (lock) {
+            flight = null;
+            connected = false;
+            failures = ++consecutiveFailures;
+            delay = backoffDelay(failures);
+            holdoffUntil = System.currentTimeMillis() + delay;
+            lastError = error;
+            if (!listeners.isEmpty()) {
+                scheduleRetry(delay);
+            }
+        }
+        Log.d(TAG, target + "连接失败，连续" + failures + "次，" + delay + "毫秒内不再连接：" + error.getMessage());
+        future.completeExceptionally(error);
+        for (Listener listener : listeners) {
+            try {
+                listener.onConnectFailed(error, failures, delay);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "连接失败回调出错：" + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void notifyConnected() {
+        for (Listener listener : listeners) {
+            try {
+                listener.onConnected();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "连接成功回调出错：" + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 安排后台重连，调用时需持有lock
+     */
+    private void scheduleRetry(long delayMillis) {
+        cancelScheduledRetry();
+        try {
+            scheduledRetry = executor.schedule(() -> {
+                synchronized (lock) {
+                    scheduledRetry = null;
+                    // 到期时退避期已过，不经过requestConnect的退避检查
+                    if (flight == null && !connected && !listeners.isEmpty()) {
+                        startFlight();
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            scheduledRetry = null;
+        }
+    }
+
+    private void cancelScheduledRetry() {
+        if (scheduledRetry != null) {
+            scheduledRetry.cancel(false);
+            scheduledRetry = null;
+        }
+    }
+
+    /**
+     * 第n次失败后的退避时间：指数增长到上限，取其一半加上随机的另一半，错开各调用方的重试
+     */
+    private long backoffDelay(int failures) {
+        int shift = Math.min(failures - 1, 20);
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        long half = delay / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    /**
+     * 连接被拒绝：对端端口没有监听
+     */
+    static boolean isRefused(IOException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,237 @@
+package pub.log.startfrp.lib.adb;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import pub.log.startfrp.adblib.AdbConnection;
+import pub.log.startfrp.adblib.AdbShellResult;
+import pub.log.startfrp.adblib.AdbShellStream;
+import pub.log.startfrp.adblib.AdbStream;
+
+/**
+ * 持久shell会话
+ * 在一个ADB流上依次执行多条命令，省去每条命令的OPEN往返和adbd新建shell进程
+ * 每条命令后输出带序号和退出码的哨兵行，以此划分各条命令的输出
+ * 流断开后，下次执行命令时自动重建会话
+ * @author BY YYX
+ */
+public class AdbShellSession implements Closeable {
+    private static final String TAG = "AdbShellSession";
+
+    private final AdbConnection connection;
+
+    // 哨兵前缀，每个会话随机生成，避免与命令输出冲突
+    private final String sentinel;
+
+    // 设备支持shell_v2时使用，stdout和stderr分开
+    private AdbShellStream shellStream;
+
+    // 设备不支持shell_v2时使用，stderr合并到stdout
+    private AdbStream rawStream;
+
+    private long sequence;
+
+    // 按ISO-8859-1逐字节保存的输出，便于查找哨兵，返回前再按UTF-8解码
+    private final StringBuilder stdout = new StringBuilder();
+    private final StringBuilder stderr = new StringBuilder();
+
+    private final byte[] readBuffer = new byte[8192];
+
+    public AdbShellSession(AdbConnection connection) {
+        this.connection = connection;
+        this.sentinel = "__STARTFRP_" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE) + "__";
+    }
+
+    /**
+     * 获取会话所在的连接
+     * @return ADB连接
+     */
+    public AdbConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * 会话流是否处于打开状态
+     * @return 是否打开
+     */
+    public synchronized boolean isOpen() {
+        if (shellStream != null) {
+            return !shellStream.isClosed();
+        }
+        return rawStream != null && !rawStream.isClosed();
+    }
+
+    /**
+     * 在会话中执行一条命令
+     * 命令在子shell中执行，cd、export等不会影响之后的命令；标准输入为/dev/null
+     * 超时或流断开时关闭会话，返回已读取的输出，退出码未知
+     * @param command 要执行的命令
+     * @param timeoutMillis 最长等待时间
+     * @return 命令执行结果
+     * @throws IOException 无法打开会话或发送命令时抛出
+     * @throws InterruptedException
+     */
+    public synchronized AdbShellResult execute(String command, long timeoutMillis) throws IOException, InterruptedException {
+        long seq = ++sequence;
+        boolean v2 = false;
+
+        // 会话可能已被对端关闭，发送失败时重建一次
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ensureOpen();
+                v2 = shellStream != null;
+                send(buildScript(command, seq, v2));
+                break;
+            } catch (IOException e) {
+                close();
+                if (attempt == 2) {
+                    throw e;
+                }
+                Log.d(TAG, "会话已断开，重建会话：" + e.getMessage());
+            }
+        }
+
+        stdout.setLength(0);
+        stderr.setLength(0);
+        String stdoutMarker = "\n" + sentinel + " " + seq + " ";
+        String stderrMarker = "\n" + sentinel + " " + seq + "\n";
+        int stdoutEnd = -1;
+        int stderrEnd = v2 ? -1 : 0;
+        int exitCode = AdbShellResult.EXIT_UNKNOWN;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (stdoutEnd < 0 || stderrEnd < 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.d(TAG, "命令执行超时，关闭会话：" + command);
+                    close();
+                    break;
+                }
+
+                if (v2) {
+                    AdbShellStream.Packet packet = shellStream.readPacket(remaining);
+                    if (packet == null) {
+                        continue;
+                    }
+                    if (packet.id == AdbShellStream.ID_STDOUT) {
+                        stdout.append(new String(packet.data, StandardCharsets.ISO_8859_1));
+                    } else if (packet.id == AdbShellStream.ID_STDERR) {
+                        stderr.append(new String(packet.data, StandardCharsets.ISO_8859_1));
+                    } else if (packet.id == AdbShellStream.ID_EXIT) {
+                        // 会话的shell本身退出了
+                        throw new EOFException("Shell session exited");
+                    }
+                } else {
+                    int read = rawStream.getInputStream().read(readBuffer, 0, readBuffer.length, remaining);
+                    if (read < 0) {
+                        throw new EOFException("Shell session closed");
+                    }
+                    stdout.append(new String(readBuffer, 0, read, StandardCharsets.ISO_8859_1));
+                }
+
+                if (stdoutEnd < 0) {
+                    int index = stdout.indexOf(stdoutMarker);
+                    int lineEnd = index < 0 ? -1 : stdout.indexOf("\n", index + stdoutMarker.length());
+                    if (lineEnd >= 0) {
+                        stdoutEnd = index;
+                        try {
+                            exitCode = Integer.parseInt(stdout.substring(index + stdoutMarker.length(), lineEnd).trim());
+                        } catch (NumberFormatException e) {
+                            // 退出码不完整，视为未知
+                        }
+                    }
+                }
+                if (stderrEnd < 0) {
+                    stderrEnd = stderr.indexOf(stderrMarker);
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "会话在命令执行中断开：" + e.getMessage());
+            close();
+        }
+
+        return new AdbShellResult(exitCode,
+                decode(stdout, stdoutEnd),
+                decode(stderr, v2 ? stderrEnd : 0));
+    }
+
+    /**
+     * 打开会话流，已打开时直接返回
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void ensureOpen() throws IOException, InterruptedException {
+        if (isOpen()) {
+            return;
+        }
+        close();
+
+        if (connection.isShellV2Supported()) {
+            // 空命令时adbd启动一个从标准输入读取命令的shell
+            shellStream = connection.openShell("");
+        } else {
+            // 非空命令不分配PTY，没有回显和提示符
+            rawStream = connection.open("shell:sh");
+            rawStream.write(("exec 2>&1\n").getBytes(StandardCharsets.UTF_8));
+        }
+        Log.d(TAG, "shell会话已打开，shell_v2：" + (shellStream != null));
+    }
+
+    /**
+     * 生成一条命令的脚本：子shell中执行命令，随后输出哨兵行
+     * 哨兵前多输出一个换行，确保命令输出末尾没有换行时哨兵仍独占一行
+     */
+    private String buildScript(String command, long seq, boolean v2) {
+        StringBuilder script = new StringBuilder();
+        script.append("(\n").append(command).append("\n) </dev/null; ");
+        script.append("printf '\\n%s %d %d\\n' '").append(sentinel).append("' ").append(seq).append(" $?");
+        if (v2) {
+            script.append("; printf '\\n%s %d\\n' '").append(sentinel).append("' ").append(seq).append(" >&2");
+        }
+        script.append('\n');
+        return script.toString();
+    }
+
+    private void send(String script) throws IOException, InterruptedException {
+        byte[] data = script.getBytes(StandardCharsets.UTF_8);
+        if (shellStream != null) {
+            shellStream.writeStdin(data);
+        } else {
+            rawStream.write(data);
+        }
+    }
+
+    /**
+     * 取哨兵之前的输出，按UTF-8解码；未找到哨兵时返回全部已读输出
+     */
+    private static String decode(StringBuilder buffer, int end) {
+        String text = end >= 0 ? buffer.substring(0, end) : buffer.toString();
+        return new String(text.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 关闭会话流，会话的shell随之退出
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            if (shellStream != null) {
+                shellStream.close();
+            }
+            if (rawStream != null) {
+                rawStream.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "关闭shell会话时出错：" + e.getMessage());
+        } finally {
+            shellStream = null;
+            rawStream = null;
+        }
+    }
+}
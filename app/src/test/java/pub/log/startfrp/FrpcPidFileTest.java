@@ -0,0 +1,57 @@
+package pub.log.startfrp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import pub.log.startfrp.adblib.AdbShellResult;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * FrpcPidFile对ADB检查结果和stat内容的解析测试
+ */
+public class FrpcPidFileTest {
+    private static final String STAT = "1234 (libfrpc.so) S 1 1234 1234 0 -1 4194560 100 0 0 0 5 3 0 0 20 0 8 0 987654 0 0";
+
+    @Test
+    public void adbTimeoutIsUnknownNotDead() {
+        /* 超时或连接断开时没有退出码，不能删除记录并重启frpc */
+        try {
+            FrpcPidFile.statFromAdbResult(new AdbShellResult(AdbShellResult.EXIT_UNKNOWN, "", ""));
+            fail("超时应当抛出IOException");
+        } catch (IOException expected) {
+            // 调用方按无法检查处理
+        }
+    }
+
+    @Test
+    public void adbFailureWithoutResultIsUnknown() {
+        try {
+            FrpcPidFile.statFromAdbResult(null);
+            fail("没有结果时应当抛出IOException");
+        } catch (IOException expected) {
+            // 调用方按无法检查处理
+        }
+    }
+
+    @Test
+    public void catExitingNonZeroMeansDead() throws Exception {
+        assertNull(FrpcPidFile.statFromAdbResult(new AdbShellResult(1, "", "No such file or directory")));
+    }
+
+    @Test
+    public void catSucceedingReturnsStat() throws Exception {
+        String stat = FrpcPidFile.statFromAdbResult(new AdbShellResult(0, STAT, ""));
+        assertEquals(STAT, stat);
+        assertEquals(987654, FrpcPidFile.parseStartTime(stat));
+    }
+
+    @Test
+    public void startTimeSkipsSpacesAndParenthesesInComm() {
+        assertEquals(987654, FrpcPidFile.parseStartTime(STAT.replace("(libfrpc.so)", "(a) b (c)")));
+        assertEquals(-1, FrpcPidFile.parseStartTime("1234 (libfrpc.so) S 1"));
+    }
+}
@@ -0,0 +1,82 @@
+package pub.log.startfrp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * ProcScanner对本机/proc的扫描测试，用sleep进程代替frpc
+ */
+public class ProcScannerTest {
+    private String sleepPath;
+
+    @Before
+    public void setUp() {
+        assumeTrue("需要Linux的/proc", new File("/proc/self/stat").exists());
+        for (String path : new String[]{"/bin/sleep", "/usr/bin/sleep", "/system/bin/sleep"}) {
+            if (new File(path).canExecute()) {
+                sleepPath = path;
+                break;
+            }
+        }
+        assumeTrue("找不到sleep", sleepPath != null);
+    }
+
+    @Test
+    public void findsProcessByExactPathUntilItExits() throws Exception {
+        ProcScanner scanner = new ProcScanner(sleepPath);
+        Process process = new ProcessBuilder(sleepPath, "30").start();
+        ProcScanner.ProcessInfo info;
+        try {
+            /* 机器上可能还有其他sleep进程，取最新启动的一个 */
+            info = newest(scanner.scan());
+            assertNotNull(info);
+            assertTrue(info.pid > 0);
+            assertTrue(info.startTime > 0);
+            assertTrue(info.rssBytes > 0);
+            assertTrue("意外的进程状态: " + info.state, info.state == 'S' || info.state == 'R');
+
+            /* 缓冲区复用后再次扫描结果不变 */
+            ProcScanner.ProcessInfo again = newest(scanner.scan());
+            assertEquals(info.pid, again.pid);
+            assertEquals(info.startTime, again.startTime);
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+        for (ProcScanner.ProcessInfo remaining : scanner.scan()) {
+            assertFalse(remaining.pid == info.pid && remaining.startTime == info.startTime);
+        }
+    }
+
+    private static ProcScanner.ProcessInfo newest(List<ProcScanner.ProcessInfo> processes) {
+        ProcScanner.ProcessInfo newest = null;
+        for (ProcScanner.ProcessInfo info : processes) {
+            if (newest == null || info.startTime > newest.startTime) {
+                newest = info;
+            }
+        }
+        return newest;
+    }
+
+    @Test
+    public void prefixOfPathDoesNotMatch() throws Exception {
+        Process process = new ProcessBuilder(sleepPath, "30").start();
+        try {
+            assertNull(new ProcScanner(sleepPath.substring(0, sleepPath.length() - 1)).findFirst());
+            assertNull(new ProcScanner(sleepPath + "x").findFirst());
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+}
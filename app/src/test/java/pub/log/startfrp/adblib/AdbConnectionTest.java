@@ -0,0 +1,239 @@
+package pub.log.startfrp.adblib;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Transport tests for AdbConnection against {@link FakeAdbDaemon}.
+ */
+public class AdbConnectionTest {
+    private static final long TIMEOUT = 5000;
+
+    private static AdbCrypto crypto;
+
+    private FakeAdbDaemon daemon;
+    private AdbConnection connection;
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        crypto = AdbCrypto.generateAdbKeyPair(new AdbBase64() {
+            @Override
+            public String encodeToString(byte[] bytes) {
+                return java.util.Base64.getEncoder().encodeToString(bytes);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.close();
+        }
+        if (daemon != null) {
+            daemon.close();
+        }
+    }
+
+    private FakeAdbDaemon startDaemon() throws IOException {
+        daemon = new FakeAdbDaemon().start();
+        return daemon;
+    }
+
+    @Test
+    public void handshakeWithoutAuthNegotiatesFeatures() throws Exception {
+        startDaemon();
+        connection = daemon.connect(crypto, TIMEOUT);
+
+        assertTrue(connection.isShellV2Supported());
+        assertTrue(connection.getPeerFeatures().contains(AdbProtocol.FEATURE_SENDRECV_V2));
+        assertEquals(AdbProtocol.CONNECT_MAXDATA, connection.getMaxData());
+        assertEquals(AdbProtocol.A_VERSION_SKIP_CHECKSUM, connection.getProtocolVersion());
+    }
+
+    @Test
+    public void knownKeyAuthenticatesWithSignature() throws Exception {
+        startDaemon().setAuth(true, false).authorize(crypto);
+        connection = daemon.connect(crypto, TIMEOUT);
+
+        assertTrue(connection.isFine());
+        assertEquals(0, daemon.getRejectedKeyCount());
+    }
+
+    @Test
+    public void newKeyFallsBackToPublicKeyAndIsRemembered() throws Exception {
+        startDaemon().setAuth(true, true);
+        connection = daemon.connect(crypto, TIMEOUT);
+        connection.close();
+
+        /* The key offered above is now authorized, so a signature alone must pass */
+        daemon.setAuth(true, false);
+        connection = daemon.connect(crypto, TIMEOUT);
+        assertEquals(0, daemon.getRejectedKeyCount());
+    }
+
+    @Test
+    public void rejectedKeyFailsConnect() throws Exception {
+        startDaemon().setAuth(true, false);
+        long start = System.currentTimeMillis();
+        try {
+            connection = daemon.connect(crypto, TIMEOUT);
+            fail("Connect should fail when the key is rejected");
+        } catch (IOException expected) {
+        }
+        assertTrue("Rejection should not wait for the timeout", System.currentTimeMillis() - start < TIMEOUT);
+        assertEquals(1, daemon.getRejectedKeyCount());
+    }
+
+    @Test
+    public void shellV2SeparatesOutputAndReportsExitCode() throws Exception {
+        startDaemon().addShellCommand("id", 3, "uid=2000(shell)\n", "warning\n");
+        connection = daemon.connect(crypto, TIMEOUT);
+
+        AdbShellResult result = connection.shell("id", TIMEOUT);
+        assertEquals(3, result.getExitCode());
+        assertEquals("uid=2000(shell)\n", result.getStdout());
+        assertEquals("warning\n", result.getStderr());
+    }
+
+    @Test
+    public void rejectedServiceFailsOpen() throws Exception {
+        startDaemon();
+        connection = daemon.connect(crypto, TIMEOUT);
+        try {
+            connection.open("reboot:");
+            fail("Open of an unknown service should fail");
+        } catch (ConnectException expected) {
+        }
+        assertTrue(connection.isFine());
+    }
+
+    @Test
+    public void messagesSplitAcrossWritesAreReassembled() throws Exception {
+        startDaemon().addShellCommand("getprop", 0, "[ro.product.model]: [FakeAdbDaemon]\n", "")
+                .setSplitWrites(7, 1)
+                .setLatency(5);
+        connection = daemon.connect(crypto, TIMEOUT);
+
+        AdbShellResult result = connection.shell("getprop", TIMEOUT);
+        assertEquals(0, result.getExitCode());
+        assertEquals("[ro.product.model]: [FakeAdbDaemon]\n", result.getStdout());
+    }
+
+    @Test
+    public void checksummedProtocolWithSmallPayloads() throws Exception {
+        startDaemon().setVersion(AdbProtocol.A_VERSION_MIN, AdbProtocol.MAX_PAYLOAD_V1);
+        connection = daemon.connect(crypto, TIMEOUT);
+
+        assertEquals(AdbProtocol.MAX_PAYLOAD_V1, connection.getMaxData());
+        assertLargeOutput(connection, 200 * 1024);
+    }
+
+    @Test
+    public void corruptChecksumBeforeNegotiationIsRejected() throws Exception {
+        /* A legacy peer checksums its CNXN; the version is not known yet when it arrives */
+        startDaemon().setVersion(AdbProtocol.A_VERSION_MIN, AdbProtocol.MAX_PAYLOAD_V1)
+                .setChecksumOverride(0x12345);
+        try {
+            connection = daemon.connect(crypto, 500);
+            fail("CNXN with a wrong checksum was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void zeroChecksumsFromModernPeerAreAccepted() throws Exception {
+        startDaemon().addShellCommand("id", 0, "uid=2000(shell)\n", "")
+                .setChecksumOverride(0);
+        connection = daemon.connect(crypto, TIMEOUT);
+
+        assertEquals(AdbProtocol.A_VERSION_SKIP_CHECKSUM, connection.getProtocolVersion());
+        assertEquals("uid=2000(shell)\n", connection.shell("id", TIMEOUT).getStdout());
+    }
+
+    @Test
+    public void largeOutputWithClassicFlowControl() throws Exception {
+        startDaemon();
+        connection = daemon.connect(crypto, TIMEOUT);
+
+        assertFalse(connection.isDelayedAckEnabled());
+        assertLargeOutput(connection, 4 * 1024 * 1024);
+    }
+
+    @Test
+    public void largeOutputWithDelayedAck() throws Exception {
+        startDaemon().setFeatures(AdbProtocol.FEATURE_SHELL_V2, AdbProtocol.FEATURE_DELAYED_ACK);
+        connection = daemon.createConnection(crypto);
+        connection.setDelayedAckEnabled(true);
+        connection.connect(TIMEOUT);
+
+        assertTrue(connection.isDelayedAckEnabled());
+        assertLargeOutput(connection, 4 * 1024 * 1024);
+    }
+
+    @Test
+    public void droppedConnectionNotifiesListenerWithCause() throws Exception {
+        startDaemon();
+        connection = daemon.connect(crypto, TIMEOUT);
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        final AtomicReference<Exception> cause = new AtomicReference<>();
+        connection.addConnectionListener(new AdbConnection.ConnectionListener() {
+            @Override
+            public void onConnectionClosed(AdbConnection conn, Exception error) {
+                cause.set(error);
+                closed.countDown();
+            }
+        });
+
+        daemon.dropConnections();
+        assertTrue(closed.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNotNull("A dropped connection is a failure", cause.get());
+        assertTrue(connection.isClosed());
+    }
+
+    @Test
+    public void disconnectMidStreamFailsShell() throws Exception {
+        startDaemon();
+        connection = daemon.connect(crypto, TIMEOUT);
+        daemon.setDisconnectAfterMessages(1);
+        try {
+            connection.shell("sleep 10", TIMEOUT);
+            fail("Shell should fail when the connection drops");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void assertLargeOutput(AdbConnection conn, int size) throws Exception {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        final String text = new String(data, "US-ASCII");
+        daemon.setShellHandler(new FakeAdbDaemon.ShellHandler() {
+            @Override
+            public AdbShellResult run(String command) {
+                return "cat big".equals(command) ? new AdbShellResult(0, text, "") : null;
+            }
+        });
+
+        AdbShellResult result = conn.shell("cat big", 30 * 1000);
+        assertEquals(0, result.getExitCode());
+        assertEquals(size, result.getStdout().length());
+        assertArrayEquals(data, Arrays.copyOf(result.getStdout().getBytes("US-ASCII"), size));
+    }
+}
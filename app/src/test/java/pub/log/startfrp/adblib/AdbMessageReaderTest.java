@@ -0,0 +1,70 @@
+package pub.log.startfrp.adblib;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Header checks in {@link AdbMessageReader}, which run before any payload is allocated.
+ */
+public class AdbMessageReaderTest {
+
+    private static AdbMessageReader reader(byte[] data) {
+        return new AdbMessageReader(new ByteArrayInputStream(data), new AdbMessagePool(AdbProtocol.MAX_PAYLOAD_V1));
+    }
+
+    private static byte[] header(int command, int payloadLength, int magic) {
+        return ByteBuffer.allocate(AdbProtocol.ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(command).putInt(0).putInt(0).putInt(payloadLength).putInt(0).putInt(magic)
+                .array();
+    }
+
+    @Test
+    public void readsValidMessage() throws Exception {
+        byte[] payload = "hello".getBytes(StandardCharsets.UTF_8);
+        AdbProtocol.AdbMessage msg = reader(AdbProtocol.generateMessage(AdbProtocol.CMD_WRTE, 1, 2, payload)).readMessage();
+
+        assertEquals(AdbProtocol.CMD_WRTE, msg.command);
+        assertEquals(payload.length, msg.payloadLength);
+        assertEquals("hello", new String(msg.payload, 0, msg.payloadLength, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void hugePayloadLengthIsRejectedWithoutAllocating() {
+        /* Would need ~2 GB if the reader allocated first */
+        byte[] data = header(AdbProtocol.CMD_WRTE, Integer.MAX_VALUE, ~AdbProtocol.CMD_WRTE);
+        try {
+            reader(data).readMessage();
+            fail("Oversized payload was accepted");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("payload length"));
+        }
+    }
+
+    @Test
+    public void payloadUpToAdvertisedMaximumIsAccepted() throws Exception {
+        /* The pool is smaller, but the peer may send what we advertised in CNXN */
+        byte[] payload = new byte[AdbProtocol.CONNECT_MAXDATA];
+        AdbProtocol.AdbMessage msg = reader(AdbProtocol.generateMessage(AdbProtocol.CMD_CNXN, 0, 0, payload)).readMessage();
+        assertEquals(AdbProtocol.CONNECT_MAXDATA, msg.payloadLength);
+    }
+
+    @Test
+    public void badMagicIsRejectedBeforeThePayload() {
+        byte[] data = header(AdbProtocol.CMD_WRTE, 1024 * 1024, 0x12345678);
+        try {
+            reader(data).readMessage();
+            fail("Header with a bad magic was accepted");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("magic"));
+        }
+    }
+}
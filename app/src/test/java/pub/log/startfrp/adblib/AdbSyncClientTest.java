@@ -0,0 +1,98 @@
+package pub.log.startfrp.adblib;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sync service tests for AdbSyncClient against {@link FakeAdbDaemon}, with
+ * and without the v2 requests.
+ */
+public class AdbSyncClientTest {
+    private static final long TIMEOUT = 5000;
+    private static final String DIR = "/data/local/tmp/startfrp";
+    private static final String PATH = DIR + "/libfrpc.so";
+
+    private FakeAdbDaemon daemon;
+    private AdbConnection connection;
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.close();
+        }
+        if (daemon != null) {
+            daemon.close();
+        }
+    }
+
+    private AdbSyncClient openSync(String... features) throws Exception {
+        daemon = new FakeAdbDaemon().setFeatures(features).start();
+        connection = daemon.connect(null, TIMEOUT);
+        return connection.openSync();
+    }
+
+    @Test
+    public void pushStatPullListV1() throws Exception {
+        roundTrip(openSync());
+    }
+
+    @Test
+    public void pushStatPullListV2() throws Exception {
+        roundTrip(openSync(AdbProtocol.FEATURE_STAT_V2, AdbProtocol.FEATURE_LS_V2, AdbProtocol.FEATURE_SENDRECV_V2));
+    }
+
+    @Test
+    public void pullOfMissingFileFails() throws Exception {
+        AdbSyncClient sync = openSync();
+        try {
+            sync.pull("/nonexistent", new ByteArrayOutputStream());
+            fail("Pull of a missing file should fail");
+        } catch (IOException expected) {
+        }
+        sync.close();
+    }
+
+    private void roundTrip(AdbSyncClient sync) throws Exception {
+        /* Larger than one DATA chunk and not a multiple of it */
+        byte[] data = new byte[3 * AdbSyncClient.SYNC_DATA_MAX + 123];
+        new Random(1).nextBytes(data);
+
+        long pushed = sync.push(new ByteArrayInputStream(data), PATH, 0755, 1700000000L);
+        assertEquals(data.length, pushed);
+        assertArrayEquals(data, daemon.getFile(PATH));
+        assertEquals(AdbSyncClient.S_IFREG | 0755, daemon.getFileMode(PATH));
+
+        AdbSyncClient.FileStat stat = sync.stat(PATH);
+        assertTrue(stat.isRegularFile());
+        assertEquals(data.length, stat.size);
+        assertEquals(0755, stat.getPermissions());
+        assertEquals(1700000000L, stat.mtime);
+        assertFalse(sync.stat(DIR + "/missing").exists());
+
+        ByteArrayOutputStream pulled = new ByteArrayOutputStream();
+        assertEquals(data.length, sync.pull(PATH, pulled));
+        assertArrayEquals(data, pulled.toByteArray());
+
+        daemon.putFile(DIR + "/frpc.toml", new byte[10], AdbSyncClient.S_IFREG | 0644, 1700000001);
+        List<AdbSyncClient.DirEntry> entries = sync.list(DIR);
+        assertEquals(2, entries.size());
+        assertEquals("frpc.toml", entries.get(0).name);
+        assertEquals("libfrpc.so", entries.get(1).name);
+        assertEquals(data.length, entries.get(1).stat.size);
+
+        sync.close();
+        assertTrue(sync.isClosed());
+    }
+}
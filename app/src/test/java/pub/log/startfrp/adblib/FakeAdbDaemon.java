@@ -0,0 +1,1264 @@
+package pub.log.startfrp.adblib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Cipher;
+
+/**
+ * An in-process stand-in for adbd, listening on a loopback port.
+ * <p>
+ * It speaks the transport (CNXN, AUTH, OPEN, OKAY, WRTE, CLSE, with classic
+ * or delayed_ack flow control) and serves shell:, shell,v2: and sync:
+ * streams. Shell commands are answered from a script instead of being run;
+ * lines of the form "echo ..." and the sentinel printf lines written by
+ * the persistent shell session are understood as well. Files pushed over
+ * sync live in memory.
+ * <p>
+ * Faults can be injected: a delay before each outgoing message, outgoing
+ * messages split into small socket writes, rejected keys and dropped
+ * connections.
+ */
+public class FakeAdbDaemon implements Closeable {
+
+    /**
+     * Answers shell commands that have no scripted result.
+     */
+    public interface ShellHandler {
+        /**
+         * @param command The command line, without the service prefix
+         * @return The result to report to the client
+         */
+        AdbShellResult run(String command);
+    }
+
+    /** The receive window granted to each stream when delayed_ack is in use */
+    public static final int RECEIVE_WINDOW = 256 * 1024;
+
+    /** How long a stream waits for the client's OKAY before giving up */
+    private static final long ACK_TIMEOUT = 10 * 1000;
+
+    private static final int ID_STAT = syncId("STAT");
+    private static final int ID_STA2 = syncId("STA2");
+    private static final int ID_LST2 = syncId("LST2");
+    private static final int ID_LIST = syncId("LIST");
+    private static final int ID_LIS2 = syncId("LIS2");
+    private static final int ID_DENT = syncId("DENT");
+    private static final int ID_DNT2 = syncId("DNT2");
+    private static final int ID_SEND = syncId("SEND");
+    private static final int ID_SND2 = syncId("SND2");
+    private static final int ID_RECV = syncId("RECV");
+    private static final int ID_RCV2 = syncId("RCV2");
+    private static final int ID_DATA = syncId("DATA");
+    private static final int ID_DONE = syncId("DONE");
+    private static final int ID_OKAY = syncId("OKAY");
+    private static final int ID_FAIL = syncId("FAIL");
+    private static final int ID_QUIT = syncId("QUIT");
+
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+
+    /** An in-memory file */
+    private static final class FakeFile {
+        final byte[] data;
+        final int mode;
+        final int mtime;
+
+        FakeFile(byte[] data, int mode, int mtime) {
+            this.data = data;
+            this.mode = mode;
+            this.mtime = mtime;
+        }
+    }
+
+    private volatile Set<String> features = new HashSet<>(Arrays.asList(
+            AdbProtocol.FEATURE_SHELL_V2, AdbProtocol.FEATURE_STAT_V2,
+            AdbProtocol.FEATURE_LS_V2, AdbProtocol.FEATURE_SENDRECV_V2));
+    private volatile int version = AdbProtocol.A_VERSION_SKIP_CHECKSUM;
+    private volatile int maxData = AdbProtocol.CONNECT_MAXDATA;
+    private volatile boolean authRequired;
+    private volatile boolean acceptNewKeys = true;
+    private volatile long latencyMillis;
+    private volatile int splitSize;
+    private volatile Integer checksumOverride;
+    private volatile long splitDelayMillis;
+    private volatile int disconnectAfterMessages;
+
+    private final List<PublicKey> authorizedKeys = new CopyOnWriteArrayList<>();
+    private final Map<String, AdbShellResult> scriptedCommands = new ConcurrentHashMap<>();
+    private volatile ShellHandler shellHandler;
+    private final Map<String, FakeFile> files = Collections.synchronizedMap(new TreeMap<String, FakeFile>());
+
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final List<String> openedServices = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong receivedMessages = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicInteger rejectedKeys = new AtomicInteger();
+
+    private ServerSocket server;
+    private Thread acceptThread;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Starts listening on an ephemeral loopback port.
+     * @return This daemon
+     * @throws IOException If the port cannot be bound
+     */
+    public FakeAdbDaemon start() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        connectionCount.incrementAndGet();
+                        Session session = new Session(socket);
+                        sessions.add(session);
+                        session.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "FakeAdbDaemon-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return this;
+    }
+
+    /**
+     * Gets the port the daemon listens on.
+     * @return The local port
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Opens a client connection to this daemon the way AdbConnector does and
+     * completes the handshake.
+     * @param crypto The client's key pair, may be null if auth is not required
+     * @param timeoutMillis Deadline for the handshake
+     * @return A connected client
+     * @throws IOException If the handshake fails
+     * @throws InterruptedException If we are unable to wait for the handshake
+     */
+    public AdbConnection connect(AdbCrypto crypto, long timeoutMillis) throws IOException, InterruptedException {
+        AdbConnection connection = createConnection(crypto);
+        try {
+            connection.connect(timeoutMillis);
+        } catch (IOException | InterruptedException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Opens a client connection to this daemon without starting the handshake,
+     * so that options can be set before connect().
+     * @param crypto The client's key pair, may be null if auth is not required
+     * @return An unconnected client
+     * @throws IOException If the socket cannot be opened
+     */
+    public AdbConnection createConnection(AdbCrypto crypto) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), getPort()));
+        return AdbConnection.create(channel.socket(), crypto);
+    }
+
+    /* ------------------------------ Configuration ------------------------------ */
+
+    /**
+     * Sets the features advertised in the CNXN banner.
+     * @param features The features, e.g. {@link AdbProtocol#FEATURE_SHELL_V2}
+     * @return This daemon
+     */
+    public FakeAdbDaemon setFeatures(String... features) {
+        this.features = new HashSet<>(Arrays.asList(features));
+        return this;
+    }
+
+    /**
+     * Sets the protocol version and maximum payload answered in CNXN.
+     * @param version The protocol version, e.g. {@link AdbProtocol#A_VERSION_MIN}
+     * @param maxData The maximum payload the daemon accepts and sends
+     * @return This daemon
+     */
+    public FakeAdbDaemon setVersion(int version, int maxData) {
+        this.version = version;
+        this.maxData = maxData;
+        return this;
+    }
+
+    /**
+     * Requires AUTH before CNXN is answered. Keys added with
+     * {@link #authorize(AdbCrypto)} pass with a signature; other keys are
+     * offered as public keys and are accepted only if new keys are allowed.
+     * @param required True to require authentication
+     * @param acceptNewKeys True to accept an unknown public key, as if the user
+     *                      allowed it; false to close the connection instead
+     * @return This daemon
+     */
+    public FakeAdbDaemon setAuth(boolean required, boolean acceptNewKeys) {
+        this.authRequired = required;
+        this.acceptNewKeys = acceptNewKeys;
+        return this;
+    }
+
+    /**
+     * Adds a key whose signatures are accepted without a public key prompt.
+     * @param crypto The client's key pair
+     * @return This daemon
+     * @throws GeneralSecurityException If the public key cannot be decoded
+     */
+    public FakeAdbDaemon authorize(AdbCrypto crypto) throws GeneralSecurityException {
+        authorizedKeys.add(KeyFactory.getInstance("RSA")
+                .generatePublic(new X509EncodedKeySpec(crypto.getEncodedPublicKey())));
+        return this;
+    }
+
+    /**
+     * Delays every outgoing message, as a slow link would.
+     * @param millis Delay before each message
+     * @return This daemon
+     */
+    public FakeAdbDaemon setLatency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Splits every outgoing message into socket writes of at most the given
+     * size, so that headers and payloads arrive in pieces.
+     * @param size Bytes per write, 0 to write whole messages
+     * @param delayMillis Pause between the pieces
+     * @return This daemon
+     */
+    public FakeAdbDaemon setSplitWrites(int size, long delayMillis) {
+        this.splitSize = size;
+        this.splitDelayMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * Writes a fixed value into the checksum field of every outgoing message
+     * with a payload, e.g. 0 like a modern adbd or a wrong value to simulate
+     * corruption.
+     * @param checksum The checksum to send, or null to compute it
+     * @return This daemon
+     */
+    public FakeAdbDaemon setChecksumOverride(Integer checksum) {
+        this.checksumOverride = checksum;
+        return this;
+    }
+
+    /**
+     * Drops each connection after it has received the given number of messages.
+     * @param count Messages per connection, 0 to never drop
+     * @return This daemon
+     */
+    public FakeAdbDaemon setDisconnectAfterMessages(int count) {
+        this.disconnectAfterMessages = count;
+        return this;
+    }
+
+    /**
+     * Scripts the result of a shell command.
+     * @param command The exact command line
+     * @param exitCode The exit code to report
+     * @param stdout Output on stdout
+     * @param stderr Output on stderr
+     * @return This daemon
+     */
+    public FakeAdbDaemon addShellCommand(String command, int exitCode, String stdout, String stderr) {
+        scriptedCommands.put(command, new AdbShellResult(exitCode, stdout, stderr));
+        return this;
+    }
+
+    /**
+     * Sets the handler for commands that have no scripted result. Without one
+     * they fail with exit code 127.
+     * @param handler The handler
+     * @return This daemon
+     */
+    public FakeAdbDaemon setShellHandler(ShellHandler handler) {
+        this.shellHandler = handler;
+        return this;
+    }
+
+    /**
+     * Stores a file as if it existed on the device.
+     * @param path The absolute path
+     * @param data The content
+     * @param mode The full st_mode, including the file type bits
+     * @param mtime The modification time in seconds
+     * @return This daemon
+     */
+    public FakeAdbDaemon putFile(String path, byte[] data, int mode, int mtime) {
+        files.put(path, new FakeFile(data, mode, mtime));
+        return this;
+    }
+
+    /* --------------------------------- Faults --------------------------------- */
+
+    /**
+     * Closes every client connection at once, as a restarted adbd would.
+     */
+    public void dropConnections() {
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Stops listening and closes every connection.
+     */
+    @Override
+    public void close() {
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+        }
+        dropConnections();
+    }
+
+    /* ---------------------------------- State ---------------------------------- */
+
+    /**
+     * Gets the content of a file on the fake device.
+     * @param path The absolute path
+     * @return The content, null if there is no such file
+     */
+    public byte[] getFile(String path) {
+        FakeFile file = files.get(path);
+        return file != null ? file.data : null;
+    }
+
+    /**
+     * Gets the st_mode of a file on the fake device.
+     * @param path The absolute path
+     * @return The mode, 0 if there is no such file
+     */
+    public int getFileMode(String path) {
+        FakeFile file = files.get(path);
+        return file != null ? file.mode : 0;
+    }
+
+    /**
+     * @return The number of TCP connections accepted
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return The number of connections still open
+     */
+    public int getOpenConnectionCount() {
+        int open = 0;
+        for (Session session : sessions) {
+            if (!session.closed) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @return The services opened by clients, in order
+     */
+    public List<String> getOpenedServices() {
+        return new ArrayList<>(openedServices);
+    }
+
+    /**
+     * @return The number of messages received from clients
+     */
+    public long getReceivedMessageCount() {
+        return receivedMessages.get();
+    }
+
+    /**
+     * @return The number of messages sent to clients
+     */
+    public long getSentMessageCount() {
+        return sentMessages.get();
+    }
+
+    /**
+     * @return The number of public keys that were offered and refused
+     */
+    public int getRejectedKeyCount() {
+        return rejectedKeys.get();
+    }
+
+    /* -------------------------------- Internals -------------------------------- */
+
+    private static int syncId(String id) {
+        byte[] b = id.getBytes(StandardCharsets.US_ASCII);
+        return (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
+    }
+
+    private static byte[] intLE(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    /**
+     * Decodes the public key sent in an AUTH_TYPE_RSA_PUBLIC message, the
+     * base64 of the mincrypt RSAPublicKey struct followed by " user@host".
+     */
+    private static PublicKey decodeAdbPublicKey(byte[] payload, int length) throws GeneralSecurityException {
+        String text = new String(payload, 0, length, StandardCharsets.UTF_8);
+        int end = text.indexOf(' ');
+        if (end < 0) {
+            end = text.indexOf('\0');
+        }
+        byte[] blob = Base64.getDecoder().decode(end >= 0 ? text.substring(0, end) : text);
+        ByteBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        int words = buffer.getInt();
+        buffer.getInt(); /* n0inv */
+
+        /* The modulus is stored as little endian 32-bit words */
+        byte[] modulus = new byte[words * 4 + 1];
+        for (int i = 0; i < words; i++) {
+            int word = buffer.getInt();
+            int offset = modulus.length - (i + 1) * 4;
+            modulus[offset] = (byte) (word >>> 24);
+            modulus[offset + 1] = (byte) (word >>> 16);
+            modulus[offset + 2] = (byte) (word >>> 8);
+            modulus[offset + 3] = (byte) word;
+        }
+        buffer.position(buffer.position() + words * 4); /* rr */
+        int exponent = buffer.getInt();
+
+        return KeyFactory.getInstance("RSA").generatePublic(
+                new RSAPublicKeySpec(new BigInteger(modulus), BigInteger.valueOf(exponent)));
+    }
+
+    private AdbShellResult runCommand(String command) {
+        AdbShellResult result = scriptedCommands.get(command);
+        if (result != null) {
+            return result;
+        }
+        ShellHandler handler = shellHandler;
+        if (handler != null) {
+            result = handler.run(command);
+            if (result != null) {
+                return result;
+            }
+        }
+        return new AdbShellResult(127, "", "sh: " + command + ": not found\n");
+    }
+
+    /**
+     * A blocking input stream fed with WRTE payloads.
+     */
+    private static final class PayloadQueue extends InputStream {
+        private static final byte[] EOF = new byte[0];
+
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private byte[] current;
+        private int position;
+        private boolean eof;
+
+        void add(byte[] payload) {
+            if (payload.length > 0) {
+                queue.add(payload);
+            }
+        }
+
+        void finish() {
+            queue.add(EOF);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                while (current == null || position == current.length) {
+                    if (eof) {
+                        return -1;
+                    }
+                    current = queue.take();
+                    position = 0;
+                    if (current == EOF) {
+                        eof = true;
+                        return -1;
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    /**
+     * One client connection.
+     */
+    private final class Session {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final OutputStream output;
+        private final Map<Integer, FakeStream> streams = new ConcurrentHashMap<>();
+        private final AtomicInteger nextLocalId = new AtomicInteger(1);
+        private final byte[] header = new byte[AdbProtocol.ADB_HEADER_LENGTH];
+
+        private volatile boolean closed;
+        private boolean connected;
+        private boolean delayedAck;
+        private int peerMaxData;
+        private byte[] token;
+        private int messages;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.input = new DataInputStream(socket.getInputStream());
+            this.output = socket.getOutputStream();
+        }
+
+        void start() {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!closed) {
+                            handleMessage();
+                        }
+                    } catch (IOException | GeneralSecurityException e) {
+                    } finally {
+                        close();
+                    }
+                }
+            }, "FakeAdbDaemon-session");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            for (FakeStream stream : streams.values()) {
+                stream.input.finish();
+                stream.ready.release(Integer.MAX_VALUE / 2);
+            }
+            streams.clear();
+        }
+
+        /**
+         * Sends one message, honouring the injected latency and write splitting.
+         */
+        void send(int command, int arg0, int arg1, byte[] payload) throws IOException {
+            byte[] message = AdbProtocol.generateMessage(command, arg0, arg1, payload);
+            Integer checksum = checksumOverride;
+            if (checksum != null && payload != null && payload.length != 0) {
+                ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN).putInt(16, checksum);
+            }
+            synchronized (output) {
+                if (closed) {
+                    throw new IOException("Session closed");
+                }
+                try {
+                    if (latencyMillis > 0) {
+                        Thread.sleep(latencyMillis);
+                    }
+                    int split = splitSize;
+                    if (split <= 0) {
+                        output.write(message);
+                        output.flush();
+                    } else {
+                        for (int offset = 0; offset < message.length; offset += split) {
+                            output.write(message, offset, Math.min(split, message.length - offset));
+                            output.flush();
+                            if (splitDelayMillis > 0) {
+                                Thread.sleep(splitDelayMillis);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                sentMessages.incrementAndGet();
+            }
+        }
+
+        private void handleMessage() throws IOException, GeneralSecurityException {
+            input.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            int command = buffer.getInt();
+            int arg0 = buffer.getInt();
+            int arg1 = buffer.getInt();
+            int length = buffer.getInt();
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+
+            receivedMessages.incrementAndGet();
+            int limit = disconnectAfterMessages;
+            if (limit > 0 && ++messages >= limit) {
+                close();
+                return;
+            }
+
+            if (command == AdbProtocol.CMD_CNXN) {
+                peerMaxData = Math.min(arg1, maxData);
+                delayedAck = features.contains(AdbProtocol.FEATURE_DELAYED_ACK)
+                        && AdbProtocol.parseFeatures(payload, length).contains(AdbProtocol.FEATURE_DELAYED_ACK);
+                if (authRequired) {
+                    sendToken();
+                } else {
+                    sendConnect();
+                }
+            } else if (command == AdbProtocol.CMD_AUTH) {
+                handleAuth(arg0, payload);
+            } else if (!connected) {
+                /* Stream messages before CNXN are dropped, like adbd does */
+            } else if (command == AdbProtocol.CMD_OPEN) {
+                handleOpen(arg0, arg1, payload);
+            } else if (command == AdbProtocol.CMD_OKAY) {
+                FakeStream stream = streams.get(arg1);
+                if (stream != null) {
+                    stream.onOkay(delayedAck && length == 4 ? ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN).getInt() : 0);
+                }
+            } else if (command == AdbProtocol.CMD_WRTE) {
+                FakeStream stream = streams.get(arg1);
+                if (stream == null) {
+                    send(AdbProtocol.CMD_CLSE, 0, arg0, null);
+                    return;
+                }
+                stream.input.add(payload);
+                send(AdbProtocol.CMD_OKAY, stream.localId, stream.remoteId, delayedAck ? intLE(length) : null);
+            } else if (command == AdbProtocol.CMD_CLSE) {
+                FakeStream stream = streams.remove(arg1);
+                if (stream != null) {
+                    stream.closed = true;
+                    stream.input.finish();
+                    stream.ready.release(Integer.MAX_VALUE / 2);
+                }
+            }
+        }
+
+        private void sendToken() throws IOException {
+            token = new byte[20];
+            random.nextBytes(token);
+            send(AdbProtocol.CMD_AUTH, AdbProtocol.AUTH_TYPE_TOKEN, 0, token);
+        }
+
+        private void sendConnect() throws IOException {
+            connected = true;
+            StringBuilder banner = new StringBuilder("device::ro.product.name=fake;ro.product.model=FakeAdbDaemon;features=");
+            boolean first = true;
+            for (String feature : features) {
+                if (!first) {
+                    banner.append(',');
+                }
+                banner.append(feature);
+                first = false;
+            }
+            send(AdbProtocol.CMD_CNXN, version, maxData, banner.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void handleAuth(int type, byte[] payload) throws IOException, GeneralSecurityException {
+            if (type == AdbProtocol.AUTH_TYPE_SIGNATURE) {
+                if (token != null && verify(payload)) {
+                    sendConnect();
+                } else {
+                    /* Unknown key; ask again so that the client offers its public key */
+                    sendToken();
+                }
+            } else if (type == AdbProtocol.AUTH_TYPE_RSA_PUBLIC) {
+                if (acceptNewKeys) {
+                    authorizedKeys.add(decodeAdbPublicKey(payload, payload.length));
+                    sendConnect();
+                } else {
+                    rejectedKeys.incrementAndGet();
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Checks that the signature is the PKCS#1 SHA1 padding plus our token,
+         * raised to the private exponent of one of the authorized keys.
+         */
+        private boolean verify(byte[] signature) throws GeneralSecurityException {
+            byte[] expected = new byte[AdbCrypto.SIGNATURE_PADDING.length + token.length];
+            System.arraycopy(AdbCrypto.SIGNATURE_PADDING, 0, expected, 0, AdbCrypto.SIGNATURE_PADDING.length);
+            System.arraycopy(token, 0, expected, AdbCrypto.SIGNATURE_PADDING.length, token.length);
+
+            for (PublicKey key : authorizedKeys) {
+                Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, key);
+                byte[] decrypted = cipher.doFinal(signature);
+                if (Arrays.equals(decrypted, expected)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void handleOpen(int remoteId, int window, byte[] payload) throws IOException {
+            String service = new String(payload, StandardCharsets.UTF_8);
+            int terminator = service.indexOf('\0');
+            if (terminator >= 0) {
+                service = service.substring(0, terminator);
+            }
+            openedServices.add(service);
+
+            final Runnable handler;
+            final FakeStream stream = new FakeStream(this, nextLocalId.getAndIncrement(), remoteId, window);
+            if (service.equals("sync:")) {
+                handler = new Runnable() {
+                    @Override
+                    public void run() {
+                        serveSync(stream);
+                    }
+                };
+            } else if (service.startsWith("shell,v2,") || service.startsWith("shell,v2:")) {
+                if (!features.contains(AdbProtocol.FEATURE_SHELL_V2)) {
+                    send(AdbProtocol.CMD_CLSE, 0, remoteId, null);
+                    return;
+                }
+                final String command = service.substring(service.indexOf(':') + 1);
+                handler = new Runnable() {
+                    @Override
+                    public void run() {
+                        serveShellV2(stream, command);
+                    }
+                };
+            } else if (service.startsWith("shell:")) {
+                final String command = service.substring("shell:".length());
+                handler = new Runnable() {
+                    @Override
+                    public void run() {
+                        serveShell(stream, command);
+                    }
+                };
+            } else {
+                send(AdbProtocol.CMD_CLSE, 0, remoteId, null);
+                return;
+            }
+
+            streams.put(stream.localId, stream);
+            send(AdbProtocol.CMD_OKAY, stream.localId, remoteId, delayedAck ? intLE(RECEIVE_WINDOW) : null);
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.run();
+                    } finally {
+                        stream.close();
+                    }
+                }
+            }, "FakeAdbDaemon-" + service);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * One stream opened by the client.
+     */
+    private final class FakeStream {
+        final Session session;
+        final int localId;
+        final int remoteId;
+        final PayloadQueue input = new PayloadQueue();
+
+        /* Classic flow control: one WRTE per OKAY; the OKAY answering OPEN counts as the first */
+        final Semaphore ready = new Semaphore(1);
+
+        /* delayed_ack flow control: bytes the client still accepts */
+        private long sendWindow;
+
+        volatile boolean closed;
+
+        FakeStream(Session session, int localId, int remoteId, int window) {
+            this.session = session;
+            this.localId = localId;
+            this.remoteId = remoteId;
+            this.sendWindow = window;
+        }
+
+        synchronized void onOkay(int ackedBytes) {
+            if (session.delayedAck) {
+                sendWindow += ackedBytes;
+                notifyAll();
+            } else {
+                ready.release();
+            }
+        }
+
+        void write(byte[] data) throws IOException {
+            write(data, 0, data.length);
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int chunk = Math.min(length, session.peerMaxData);
+                try {
+                    if (session.delayedAck) {
+                        synchronized (this) {
+                            long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+                            while (sendWindow <= 0 && !closed) {
+                                long remaining = deadline - System.currentTimeMillis();
+                                if (remaining <= 0) {
+                                    throw new IOException("Client did not acknowledge");
+                                }
+                                wait(remaining);
+                            }
+                            chunk = (int) Math.min(chunk, sendWindow);
+                            sendWindow -= chunk;
+                        }
+                    } else if (!ready.tryAcquire(ACK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        throw new IOException("Client did not acknowledge");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                if (closed) {
+                    throw new EOFException("Stream closed by client");
+                }
+                session.send(AdbProtocol.CMD_WRTE, localId, remoteId, Arrays.copyOfRange(data, offset, offset + chunk));
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        void close() {
+            if (session.streams.remove(localId) != null && !session.closed) {
+                try {
+                    session.send(AdbProtocol.CMD_CLSE, localId, remoteId, null);
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /* ---------------------------------- Shell ---------------------------------- */
+
+    /**
+     * Where a fake shell writes its output.
+     */
+    private interface ShellOutput {
+        void stdout(String text) throws IOException;
+
+        void stderr(String text) throws IOException;
+    }
+
+    private static final Pattern SENTINEL_STDOUT = Pattern.compile("printf '\\\\n%s %d %d\\\\n' '(\\S+)' (\\d+) \\$\\?");
+    private static final Pattern SENTINEL_STDERR = Pattern.compile("printf '\\\\n%s %d\\\\n' '(\\S+)' (\\d+) >&2");
+
+    /**
+     * A line-oriented shell that runs scripted commands. It understands
+     * "exec 2>&1", "echo" with $?, subshell blocks in parentheses and the
+     * sentinel printf lines of the persistent shell session.
+     */
+    private final class FakeShell {
+        private final ShellOutput output;
+        private boolean mergeStderr;
+        private int lastExit;
+        private List<String> block;
+
+        FakeShell(ShellOutput output) {
+            this.output = output;
+        }
+
+        void runScript(String script) throws IOException {
+            for (String line : script.split("\n")) {
+                runLine(line);
+            }
+        }
+
+        void runLine(String line) throws IOException {
+            if (block != null) {
+                if (line.startsWith(")")) {
+                    List<String> commands = block;
+                    block = null;
+                    for (String command : commands) {
+                        runStatement(command);
+                    }
+                    for (String statement : line.substring(1).split(";")) {
+                        runStatement(statement);
+                    }
+                } else {
+                    block.add(line);
+                }
+                return;
+            }
+            if (line.trim().equals("(")) {
+                block = new ArrayList<>();
+                return;
+            }
+            runStatement(line);
+        }
+
+        private void runStatement(String statement) throws IOException {
+            statement = statement.trim();
+            if (statement.startsWith("</dev/null")) {
+                statement = statement.substring("</dev/null".length()).trim();
+            }
+            if (statement.isEmpty()) {
+                return;
+            }
+            if (statement.equals("exec 2>&1")) {
+                mergeStderr = true;
+                return;
+            }
+
+            Matcher matcher = SENTINEL_STDOUT.matcher(statement);
+            if (matcher.matches()) {
+                output.stdout("\n" + matcher.group(1) + " " + matcher.group(2) + " " + lastExit + "\n");
+                return;
+            }
+            matcher = SENTINEL_STDERR.matcher(statement);
+            if (matcher.matches()) {
+                writeStderr("\n" + matcher.group(1) + " " + matcher.group(2) + "\n");
+                return;
+            }
+            if (statement.startsWith("echo ")) {
+                output.stdout(statement.substring(5).replace("$?", Integer.toString(lastExit)) + "\n");
+                lastExit = 0;
+                return;
+            }
+
+            AdbShellResult result = runCommand(statement);
+            output.stdout(result.getStdout());
+            writeStderr(result.getStderr());
+            lastExit = result.getExitCode();
+        }
+
+        private void writeStderr(String text) throws IOException {
+            if (mergeStderr) {
+                output.stdout(text);
+            } else {
+                output.stderr(text);
+            }
+        }
+
+        int getLastExit() {
+            return lastExit;
+        }
+    }
+
+    /**
+     * Serves shell: streams. Without a command, or with "sh", commands are
+     * read line by line from stdin until the client closes the stream.
+     * Output is raw, with stderr merged into stdout.
+     */
+    private void serveShell(final FakeStream stream, String command) {
+        FakeShell shell = new FakeShell(new ShellOutput() {
+            @Override
+            public void stdout(String text) throws IOException {
+                if (!text.isEmpty()) {
+                    stream.write(text.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+
+            @Override
+            public void stderr(String text) throws IOException {
+                stdout(text);
+            }
+        });
+        try {
+            if (command.isEmpty() || command.equals("sh")) {
+                readLines(stream.input, shell);
+            } else {
+                shell.runScript(command);
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Serves shell,v2: streams with the framed shell protocol. Without a
+     * command, stdin packets are run line by line until stdin is closed.
+     */
+    private void serveShellV2(final FakeStream stream, String command) {
+        FakeShell shell = new FakeShell(new ShellOutput() {
+            @Override
+            public void stdout(String text) throws IOException {
+                writePacket(stream, AdbShellStream.ID_STDOUT, text.getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void stderr(String text) throws IOException {
+                writePacket(stream, AdbShellStream.ID_STDERR, text.getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        try {
+            if (command.isEmpty()) {
+                DataInputStream in = new DataInputStream(stream.input);
+                StringBuilder pending = new StringBuilder();
+                while (true) {
+                    int id = in.read();
+                    if (id < 0) {
+                        return;
+                    }
+                    byte[] lengthBytes = new byte[4];
+                    in.readFully(lengthBytes);
+                    byte[] data = new byte[AdbMessageReader.readIntLE(lengthBytes, 0)];
+                    in.readFully(data);
+                    if (id == AdbShellStream.ID_CLOSE_STDIN) {
+                        break;
+                    }
+                    if (id == AdbShellStream.ID_STDIN) {
+                        pending.append(new String(data, StandardCharsets.UTF_8));
+                        int newline;
+                        while ((newline = pending.indexOf("\n")) >= 0) {
+                            String line = pending.substring(0, newline);
+                            pending.delete(0, newline + 1);
+                            shell.runLine(line);
+                        }
+                    }
+                }
+            } else {
+                shell.runScript(command);
+            }
+            writePacket(stream, AdbShellStream.ID_EXIT, new byte[]{(byte) shell.getLastExit()});
+        } catch (IOException e) {
+        }
+    }
+
+    private static void writePacket(FakeStream stream, int id, byte[] data) throws IOException {
+        if (data.length == 0 && id != AdbShellStream.ID_EXIT) {
+            return;
+        }
+        byte[] packet = new byte[AdbShellStream.HEADER_SIZE + data.length];
+        packet[0] = (byte) id;
+        System.arraycopy(intLE(data.length), 0, packet, 1, 4);
+        System.arraycopy(data, 0, packet, AdbShellStream.HEADER_SIZE, data.length);
+        stream.write(packet);
+    }
+
+    private static void readLines(InputStream in, FakeShell shell) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    shell.runLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    line.reset();
+                } else {
+                    line.write(buffer[i]);
+                }
+            }
+        }
+    }
+
+    /* ---------------------------------- Sync ---------------------------------- */
+
+    /**
+     * Serves a sync: stream against the in-memory files.
+     */
+    private void serveSync(FakeStream stream) {
+        DataInputStream in = new DataInputStream(stream.input);
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        try {
+            while (true) {
+                int id = readIntLE(in);
+                int length = readIntLE(in);
+                byte[] pathBytes = new byte[length];
+                in.readFully(pathBytes);
+                String path = new String(pathBytes, StandardCharsets.UTF_8);
+                reply.reset();
+
+                if (id == ID_QUIT) {
+                    return;
+                } else if (id == ID_SEND || id == ID_SND2) {
+                    int mode;
+                    if (id == ID_SEND) {
+                        int comma = path.lastIndexOf(',');
+                        mode = Integer.parseInt(path.substring(comma + 1));
+                        path = path.substring(0, comma);
+                    } else {
+                        if (readIntLE(in) != ID_SND2) {
+                            throw new IOException("Malformed SND2 request");
+                        }
+                        mode = readIntLE(in);
+                        readIntLE(in); /* flags */
+                    }
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    int mtime;
+                    while (true) {
+                        int chunkId = readIntLE(in);
+                        int chunkLength = readIntLE(in);
+                        if (chunkId == ID_DONE) {
+                            mtime = chunkLength;
+                            break;
+                        }
+                        if (chunkId != ID_DATA || chunkLength > SYNC_DATA_MAX) {
+                            throw new IOException("Malformed DATA chunk");
+                        }
+                        byte[] chunk = new byte[chunkLength];
+                        in.readFully(chunk);
+                        content.write(chunk);
+                    }
+                    putFile(path, content.toByteArray(), mode, mtime);
+                    writeIntLE(reply, ID_OKAY);
+                    writeIntLE(reply, 0);
+                } else if (id == ID_STAT) {
+                    FakeFile file = files.get(path);
+                    writeIntLE(reply, ID_STAT);
+                    writeIntLE(reply, file != null ? file.mode : 0);
+                    writeIntLE(reply, file != null ? file.data.length : 0);
+                    writeIntLE(reply, file != null ? file.mtime : 0);
+                } else if (id == ID_STA2 || id == ID_LST2) {
+                    FakeFile file = files.get(path);
+                    writeIntLE(reply, id);
+                    writeStat2(reply, file != null ? 0 : 2, file);
+                } else if (id == ID_RECV || id == ID_RCV2) {
+                    if (id == ID_RCV2) {
+                        readIntLE(in);
+                        readIntLE(in); /* flags */
+                    }
+                    FakeFile file = files.get(path);
+                    if (file == null) {
+                        byte[] message = "No such file or directory".getBytes(StandardCharsets.UTF_8);
+                        writeIntLE(reply, ID_FAIL);
+                        writeIntLE(reply, message.length);
+                        reply.write(message);
+                    } else {
+                        for (int offset = 0; offset < file.data.length; offset += SYNC_DATA_MAX) {
+                            int chunk = Math.min(SYNC_DATA_MAX, file.data.length - offset);
+                            writeIntLE(reply, ID_DATA);
+                            writeIntLE(reply, chunk);
+                            reply.write(file.data, offset, chunk);
+                        }
+                        writeIntLE(reply, ID_DONE);
+                        writeIntLE(reply, 0);
+                    }
+                } else if (id == ID_LIST || id == ID_LIS2) {
+                    boolean v2 = id == ID_LIS2;
+                    String prefix = path.endsWith("/") ? path : path + "/";
+                    List<Map.Entry<String, FakeFile>> entries;
+                    synchronized (files) {
+                        entries = new ArrayList<>(files.entrySet());
+                    }
+                    for (Map.Entry<String, FakeFile> entry : entries) {
+                        String name = entry.getKey();
+                        if (!name.startsWith(prefix) || name.indexOf('/', prefix.length()) >= 0) {
+                            continue;
+                        }
+                        byte[] nameBytes = name.substring(prefix.length()).getBytes(StandardCharsets.UTF_8);
+                        FakeFile file = entry.getValue();
+                        if (v2) {
+                            writeIntLE(reply, ID_DNT2);
+                            writeStat2(reply, 0, file);
+                        } else {
+                            writeIntLE(reply, ID_DENT);
+                            writeIntLE(reply, file.mode);
+                            writeIntLE(reply, file.data.length);
+                            writeIntLE(reply, file.mtime);
+                        }
+                        writeIntLE(reply, nameBytes.length);
+                        reply.write(nameBytes);
+                    }
+                    writeIntLE(reply, ID_DONE);
+                    int padding = v2 ? 68 + 4 : 16;
+                    for (int i = 0; i < padding; i += 4) {
+                        writeIntLE(reply, 0);
+                    }
+                } else {
+                    throw new IOException("Unknown sync request");
+                }
+
+                stream.write(reply.toByteArray());
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Writes the body of an STA2/LST2/DNT2 reply: error, dev, ino, mode,
+     * nlink, uid, gid, size, atime, mtime, ctime.
+     */
+    private static void writeStat2(ByteArrayOutputStream out, int error, FakeFile file) {
+        writeIntLE(out, error);
+        writeLongLE(out, 0);
+        writeLongLE(out, 0);
+        writeIntLE(out, file != null ? file.mode : 0);
+        writeIntLE(out, 1);
+        writeIntLE(out, 2000);
+        writeIntLE(out, 2000);
+        writeLongLE(out, file != null ? file.data.length : 0);
+        writeLongLE(out, file != null ? file.mtime : 0);
+        writeLongLE(out, file != null ? file.mtime : 0);
+        writeLongLE(out, file != null ? file.mtime : 0);
+    }
+
+    private static int readIntLE(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[4];
+        in.readFully(bytes);
+        return AdbMessageReader.readIntLE(bytes, 0);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void writeLongLE(ByteArrayOutputStream out, long value) {
+        writeIntLE(out, (int) value);
+        writeIntLE(out, (int) (value >>> 32));
+    }
+}
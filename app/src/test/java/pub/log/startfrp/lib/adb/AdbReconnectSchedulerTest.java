@@ -0,0 +1,126 @@
+package pub.log.startfrp.lib.adb;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 重连调度器测试：共享连接尝试、连接被拒绝时立即失败、退避期和后台重连
+ */
+public class AdbReconnectSchedulerTest {
+    private static final int OK = 0;
+    private static final int REFUSED = 1;
+    private static final int TIMEOUT = 2;
+
+    private final AtomicInteger mode = new AtomicInteger(OK);
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AdbReconnectScheduler scheduler = new AdbReconnectScheduler("test",
+            new AdbReconnectScheduler.ConnectAction() {
+                @Override
+                public void connect() throws IOException, InterruptedException {
+                    calls.incrementAndGet();
+                    switch (mode.get()) {
+                        case REFUSED:
+                            throw new ConnectException("Connection refused");
+                        case TIMEOUT:
+                            throw new SocketTimeoutException("connect timed out");
+                        default:
+                            Thread.sleep(200);
+                    }
+                }
+            }, 1000, 4000, 3);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void concurrentCallersShareOneAttempt() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        final CountDownLatch done = new CountDownLatch(10);
+        final AtomicInteger connected = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (scheduler.awaitConnected(5000)) {
+                            connected.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        assertEquals(10, connected.get());
+        assertEquals(1, calls.get());
+        assertTrue(scheduler.isConnected());
+    }
+
+    @Test
+    public void refusedConnectionFailsImmediatelyAndHoldsOff() throws Exception {
+        mode.set(REFUSED);
+        long start = System.currentTimeMillis();
+        assertFalse(scheduler.awaitConnected(5000));
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(1, calls.get());
+
+        // 退避期内不再连接
+        assertFalse(scheduler.awaitConnected(5000));
+        assertEquals(1, calls.get());
+        try {
+            scheduler.checkHoldoff();
+            fail("checkHoldoff should throw during the holdoff");
+        } catch (ConnectException expected) {
+        }
+    }
+
+    @Test
+    public void otherFailuresRetryWithinOneAttempt() throws Exception {
+        mode.set(TIMEOUT);
+        assertFalse(scheduler.awaitConnected(10 * 1000));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void listenerIsNotifiedOnceBackgroundRetrySucceeds() throws Exception {
+        mode.set(REFUSED);
+        final CountDownLatch connected = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        scheduler.addListener(new AdbReconnectScheduler.Listener() {
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectFailed(IOException error, int consecutiveFailures, long retryDelayMillis) {
+                if (failures.incrementAndGet() == 2) {
+                    mode.set(OK);
+                }
+            }
+        });
+
+        assertTrue(connected.await(15, TimeUnit.SECONDS));
+        assertEquals(2, failures.get());
+        assertTrue(scheduler.isConnected());
+    }
+}
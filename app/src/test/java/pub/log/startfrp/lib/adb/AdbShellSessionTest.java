@@ -0,0 +1,76 @@
+package pub.log.startfrp.lib.adb;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import pub.log.startfrp.adblib.AdbConnection;
+import pub.log.startfrp.adblib.AdbShellResult;
+import pub.log.startfrp.adblib.FakeAdbDaemon;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 持久shell会话测试，分别覆盖shell_v2和普通shell
+ */
+public class AdbShellSessionTest {
+    private static final long TIMEOUT = 5000;
+
+    private FakeAdbDaemon daemon;
+    private AdbConnection connection;
+
+    @After
+    public void tearDown() throws IOException {
+        if (connection != null) {
+            connection.close();
+        }
+        if (daemon != null) {
+            daemon.close();
+        }
+    }
+
+    private AdbShellSession openSession(String... features) throws Exception {
+        daemon = new FakeAdbDaemon().setFeatures(features)
+                .addShellCommand("pidof frpc", 0, "1234\n", "")
+                .addShellCommand("ls /nonexistent", 1, "", "ls: /nonexistent: No such file or directory\n")
+                .start();
+        connection = daemon.connect(null, TIMEOUT);
+        return new AdbShellSession(connection);
+    }
+
+    @Test
+    public void commandsShareOneStreamWithShellV2() throws Exception {
+        AdbShellSession session = openSession("shell_v2");
+
+        AdbShellResult first = session.execute("pidof frpc", TIMEOUT);
+        assertEquals(0, first.getExitCode());
+        assertEquals("1234\n", first.getStdout());
+
+        AdbShellResult second = session.execute("ls /nonexistent", TIMEOUT);
+        assertEquals(1, second.getExitCode());
+        assertEquals("", second.getStdout());
+        assertEquals("ls: /nonexistent: No such file or directory\n", second.getStderr());
+
+        assertEquals(1, daemon.getOpenedServices().size());
+        session.close();
+    }
+
+    @Test
+    public void commandsShareOneStreamWithoutShellV2() throws Exception {
+        AdbShellSession session = openSession();
+
+        AdbShellResult first = session.execute("pidof frpc", TIMEOUT);
+        assertEquals(0, first.getExitCode());
+        assertEquals("1234\n", first.getStdout());
+
+        // 普通shell中stderr合并到stdout
+        AdbShellResult second = session.execute("ls /nonexistent", TIMEOUT);
+        assertEquals(1, second.getExitCode());
+        assertEquals("ls: /nonexistent: No such file or directory\n", second.getStdout());
+
+        assertEquals("shell:sh", daemon.getOpenedServices().get(0));
+        assertEquals(1, daemon.getOpenedServices().size());
+        session.close();
+    }
+}
@@ -0,0 +1,41 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+// adblib不依赖Android，直接编译app模块中的源码；单元测试目录中只取本地模拟adbd，其他测试代码不进入基准测试jar
+val testSources = file("../app/src/test/java")
+
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            srcDir(testSources)
+            include("pub/log/startfrp/adblib/**")
+            exclude("pub/log/startfrp/adblib/MinRefUtils.java")
+            exclude { !it.isDirectory && it.file.startsWith(testSources) && it.name != "FakeAdbDaemon.java" }
+        }
+    }
+}
+
+// 结果文件名带上当前提交，便于按提交比较
+val commit = providers.exec {
+    commandLine("git", "rev-parse", "--short", "HEAD")
+    isIgnoreExitValue = true
+}.standardOutput.asText.map { it.trim().ifEmpty { "unknown" } }
+
+jmh {
+    jmhVersion = libs.versions.jmh
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file(commit.map { "results/jmh/results-$it.json" })
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    // 例如 -PjmhIncludes=LoopbackBenchmark 只运行部分基准测试
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.add(it) }
+}
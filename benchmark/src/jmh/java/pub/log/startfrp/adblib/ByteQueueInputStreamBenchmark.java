@@ -0,0 +1,66 @@
+package pub.log.startfrp.adblib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queuing WRTE payloads into a stream's ByteQueueInputStream and reading
+ * them back, on a single thread so that only the queue itself is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ByteQueueInputStreamBenchmark {
+
+    @Param({"4096", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"1024", "65536"})
+    public int readSize;
+
+    private ByteQueueInputStream queue;
+    private byte[] payload;
+    private byte[] readBuffer;
+
+    @Setup
+    public void setUp() {
+        queue = new ByteQueueInputStream();
+        payload = new byte[payloadSize];
+        readBuffer = new byte[readSize];
+    }
+
+    /**
+     * Queues one payload and drains it with bulk reads.
+     */
+    @Benchmark
+    public int addAndRead() {
+        queue.addBytes(payload);
+        int total = 0;
+        while (total < payloadSize) {
+            total += queue.read(readBuffer, 0, readSize);
+        }
+        return total;
+    }
+
+    /**
+     * Queues one payload and drains it a byte at a time, as DataInputStream
+     * based parsers do for headers.
+     */
+    @Benchmark
+    public int addAndReadBytes() {
+        queue.addBytes(payload);
+        int sum = 0;
+        for (int i = 0; i < payloadSize; i++) {
+            sum += queue.read();
+        }
+        return sum;
+    }
+}
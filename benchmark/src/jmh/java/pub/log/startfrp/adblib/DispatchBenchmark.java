@@ -0,0 +1,118 @@
+package pub.log.startfrp.adblib;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Compares the {@link AdbDispatchMode} strategies by pushing synthetic WRTE
+ * messages for several streams through a dispatcher, the way the connection
+ * thread does. The time is per message; per-stream ordering violations are
+ * reported as the <code>reordered</code> secondary result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+    /** Messages dispatched per invocation, all awaited before it returns */
+    private static final int BATCH = 1000;
+
+    @Param({"INLINE", "SHARDED", "SHARED_QUEUE"})
+    public AdbDispatchMode mode;
+
+    @Param({"1", "8"})
+    public int streams;
+
+    /** Busy work per message, standing in for the stream logic and queueing the OKAY */
+    @Param({"0", "200"})
+    public long workNanos;
+
+    private AdbMessagePool pool;
+    private AdbMessageDispatcher dispatcher;
+    private AtomicIntegerArray lastSequence;
+    private int[] sequence;
+    private final AtomicInteger reordered = new AtomicInteger();
+    private volatile CountDownLatch done;
+
+    /**
+     * Ordering violations seen during the iteration; expected to stay 0 for
+     * every mode except {@link AdbDispatchMode#SHARED_QUEUE}.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long reordered;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            reordered = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        pool = new AdbMessagePool(AdbProtocol.CONNECT_MAXDATA);
+        lastSequence = new AtomicIntegerArray(streams);
+        sequence = new int[streams];
+        dispatcher = AdbMessageDispatcher.create(mode, new AdbMessageDispatcher.Handler() {
+            @Override
+            public void handle(AdbProtocol.AdbMessage msg) {
+                long end = System.nanoTime() + workNanos;
+                while (System.nanoTime() < end) {
+                    /* busy */
+                }
+
+                int previous = lastSequence.getAndSet(msg.arg1, msg.arg0);
+                if (previous > msg.arg0) {
+                    reordered.incrementAndGet();
+                }
+
+                msg.recycle();
+                done.countDown();
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Dispatches {@link #BATCH} messages round-robin over the streams and
+     * waits until the handler has processed all of them.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch(Counters counters) throws InterruptedException {
+        done = new CountDownLatch(BATCH);
+        int before = reordered.get();
+        for (int i = 0; i < BATCH; i++) {
+            int stream = i % streams;
+            AdbProtocol.AdbMessage msg = pool.obtainMessage();
+            msg.command = AdbProtocol.CMD_WRTE;
+            msg.arg0 = ++sequence[stream];
+            msg.arg1 = stream;
+            msg.payload = null;
+            msg.payloadLength = 0;
+            dispatcher.dispatch(msg);
+        }
+        done.await();
+        counters.reordered += reordered.get() - before;
+    }
+}
@@ -0,0 +1,141 @@
+package pub.log.startfrp.adblib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding, decoding and checksumming of single ADB messages, without a socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameBenchmark {
+
+    /** Bytes of encoded messages replayed by the decoder */
+    private static final int REPLAY_BYTES = 4 * 1024 * 1024;
+
+    @Param({"0", "4096", "65536", "1048576"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private AdbMessageWriter writer;
+    private AdbMessageReader reader;
+    private AdbProtocol.AdbMessage checksummed;
+
+    /**
+     * An endless stream repeating a buffer of whole messages.
+     */
+    private static final class ReplayInputStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        ReplayInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int value = data[position] & 0xff;
+            position = (position + 1) % data.length;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int count = Math.min(length, data.length - position);
+            System.arraycopy(data, position, buffer, offset, count);
+            position = (position + count) % data.length;
+            return count;
+        }
+    }
+
+    /**
+     * A socket that accepts everything.
+     */
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+
+        writer = new AdbMessageWriter(new NullOutputStream());
+        writer.setChecksumEnabled(false);
+        writer.start();
+
+        byte[] frame = AdbProtocol.generateMessage(AdbProtocol.CMD_WRTE, 1, 2, payload);
+        int count = Math.max(1, REPLAY_BYTES / frame.length);
+        ByteArrayOutputStream frames = new ByteArrayOutputStream(count * frame.length);
+        for (int i = 0; i < count; i++) {
+            frames.write(frame);
+        }
+        AdbMessagePool pool = new AdbMessagePool(AdbProtocol.CONNECT_MAXDATA);
+        reader = new AdbMessageReader(new ReplayInputStream(frames.toByteArray()), pool);
+
+        /* Kept out of the pool so that its payload stays valid */
+        checksummed = new AdbMessageReader(new ReplayInputStream(frame), pool).readMessage();
+    }
+
+    @TearDown
+    public void tearDown() {
+        writer.close();
+    }
+
+    /**
+     * Builds a whole message in a new array, as the handshake and tests do.
+     */
+    @Benchmark
+    public byte[] generateMessage() {
+        return AdbProtocol.generateMessage(AdbProtocol.CMD_WRTE, 1, 2, payload);
+    }
+
+    /**
+     * Hands a message to the writer thread and waits until it has been written.
+     */
+    @Benchmark
+    public void writeMessage() throws IOException {
+        writer.writeMessage(AdbProtocol.CMD_WRTE, 1, 2, payload);
+    }
+
+    /**
+     * Parses the next message from the read-ahead buffer and recycles it.
+     */
+    @Benchmark
+    public int readMessage() throws IOException {
+        AdbProtocol.AdbMessage msg = reader.readMessage();
+        int length = msg.payloadLength;
+        msg.recycle();
+        return length;
+    }
+
+    /**
+     * Validates a message including its payload checksum, as required by
+     * peers that only speak the original protocol version.
+     */
+    @Benchmark
+    public boolean validateWithChecksum() {
+        return AdbProtocol.validateMessage(checksummed, true);
+    }
+}
@@ -0,0 +1,115 @@
+package pub.log.startfrp.adblib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command latency and stream throughput over a real loopback socket to
+ * {@link FakeAdbDaemon}, with classic and delayed_ack flow control.
+ */
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+    private static final long TIMEOUT = 30 * 1000;
+    private static final String PATH = "/data/local/tmp/startfrp/libfrpc.so";
+
+    /** Size of the file pushed and pulled per operation */
+    private static final int TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    @Param({"false", "true"})
+    public boolean delayedAck;
+
+    private FakeAdbDaemon daemon;
+    private AdbConnection connection;
+    private AdbSyncClient sync;
+    private byte[] data;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws Exception {
+        data = new byte[TRANSFER_SIZE];
+        new Random(1).nextBytes(data);
+
+        daemon = new FakeAdbDaemon()
+                .setFeatures(AdbProtocol.FEATURE_SHELL_V2, AdbProtocol.FEATURE_STAT_V2,
+                        AdbProtocol.FEATURE_LS_V2, AdbProtocol.FEATURE_SENDRECV_V2,
+                        AdbProtocol.FEATURE_DELAYED_ACK)
+                .addShellCommand("pidof frpc", 0, "1234\n", "")
+                .putFile(PATH, data, AdbSyncClient.S_IFREG | 0755, 1700000000)
+                .start();
+
+        connection = daemon.createConnection(null);
+        connection.setDelayedAckEnabled(delayedAck);
+        connection.connect(TIMEOUT);
+        sync = connection.openSync();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sync.close();
+        connection.close();
+        daemon.close();
+    }
+
+    /**
+     * One shell,v2 command: OPEN, output, exit code and CLSE.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public AdbShellResult shellRoundTrip() throws IOException, InterruptedException {
+        return connection.shell("pidof frpc", TIMEOUT);
+    }
+
+    /**
+     * One sync STAT request on an open sync stream.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public AdbSyncClient.FileStat syncStat() throws IOException, InterruptedException {
+        return sync.stat(PATH);
+    }
+
+    /**
+     * Pulls {@link #TRANSFER_SIZE} bytes from the daemon.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long syncPull() throws IOException, InterruptedException {
+        return sync.pull(PATH, DISCARD);
+    }
+
+    /**
+     * Pushes {@link #TRANSFER_SIZE} bytes to the daemon.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long syncPush() throws IOException, InterruptedException {
+        return sync.push(new ByteArrayInputStream(data), PATH + ".new", 0755, 1700000000L);
+    }
+}
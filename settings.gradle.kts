@@ -21,3 +21,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "startfrp"
 include(":app")
+include(":benchmark")